@@ -67,3 +67,31 @@ ab -n 8000 -c 100 -k -g expressjs.dat http://localhost:8000/middleware
 
 # plot
 gnuplot plot-middleware.p
+
+echo "Waiting 5 seconds before running 4th test"
+sleep 5
+
+# hand written handler vs generated and scanned annotated controllers, same response
+ab -n 8000 -c 100 -k -g yoke.dat http://localhost:8080/
+echo "Waiting 5 seconds before measurement..."
+sleep 5
+ab -n 8000 -c 100 -k -g yoke.dat http://localhost:8080/
+
+echo "Waiting 5 seconds before running annotated controller..."
+sleep 5
+
+ab -n 8000 -c 100 -k -g annotated.dat http://localhost:8080/annotated
+echo "Waiting 5 seconds before measurement..."
+sleep 5
+ab -n 8000 -c 100 -k -g annotated.dat http://localhost:8080/annotated
+
+echo "Waiting 5 seconds before running scanned controller..."
+sleep 5
+
+ab -n 8000 -c 100 -k -g scanned.dat http://localhost:8080/scanned
+echo "Waiting 5 seconds before measurement..."
+sleep 5
+ab -n 8000 -c 100 -k -g scanned.dat http://localhost:8080/scanned
+
+# plot
+gnuplot plot-annotated.p
@@ -0,0 +1,143 @@
+package com.jetdrone.vertx.bench;
+
+import com.jetdrone.vertx.yoke.middleware.filters.AbstractWriterFilter;
+import com.jetdrone.vertx.yoke.middleware.filters.DeflateWriterFilter;
+import com.jetdrone.vertx.yoke.middleware.filters.GZipWriterFilter;
+import com.jetdrone.vertx.yoke.middleware.filters.WriterFilter;
+import org.vertx.java.core.buffer.Buffer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compares the response compression filters outside of the server, so only the encoding cost is measured:
+ *
+ * <pre>
+ * java -cp ... com.jetdrone.vertx.bench.CompressBench
+ * </pre>
+ *
+ * Each filter encodes a JSON like body written in chunks of different sizes, the stream filter is a baseline on top
+ * of GZIPOutputStream, as the filters were implemented before the deflaters were pooled.
+ *
+ * This is a plain loop with a fixed warm-up, not a JMH harness: there is no fork control, no dead code protection
+ * beyond summing the output sizes and a single measured pass per case. The numbers are indicative only, use them to
+ * compare the filters with each other on one machine, not as absolute throughput figures.
+ */
+public class CompressBench {
+
+    private static final Pattern ALL = Pattern.compile(".*");
+
+    private interface Factory {
+        WriterFilter create();
+    }
+
+    // GZIPOutputStream based filter, a new deflater per response
+    @SuppressWarnings("deprecation")
+    private static class StreamGZipFilter extends AbstractWriterFilter {
+
+        StreamGZipFilter() throws IOException {
+            super(ALL);
+        }
+
+        @Override
+        public OutputStream createOutputStream() throws IOException {
+            return new GZIPOutputStream(sink);
+        }
+
+        @Override
+        public String encoding() {
+            return "gzip";
+        }
+    }
+
+    private static Buffer body(int size) {
+        final StringBuilder sb = new StringBuilder(size);
+        int i = 0;
+        while (sb.length() < size) {
+            sb.append("{\"id\":").append(i).append(",\"name\":\"user").append(i % 97).append("\",\"active\":").append(i % 3 == 0).append("},");
+            i++;
+        }
+        return new Buffer(sb.substring(0, size));
+    }
+
+    private static long run(Factory factory, Buffer[] chunks, int responses) {
+        long bytes = 0;
+        for (int i = 0; i < responses; i++) {
+            final WriterFilter filter = factory.create();
+            for (int j = 0; j < chunks.length - 1; j++) {
+                bytes += filter.write(chunks[j]).length();
+            }
+            bytes += filter.end(chunks[chunks.length - 1]).length();
+        }
+        return bytes;
+    }
+
+    private static void measure(String name, Factory factory, int size, int chunkSize) {
+        final Buffer body = body(size);
+        final Buffer[] chunks = new Buffer[(size + chunkSize - 1) / chunkSize];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = body.getBuffer(i * chunkSize, Math.min(size, (i + 1) * chunkSize));
+        }
+
+        final int responses = Math.max(100, 20000000 / size);
+
+        // warm up
+        run(factory, chunks, responses);
+        run(factory, chunks, responses);
+
+        final long start = System.nanoTime();
+        final long bytes = run(factory, chunks, responses);
+        final double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%-16s %8d %8d %12.0f %10.1f %8.3f%n", name, size, chunkSize, responses / seconds,
+                (double) size * responses / seconds / (1024 * 1024), (double) bytes / ((long) size * responses));
+    }
+
+    public static void main(String[] args) {
+        final Factory stream = new Factory() {
+            @Override
+            public WriterFilter create() {
+                try {
+                    return new StreamGZipFilter();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        final Factory gzip = new Factory() {
+            @Override
+            public WriterFilter create() {
+                return new GZipWriterFilter(ALL);
+            }
+        };
+
+        final Factory gzip1 = new Factory() {
+            @Override
+            public WriterFilter create() {
+                return new GZipWriterFilter(ALL, Deflater.BEST_SPEED);
+            }
+        };
+
+        final Factory deflate = new Factory() {
+            @Override
+            public WriterFilter create() {
+                return new DeflateWriterFilter(ALL);
+            }
+        };
+
+        System.out.println("Indicative numbers only: single JVM, fixed warm-up, no JMH fork control");
+        System.out.printf("%-16s %8s %8s %12s %10s %8s%n", "filter", "size", "chunk", "responses/s", "MB/s", "ratio");
+
+        final int[][] cases = {{1024, 1024}, {16 * 1024, 1024}, {16 * 1024, 16 * 1024}, {1024 * 1024, 8 * 1024}};
+        for (int[] c : cases) {
+            measure("stream-gzip", stream, c[0], c[1]);
+            measure("gzip", gzip, c[0], c[1]);
+            measure("gzip-level1", gzip1, c[0], c[1]);
+            measure("deflate", deflate, c[0], c[1]);
+        }
+    }
+}
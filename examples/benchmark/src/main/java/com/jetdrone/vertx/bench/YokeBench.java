@@ -2,6 +2,7 @@ package com.jetdrone.vertx.bench;
 
 import com.jetdrone.vertx.yoke.Middleware;
 import com.jetdrone.vertx.yoke.Yoke;
+import com.jetdrone.vertx.yoke.annotations.GET;
 import com.jetdrone.vertx.yoke.middleware.BodyParser;
 import com.jetdrone.vertx.yoke.middleware.Router;
 import com.jetdrone.vertx.yoke.middleware.YokeRequest;
@@ -11,6 +12,22 @@ import org.vertx.java.platform.Verticle;
 
 public class YokeBench extends Verticle {
 
+    // same response as "/" but served by an annotated controller, the route table is generated at compile time
+    public static class Controller {
+        @GET("/annotated")
+        public void get(YokeRequest request) {
+            request.response().end("Hello World\n");
+        }
+    }
+
+    // same controller, private classes get no generated table so Router.from scans it and invokes a MethodHandle
+    private static class ScannedController {
+        @GET("/scanned")
+        public void get(YokeRequest request) {
+            request.response().end("Hello World\n");
+        }
+    }
+
     @Override
     public void start() {
 
@@ -27,7 +44,8 @@ public class YokeBench extends Verticle {
                 .use("/middleware", foo)
                 .use("/middleware", foo)
                 .use("/middleware", foo)
-                .use(new Router()
+                // the controllers share the router of the hand written handlers so all routes pay for the same lookup
+                .use(Router.from(new Controller(), new ScannedController())
                         .get("/", new Handler<YokeRequest>() {
                             @Override
                             public void handle(YokeRequest request) {
@@ -46,6 +64,7 @@ public class YokeBench extends Verticle {
                                 request.response().end("1234567890123456789012345678901234567890123456789012345678901234567890123456789012345678901234567890");
                             }
                         })
-                ).listen(8080);
+                )
+                .listen(8080);
     }
 }
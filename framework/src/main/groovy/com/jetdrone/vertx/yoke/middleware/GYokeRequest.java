@@ -9,6 +9,7 @@ import com.jetdrone.vertx.yoke.store.SessionStore;
 import groovy.lang.Closure;
 import org.vertx.groovy.core.http.HttpServerFileUpload;
 import org.vertx.java.core.Handler;
+import org.vertx.java.core.MultiMap;
 import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.http.HttpServerRequest;
 import org.vertx.java.core.http.HttpVersion;
@@ -262,8 +263,10 @@ public class GYokeRequest extends YokeRequest implements org.vertx.groovy.core.h
     }
 
     public GMultiMap getParams() {
+        // always call params() so path params added after the first call are visible
+        final MultiMap requestParams = params();
         if (params == null) {
-            params = new GMultiMap(params());
+            params = new GMultiMap(requestParams);
         }
         return params;
     }
@@ -18,6 +18,8 @@ import org.vertx.java.core.Vertx;
  *
  * The current list of Middleware is:
  * * [BasicAuth](middleware/BasicAuth.html),
+ * * [Batch](middleware/Batch.html),
+ * * [Blocking](middleware/Blocking.html),
  * * [BodyParser](middleware/BodyParser.html),
  * * [BridgeSecureHandler](middleware/BridgeSecureHandler.html),
  * * [Compress](middleware/Compress.html),
@@ -32,6 +34,7 @@ import org.vertx.java.core.Vertx;
  * * [ResponseTime](middleware/ResponseTime.html),
  * * [Router](middleware/Router.html),
  * * [Session](middleware/Session.html),
+ * * [Sync](middleware/Sync.html),
  * * [Static](middleware/Static.html),
  * * [Timeout](middleware/Timeout.html),
  * * [Vhost](middleware/Vhost.html).
@@ -74,6 +77,14 @@ public abstract class Middleware {
         return false;
     }
 
+    /**
+     * Called by Yoke when the application is [frozen](Yoke.html#freeze). After this point the configuration of the
+     * middleware does not change anymore and the instance might be shared by several verticle instances, so mutable
+     * lookup tables should be compiled into immutable ones.
+     */
+    public void freeze() {
+    }
+
     /**
      * Handles a request that is inside the chain.
      *
@@ -108,6 +119,26 @@ public abstract class Middleware {
      * }
      * </pre>
      *
+     * ```next.handle``` does not run the next middleware before it returns: when it is called synchronously from
+     * ```handle``` Yoke only records the continuation and runs the next middleware once ```handle``` returns, so deep
+     * chains do not grow the stack. Code placed after ```next.handle(null)``` therefore runs *before* the downstream
+     * middleware, not after it as in earlier versions of Yoke. Work that must happen once the response is produced
+     * belongs in a ```headersHandler``` or ```endHandler``` of the response:
+     * <pre>
+     * class TimingMiddleware extends Middleware {
+     *   public void handle(final YokeRequest request, Handler&lt;Object&gt; next) {
+     *     final long start = System.nanoTime();
+     *     request.response().endHandler(new Handler&lt;Void&gt;() {
+     *       public void handle(Void event) {
+     *         log(System.nanoTime() - start);
+     *       }
+     *     });
+     *     next.handle(null);
+     *     // the downstream middleware has not run yet
+     *   }
+     * }
+     * </pre>
+     *
      * @param request A YokeRequest which in practice is a extended HttpServerRequest
      * @param next    The callback to inform that the next middleware in the chain should be used. A value different from
      *                null represents an error and in that case the error handler middleware will be executed.
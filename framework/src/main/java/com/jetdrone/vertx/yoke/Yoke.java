@@ -6,10 +6,14 @@ package com.jetdrone.vertx.yoke;
 import com.jetdrone.vertx.yoke.core.Context;
 import com.jetdrone.vertx.yoke.core.RequestWrapper;
 import com.jetdrone.vertx.yoke.core.impl.DefaultRequestWrapper;
+import com.jetdrone.vertx.yoke.core.impl.MountTrie;
+import com.jetdrone.vertx.yoke.core.impl.WarmUp;
 import com.jetdrone.vertx.yoke.middleware.YokeRequest;
+import com.jetdrone.vertx.yoke.middleware.YokeResponse;
 import com.jetdrone.vertx.yoke.store.SessionStore;
 import com.jetdrone.vertx.yoke.store.SharedDataSessionStore;
 import com.jetdrone.vertx.yoke.core.YokeException;
+import com.jetdrone.vertx.yoke.util.WheelTimer;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.Handler;
@@ -20,9 +24,13 @@ import org.vertx.java.core.http.HttpServerResponse;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonElement;
 import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.shareddata.Shareable;
 import org.vertx.java.platform.Container;
 import org.vertx.java.platform.Verticle;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.*;
 
 /**
@@ -35,6 +43,9 @@ import java.util.*;
  * and then start an http server either managed by Yoke or provided by the user (say when you need https).
  *
  * Yoke has no extra dependencies than Vert.x itself so it is self contained.
+ *
+ * The middleware chain is trampolined: a synchronous call to ```next``` returns before the next middleware runs, so
+ * code after ```next.handle(null)``` runs before the rest of the chain, see [Middleware.handle](Middleware.html#handle).
  */
 public class Yoke {
 
@@ -63,13 +74,28 @@ public class Yoke {
      *   trust-proxy: true
      * }
      * </pre>
+     *
+     * ```trust-proxy``` can also be a [TrustedProxies](util/TrustedProxies.html) range set, see
+     * [YokeRequest.ip](middleware/YokeRequest.html#ip).
      */
-    protected final Map<String, Object> defaultContext = new HashMap<>();
+    protected Map<String, Object> defaultContext = new HashMap<>();
 
     /**
      * The internal registry of [render engines](Engine.html)
      */
-    private final Map<String, Engine> engineMap = new HashMap<>();
+    private Map<String, Engine> engineMap = new HashMap<>();
+
+    /**
+     * Once frozen the configuration cannot change anymore
+     */
+    private boolean frozen;
+
+    /**
+     * Requests replayed before the server is bound, null when there is no warm-up
+     */
+    private JsonArray warmupRequests;
+    private int warmupRounds;
+    private long warmupBudget;
 
     /**
      * Creates a Yoke instance.
@@ -191,6 +217,11 @@ public class Yoke {
      */
     private final List<MountedMiddleware> middlewareList = new ArrayList<>();
 
+    /**
+     * Compiled lookup of the mounted middleware, rebuilt lazily when the chain changes
+     */
+    private MountTrie mountTrie;
+
     /**
      * Special middleware used for error handling
      */
@@ -211,6 +242,7 @@ public class Yoke {
      * @param middleware The middleware add to the chain
      */
     public Yoke use(String route, Middleware... middleware) {
+        checkNotFrozen();
         for (Middleware m : middleware) {
             // when the type of middleware is error handler then the route is ignored and
             // the middleware is extracted from the execution chain into a special placeholder
@@ -219,6 +251,7 @@ public class Yoke {
                 errorHandler = m;
             } else {
                 middlewareList.add(new MountedMiddleware(route, m));
+                mountTrie = null;
             }
 
             // initialize the middleware with the current Vert.x and Logger
@@ -257,12 +290,14 @@ public class Yoke {
      * @param handler The Handler to add
      */
     public Yoke use(String route, final Handler<YokeRequest> handler) {
+        checkNotFrozen();
         middlewareList.add(new MountedMiddleware(route, new Middleware() {
             @Override
             public void handle(YokeRequest request, Handler<Object> next) {
                 handler.handle(request);
             }
         }));
+        mountTrie = null;
         return this;
     }
 
@@ -291,6 +326,7 @@ public class Yoke {
      * @param engine    The implementation of the engine
      */
     public Yoke engine(Engine engine) {
+        checkNotFrozen();
         engine.setVertx(vertx);
         engineMap.put(engine.extension(), engine);
         return this;
@@ -302,6 +338,7 @@ public class Yoke {
     protected SessionStore store;
 
     public Yoke store(SessionStore store) {
+        checkNotFrozen();
         this.store = store;
         return this;
     }
@@ -314,6 +351,7 @@ public class Yoke {
      * @param value Any non null value, nulls are not saved
      */
     public Yoke set(String key, Object value) {
+        checkNotFrozen();
         if (value == null) {
             defaultContext.remove(key);
         } else {
@@ -361,11 +399,26 @@ public class Yoke {
      * @param handler for asynchronous result of the listen operation
      * @return {Yoke}
      */
-    public Yoke listen(int port, String address, final Handler<Boolean> handler) {
-        HttpServer server = vertx.createHttpServer();
+    public Yoke listen(final int port, final String address, final Handler<Boolean> handler) {
+        final HttpServer server = vertx.createHttpServer();
 
         listen(server);
 
+        if (warmupRequests == null) {
+            bind(server, port, address, handler);
+        } else {
+            // only accept connections once the chain is warm
+            new WarmUp(vertx, this, warmupRequests, warmupRounds, warmupBudget).run(new Handler<Integer>() {
+                @Override
+                public void handle(Integer replayed) {
+                    bind(server, port, address, handler);
+                }
+            });
+        }
+        return this;
+    }
+
+    private static void bind(HttpServer server, int port, String address, final Handler<Boolean> handler) {
         if (handler != null) {
             server.listen(port, address, new Handler<AsyncResult<HttpServer>>() {
                 @Override
@@ -376,9 +429,479 @@ public class Yoke {
         } else {
             server.listen(port, address);
         }
+    }
+
+    /**
+     * Enables a warm-up phase on *listen*. Before the server is bound the given requests are replayed in-process
+     * through the full middleware chain so the JIT compiles the hot paths before real traffic arrives. The server is
+     * bound once all rounds are replayed or the time budget expires, whichever comes first.
+     *
+     * The requests are a plain JSON array, Yoke does not record traffic. It can be written by hand as below or loaded
+     * from any source, e.g.: a file built from the access logs of the application:
+     *
+     * <pre>
+     * yoke.warmup(new JsonArray()
+     *     .addObject(new JsonObject().putString("url", "/api/users"))
+     *     .addObject(new JsonObject().putString("url", "/").putObject("headers",
+     *         new JsonObject().putString("accept-encoding", "gzip"))), 10000, 30000);
+     * </pre>
+     *
+     * Replayed requests carry the header *x-yoke-warmup: true*, see [WarmUp](core/impl/WarmUp.html) for the format.
+     * The warm-up only applies to servers created by Yoke, not to *listen(HttpServer)*.
+     *
+     * @param requests the requests to replay
+     * @param rounds   how many times the set of requests is replayed
+     * @param budget   maximum duration of the warm-up in milliseconds
+     * @return {Yoke}
+     */
+    public Yoke warmup(JsonArray requests, int rounds, long budget) {
+        checkNotFrozen();
+        warmupRequests = requests;
+        warmupRounds = rounds;
+        warmupBudget = budget;
+        return this;
+    }
+
+    /**
+     * Enables a warm-up phase on *listen* replaying the requests 10000 times within at most 30 seconds.
+     *
+     * @param requests the requests to replay
+     * @return {Yoke}
+     */
+    public Yoke warmup(JsonArray requests) {
+        return warmup(requests, 10000, 30000);
+    }
+
+    /**
+     * Freezes the application. All mount points, router tables, render engines and the default context are compiled
+     * into immutable structures and any further attempt to change the configuration fails with an
+     * IllegalStateException.
+     *
+     * A frozen application can be shared by all instances of a verticle, so the middleware chain is built only once
+     * instead of once per instance. Each instance still calls *listen* to get its own server and event loop:
+     *
+     * <pre>
+     * public class MyVerticle extends Verticle {
+     *   public void start() {
+     *     ConcurrentMap&lt;String, Yoke.Shared&gt; apps = vertx.sharedData().getMap("apps");
+     *     Yoke.Shared shared = apps.get("my-app");
+     *     if (shared == null) {
+     *       Yoke.Shared app = new Yoke(this).use(...).freeze().share();
+     *       shared = apps.putIfAbsent("my-app", app);
+     *       if (shared == null) {
+     *         shared = app;
+     *       }
+     *     }
+     *     shared.yoke().listen(8080);
+     *   }
+     * }
+     * </pre>
+     *
+     * When shared the same middleware instances handle requests from several event loops so they must not keep per
+     * request state in fields. The bundled middleware and engines are safe to share.
+     *
+     * @return {Yoke}
+     */
+    public Yoke freeze() {
+        if (!frozen) {
+            for (MountedMiddleware mountedMiddleware : middlewareList) {
+                mountedMiddleware.middleware.freeze();
+            }
+            if (errorHandler != null) {
+                errorHandler.freeze();
+            }
+
+            mountTrie();
+            defaultContext = Collections.unmodifiableMap(new HashMap<>(defaultContext));
+            engineMap = Collections.unmodifiableMap(new HashMap<>(engineMap));
+            frozen = true;
+        }
+        return this;
+    }
+
+    /**
+     * Returns a handle on this application that can be stored in Vert.x shared data. Only frozen applications can be
+     * shared, a mutable application would be changed from several event loops without synchronization.
+     *
+     * @return {Shared}
+     * @throws IllegalStateException if the application is not [frozen](#freeze)
+     */
+    public Shared share() {
+        if (!frozen) {
+            throw new IllegalStateException("Only frozen Yoke applications can be shared");
+        }
+        return new Shared(this);
+    }
+
+    /**
+     * A [frozen](#freeze) application that can be stored in Vert.x shared data, see [share](#share).
+     */
+    public static final class Shared implements Shareable {
+
+        private final Yoke yoke;
+
+        private Shared(Yoke yoke) {
+            this.yoke = yoke;
+        }
+
+        /**
+         * @return the frozen application
+         */
+        public Yoke yoke() {
+            return yoke;
+        }
+    }
+
+    /**
+     * Returns true once the application was [frozen](#freeze).
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Returns the [WheelTimer](util/WheelTimer.html) of the current event loop. Middleware that keeps per request
+     * deadlines (timeouts, session expiration, rate limits) should use it instead of a Vert.x timer per request.
+     *
+     * <pre>
+     * WheelTimer.Task task = yoke.timer().schedule(1000, handler);
+     * </pre>
+     *
+     * @return {WheelTimer}
+     */
+    public WheelTimer timer() {
+        return WheelTimer.current(vertx);
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("Yoke application is frozen and cannot be modified");
+        }
+    }
+
+    /**
+     * Returns the compiled lookup of the mounted middleware, compiling it if the chain changed since the last call.
+     */
+    private MountTrie mountTrie() {
+        if (mountTrie == null) {
+            List<String> mounts = new ArrayList<>(middlewareList.size());
+            List<Middleware> middleware = new ArrayList<>(middlewareList.size());
+            for (MountedMiddleware mountedMiddleware : middlewareList) {
+                mounts.add(mountedMiddleware.mount);
+                middleware.add(mountedMiddleware.middleware);
+            }
+            mountTrie = new MountTrie(mounts, middleware);
+        }
+        return mountTrie;
+    }
+
+    /**
+     * Enables request recycling, see [recycle(boolean)](#recycle).
+     *
+     * @return {Yoke}
+     */
+    public Yoke recycle() {
+        return recycle(false);
+    }
+
+    /**
+     * Enables request recycling. When enabled the request, response, context and chain walker objects are not
+     * allocated per request but taken from a pool owned by the event loop of the server and reset once the response
+     * ended. Middleware must not keep references to the request or response after *end()*, e.g.: in timers or async
+     * callbacks, since those objects will be reused by another request.
+     *
+     * When debug is true, the recycled objects are never reused and their underlying Vert.x request and response as
+     * well as the request context (```request.get```/```request.put```) are replaced with guards that throw an
+     * IllegalStateException on any access, so a middleware keeping a reference after *end()* fails loudly.
+     *
+     * Recycling is only available with the default request wrapper, other language bindings keep allocating a new
+     * request per call.
+     *
+     * @param debug fail on any access to a request after its response ended
+     * @return {Yoke}
+     */
+    public Yoke recycle(boolean debug) {
+        checkNotFrozen();
+        this.recycle = true;
+        this.recycleDebug = debug;
         return this;
     }
 
+    /**
+     * Request recycling mode
+     */
+    private boolean recycle;
+    private boolean recycleDebug;
+
+    /**
+     * Maximum number of idle requests kept by the pool of each server
+     */
+    private static final int MAX_POOL_SIZE = 1024;
+
+    /**
+     * Marker for a continuation without error
+     */
+    private static final Object NO_ERROR = new Object();
+
+    /**
+     * Walks the middleware chain of a single request, in recycle mode instances are reused across requests. Without
+     * recycling the walker is the next() handler itself, so a dispatch allocates a single object.
+     */
+    private final class Dispatcher implements Handler<Object> {
+        // reused across requests, every dispatch gets its own next() handler
+        final boolean reused;
+
+        YokeRequest request;
+        Middleware[] chain;
+        int currentMiddleware;
+
+        // stamp of the current dispatch, next() handlers of previous dispatches hold an older one
+        int generation;
+        Handler<Object> next;
+
+        Dispatcher(boolean reused) {
+            this.reused = reused;
+        }
+
+        void dispatch(YokeRequest request, Middleware[] chain) {
+            this.request = request;
+            this.chain = chain;
+            this.currentMiddleware = -1;
+            this.next = reused ? new Next(++generation) : this;
+
+            // add x-powered-by header is enabled
+            Boolean poweredBy = request.get("x-powered-by");
+            if (poweredBy != null && poweredBy) {
+                request.response().putHeader("x-powered-by", "yoke");
+            }
+
+            next.handle(null);
+        }
+
+        @Override
+        public void handle(Object error) {
+            // only used as next() when the walker is not reused
+            proceed(generation, error);
+        }
+
+        void release() {
+            request = null;
+            chain = null;
+            next = null;
+            generation++;
+        }
+
+        // trampoline state, while the loop is running a synchronous call to next() only records the continuation
+        boolean running;
+        Object pending;
+        // further continuations, only when a middleware calls next() more than once before returning
+        Deque<Object> queued;
+
+        void proceed(int stamp, Object error) {
+            if (stamp != generation) {
+                if (recycleDebug) {
+                    throw new IllegalStateException("next() called after the response ended and the request was recycled");
+                }
+                // a late next() of a previous request must not advance the chain of the request reusing this walker
+                return;
+            }
+
+            final Object continuation = error == null ? NO_ERROR : error;
+
+            if (running) {
+                // a middleware called next() synchronously, the loop below will continue the chain once it returns
+                if (pending == null) {
+                    pending = continuation;
+                } else {
+                    if (queued == null) {
+                        queued = new ArrayDeque<>();
+                    }
+                    queued.addLast(continuation);
+                }
+                return;
+            }
+
+            running = true;
+            try {
+                Object err = continuation;
+                while (err != null) {
+                    step(err == NO_ERROR ? null : err);
+                    err = poll();
+                }
+            } finally {
+                running = false;
+                pending = null;
+                if (queued != null) {
+                    queued.clear();
+                }
+            }
+        }
+
+        private Object poll() {
+            final Object continuation = pending;
+            if (continuation != null) {
+                pending = queued == null ? null : queued.pollFirst();
+            }
+            return continuation;
+        }
+
+        private void step(Object error) {
+            if (error == null) {
+                currentMiddleware++;
+                if (currentMiddleware < chain.length) {
+                    chain[currentMiddleware].handle(request, next);
+                } else {
+                    HttpServerResponse response = request.response();
+                    // reached the end and no handler was able to answer the request
+                    response.setStatusCode(404);
+                    response.setStatusMessage(HttpResponseStatus.valueOf(404).reasonPhrase());
+                    if (errorHandler != null) {
+                        errorHandler.handle(request, null);
+                    } else {
+                        response.end(HttpResponseStatus.valueOf(404).reasonPhrase());
+                    }
+                }
+            } else {
+                request.put(Context.ERROR, error);
+                if (errorHandler != null) {
+                    errorHandler.handle(request, null);
+                } else {
+                    HttpServerResponse response = request.response();
+
+                    int errorCode;
+                    // if the error was set on the response use it
+                    if (response.getStatusCode() >= 400) {
+                        errorCode = response.getStatusCode();
+                    } else {
+                        // if it was set as the error object use it
+                        if (error instanceof Number) {
+                            errorCode = ((Number) error).intValue();
+                        } else if (error instanceof YokeException) {
+                            errorCode = ((YokeException) error).getErrorCode().intValue();
+                        } else {
+                            // default error code
+                            errorCode = 500;
+                        }
+                    }
+
+                    response.setStatusCode(errorCode);
+                    response.setStatusMessage(HttpResponseStatus.valueOf(errorCode).reasonPhrase());
+                    response.end(HttpResponseStatus.valueOf(errorCode).reasonPhrase());
+                }
+            }
+        }
+
+        /**
+         * The next() handler given to the middleware of a single dispatch.
+         */
+        final class Next implements Handler<Object> {
+            final int generation;
+
+            Next(int generation) {
+                this.generation = generation;
+            }
+
+            @Override
+            public void handle(Object error) {
+                proceed(generation, error);
+            }
+        }
+    }
+
+    /**
+     * Pool of recycled requests. A pool belongs to a single server request handler and therefore to a single event
+     * loop, so no synchronization is required.
+     */
+    private final class RequestPool {
+        final boolean secure;
+        final Deque<PooledRequest> idle = new ArrayDeque<>();
+
+        RequestPool(boolean secure) {
+            this.secure = secure;
+        }
+
+        void dispatch(HttpServerRequest req) {
+            PooledRequest pooled = idle.pollLast();
+            if (pooled == null) {
+                pooled = new PooledRequest(this, req);
+            } else {
+                pooled.request.recycle(req);
+            }
+
+            // release the request once the response ended
+            pooled.ended = false;
+            pooled.response.endHandler(pooled);
+            pooled.dispatcher.dispatch(pooled.request, mountTrie().match(req.path()));
+        }
+    }
+
+    /**
+     * A request, response, context and chain walker that are reused together.
+     */
+    private final class PooledRequest implements Handler<Void> {
+        final RequestPool pool;
+        final YokeRequest request;
+        final YokeResponse response;
+        final Context context;
+        final Dispatcher dispatcher = new Dispatcher(true);
+        // the response might be ended more than once, e.g.: end() followed by close()
+        boolean ended;
+
+        // end handlers run while the middleware that ended the response is still on the stack, release on the next tick
+        final Handler<Void> release = new Handler<Void>() {
+            @Override
+            public void handle(Void event) {
+                dispatcher.release();
+
+                if (recycleDebug) {
+                    // never reuse and fail on any further access
+                    request.recycle(RecycledGuard.REQUEST);
+                    context.invalidate();
+                } else if (pool.idle.size() < MAX_POOL_SIZE) {
+                    pool.idle.addLast(PooledRequest.this);
+                }
+            }
+        };
+
+        PooledRequest(RequestPool pool, HttpServerRequest req) {
+            this.context = new Context(defaultContext);
+            this.pool = pool;
+            this.response = new YokeResponse(req.response(), context, engineMap);
+            this.request = new YokeRequest(req, response, pool.secure, context, store);
+        }
+
+        @Override
+        public void handle(Void event) {
+            if (!ended) {
+                ended = true;
+                vertx.runOnContext(release);
+            }
+        }
+    }
+
+    /**
+     * Guards installed on recycled requests when running in debug mode.
+     */
+    private static final class RecycledGuard implements InvocationHandler {
+        static final HttpServerRequest REQUEST = (HttpServerRequest) Proxy.newProxyInstance(
+                Yoke.class.getClassLoader(),
+                new Class<?>[] {HttpServerRequest.class},
+                new RecycledGuard());
+
+        static final HttpServerResponse RESPONSE = (HttpServerResponse) Proxy.newProxyInstance(
+                Yoke.class.getClassLoader(),
+                new Class<?>[] {HttpServerResponse.class},
+                new RecycledGuard());
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if ("response".equals(method.getName())) {
+                return RESPONSE;
+            }
+            throw new IllegalStateException("Request used after the response ended: " + method.getName() + "()");
+        }
+    }
+
     /**
      * Starts listening at a already created server.
      *
@@ -388,77 +911,21 @@ public class Yoke {
     public Yoke listen(final HttpServer server) {
         // is this server HTTPS?
         final boolean secure = server.isSSL();
+        // other language bindings need their own request types
+        final RequestPool pool = recycle && requestWrapper instanceof DefaultRequestWrapper ? new RequestPool(secure) : null;
 
         server.requestHandler(new Handler<HttpServerRequest>() {
             @Override
             public void handle(HttpServerRequest req) {
-                // the context map is shared with all middlewares
-                final YokeRequest request = requestWrapper.wrap(req, secure, new Context(defaultContext), engineMap, store);
-
-                // add x-powered-by header is enabled
-                Boolean poweredBy = request.get("x-powered-by");
-                if (poweredBy != null && poweredBy) {
-                    request.response().putHeader("x-powered-by", "yoke");
+                if (pool != null) {
+                    pool.dispatch(req);
+                    return;
                 }
 
-                new Handler<Object>() {
-                    int currentMiddleware = -1;
-
-                    @Override
-                    public void handle(Object error) {
-                        if (error == null) {
-                            currentMiddleware++;
-                            if (currentMiddleware < middlewareList.size()) {
-                                MountedMiddleware mountedMiddleware = middlewareList.get(currentMiddleware);
-
-                                if (request.path().startsWith(mountedMiddleware.mount)) {
-                                    Middleware middlewareItem = mountedMiddleware.middleware;
-                                    middlewareItem.handle(request, this);
-                                } else {
-                                    // the middleware was not mounted on this uri, skip to the next entry
-                                    handle(null);
-                                }
-                            } else {
-                                HttpServerResponse response = request.response();
-                                // reached the end and no handler was able to answer the request
-                                response.setStatusCode(404);
-                                response.setStatusMessage(HttpResponseStatus.valueOf(404).reasonPhrase());
-                                if (errorHandler != null) {
-                                    errorHandler.handle(request, null);
-                                } else {
-                                    response.end(HttpResponseStatus.valueOf(404).reasonPhrase());
-                                }
-                            }
-                        } else {
-                            request.put("error", error);
-                            if (errorHandler != null) {
-                                errorHandler.handle(request, null);
-                            } else {
-                                HttpServerResponse response = request.response();
-
-                                int errorCode;
-                                // if the error was set on the response use it
-                                if (response.getStatusCode() >= 400) {
-                                    errorCode = response.getStatusCode();
-                                } else {
-                                    // if it was set as the error object use it
-                                    if (error instanceof Number) {
-                                        errorCode = ((Number) error).intValue();
-                                    } else if (error instanceof YokeException) {
-                                        errorCode = ((YokeException) error).getErrorCode().intValue();
-                                    } else {
-                                        // default error code
-                                        errorCode = 500;
-                                    }
-                                }
-
-                                response.setStatusCode(errorCode);
-                                response.setStatusMessage(HttpResponseStatus.valueOf(errorCode).reasonPhrase());
-                                response.end(HttpResponseStatus.valueOf(errorCode).reasonPhrase());
-                            }
-                        }
-                    }
-                }.handle(null);
+                // the context map is shared with all middlewares
+                final YokeRequest request = requestWrapper.wrap(req, secure, new Context(defaultContext), engineMap, store);
+                // only the middleware mounted on a prefix of this path, in registration order
+                new Dispatcher(false).dispatch(request, mountTrie().match(request.path()));
             }
         });
         return this;
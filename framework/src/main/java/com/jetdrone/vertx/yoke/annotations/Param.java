@@ -12,9 +12,17 @@ import java.lang.annotation.Target;
  * # Path
  *
  * Annotate a method with the param to be mounted in the middleware chain.
+ *
+ * On an argument of an annotated route method the param is bound to the argument, converted to its type
+ * (```String```, ```int```, ```long```, ```boolean``` or ```UUID```), invalid values end the request with ```400```:
+ *
+ * <pre>
+ * &#64;GET("/users/:id")
+ * public void get(YokeRequest request, &#64;Param("id") long id) {...}
+ * </pre>
  */
 @Retention(RetentionPolicy.RUNTIME)
-@Target({ElementType.METHOD, ElementType.TYPE, ElementType.FIELD, ElementType.LOCAL_VARIABLE})
+@Target({ElementType.METHOD, ElementType.TYPE, ElementType.FIELD, ElementType.LOCAL_VARIABLE, ElementType.PARAMETER})
 public @interface Param {
     String value();
 }
@@ -0,0 +1,319 @@
+/**
+ * Copyright 2011-2014 the original author or authors.
+ */
+package com.jetdrone.vertx.yoke.annotations.processor;
+
+import com.jetdrone.vertx.yoke.annotations.*;
+import com.jetdrone.vertx.yoke.middleware.Router;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
+import java.util.*;
+
+/**
+ * # RouterProcessor
+ *
+ * Annotation processor that generates at compile time the route registration of classes with methods annotated with
+ * the HTTP verb annotations (```@GET```, ```@POST```, ...). For each class a ```<binary name>$$YokeRoutes``` class
+ * implementing [Router.Table](../../middleware/Router.html) is generated in the same package, it registers the
+ * annotated methods with direct calls so [Router.from](../../middleware/Router.html#from) needs no reflection nor
+ * annotation scanning at startup.
+ *
+ * The processor is registered as a service in the framework jar so it runs whenever code is compiled with Yoke in the
+ * classpath. Classes that cannot be referenced from generated code in their package (private or local classes) are
+ * skipped and keep being scanned at runtime.
+ */
+public class RouterProcessor extends AbstractProcessor {
+
+    private static final String SUFFIX = "$$YokeRoutes";
+
+    private static final String YOKE_REQUEST = "com.jetdrone.vertx.yoke.middleware.YokeRequest";
+    private static final String HANDLER = "org.vertx.java.core.Handler";
+    private static final String ROUTER = "com.jetdrone.vertx.yoke.middleware.Router";
+
+    private static final Map<Class<? extends Annotation>, String> VERBS = new LinkedHashMap<>();
+
+    static {
+        VERBS.put(GET.class, "get");
+        VERBS.put(PUT.class, "put");
+        VERBS.put(POST.class, "post");
+        VERBS.put(DELETE.class, "delete");
+        VERBS.put(OPTIONS.class, "options");
+        VERBS.put(HEAD.class, "head");
+        VERBS.put(TRACE.class, "trace");
+        VERBS.put(PATCH.class, "patch");
+        VERBS.put(CONNECT.class, "connect");
+        VERBS.put(ALL.class, "all");
+    }
+
+    private final Set<String> generated = new HashSet<>();
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        Set<String> types = new HashSet<>();
+        for (Class<? extends Annotation> verb : VERBS.keySet()) {
+            types.add(verb.getCanonicalName());
+        }
+        return types;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        // classes that declare annotated methods
+        Set<TypeElement> types = new LinkedHashSet<>();
+
+        for (Class<? extends Annotation> verb : VERBS.keySet()) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(verb)) {
+                if (element.getKind() == ElementKind.METHOD && element.getEnclosingElement() instanceof TypeElement) {
+                    types.add((TypeElement) element.getEnclosingElement());
+                }
+            }
+        }
+
+        for (TypeElement type : types) {
+            if (isAccessible(type) && generated.add(type.getQualifiedName().toString())) {
+                try {
+                    generate(type);
+                } catch (IOException e) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, "Cannot generate routes, reflection is used instead: " + e.getMessage(), type);
+                }
+            }
+        }
+
+        // the annotations are also read at runtime, let other processors see them
+        return false;
+    }
+
+    private void generate(TypeElement type) throws IOException {
+        final String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        final String pkg = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        final String simpleName = (pkg.length() == 0 ? binaryName : binaryName.substring(pkg.length() + 1)) + SUFFIX;
+        final String target = type.getQualifiedName().toString();
+
+        final StringBuilder body = new StringBuilder();
+
+        // same rules as the runtime scan: public methods, including the inherited ones
+        for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type))) {
+            if (!method.getModifiers().contains(Modifier.PUBLIC) || !isRoute(method)) {
+                continue;
+            }
+
+            final int offset = offset(method);
+            if (offset == 0) {
+                continue;
+            }
+
+            // remaining arguments are bound to params
+            final List<String> params = new ArrayList<>();
+            final StringBuilder args = new StringBuilder(offset == 1 ? "request" : "request, (" + HANDLER + ") next");
+            if (!params(method, offset, params, args)) {
+                continue;
+            }
+
+            String[] consumes = null;
+            String[] produces = null;
+
+            Consumes c = method.getAnnotation(Consumes.class);
+            if (c == null) {
+                c = type.getAnnotation(Consumes.class);
+            }
+            if (c != null) {
+                consumes = c.value();
+            }
+
+            Produces p = method.getAnnotation(Produces.class);
+            if (p == null) {
+                p = type.getAnnotation(Produces.class);
+            }
+            if (p != null) {
+                produces = p.value();
+            }
+
+            final String receiver = method.getModifiers().contains(Modifier.STATIC) ? target : "target";
+
+            for (Map.Entry<Class<? extends Annotation>, String> verb : VERBS.entrySet()) {
+                Annotation a = method.getAnnotation(verb.getKey());
+                if (a == null) {
+                    continue;
+                }
+
+                body.append("        router.").append(verb.getValue()).append('(').append(literal(path(a))).append(", new " + ROUTER + ".Annotated(")
+                        .append(literal(consumes)).append(", ").append(literal(produces)).append(params(params)).append(") {\n")
+                        .append("            @Override\n")
+                        .append("            protected void invoke(").append(YOKE_REQUEST).append(" request, ").append(HANDLER).append("<Object> next, String[] values) throws Throwable {\n")
+                        .append("                ").append(receiver).append('.').append(method.getSimpleName())
+                        .append('(').append(args).append(");\n")
+                        .append("            }\n")
+                        .append("        });\n");
+            }
+        }
+
+        final JavaFileObject file = processingEnv.getFiler().createSourceFile(pkg.length() == 0 ? simpleName : pkg + "." + simpleName, type);
+
+        try (Writer out = file.openWriter()) {
+            if (pkg.length() != 0) {
+                out.write("package " + pkg + ";\n\n");
+            }
+            out.write("/**\n * Routes of {@link " + target + "}, generated by " + RouterProcessor.class.getName() + ".\n */\n");
+            out.write("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+            out.write("public final class " + simpleName + " implements " + ROUTER + ".Table<" + target + "> {\n\n");
+            out.write("    @Override\n");
+            out.write("    public void register(" + ROUTER + " router, final " + target + " target) {\n");
+            out.write(body.toString());
+            out.write("    }\n");
+            out.write("}\n");
+        }
+    }
+
+    private static boolean isRoute(ExecutableElement method) {
+        for (Class<? extends Annotation> verb : VERBS.keySet()) {
+            if (method.getAnnotation(verb) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return 1 for methods starting with (YokeRequest), 2 for (YokeRequest, Handler), 0 otherwise
+     */
+    private int offset(ExecutableElement method) {
+        List<? extends VariableElement> params = method.getParameters();
+
+        if (params.size() >= 1 && is(params.get(0).asType(), YOKE_REQUEST)) {
+            if (params.size() >= 2 && is(params.get(1).asType(), HANDLER)) {
+                return 2;
+            }
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Collects the names of the [Param](../Param.html) arguments and appends their conversion to the call arguments.
+     *
+     * @return false if a remaining argument is not annotated or its type cannot be converted
+     */
+    private boolean params(ExecutableElement method, int offset, List<String> names, StringBuilder args) {
+        List<? extends VariableElement> params = method.getParameters();
+
+        for (int i = offset; i < params.size(); i++) {
+            final Param param = params.get(i).getAnnotation(Param.class);
+            final String converter = Router.Annotated.converter(processingEnv.getTypeUtils().erasure(params.get(i).asType()).toString());
+
+            if (param == null || converter == null) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, "Argument cannot be bound, the method is not a route", params.get(i));
+                return false;
+            }
+
+            args.append(", ").append(ROUTER).append(".Annotated.").append(converter).append('(')
+                    .append(literal(param.value())).append(", values[").append(names.size()).append("])");
+            names.add(param.value());
+        }
+        return true;
+    }
+
+    private static String params(List<String> names) {
+        StringBuilder sb = new StringBuilder();
+        for (String name : names) {
+            sb.append(", ").append(literal(name));
+        }
+        return sb.toString();
+    }
+
+    private boolean is(TypeMirror type, String name) {
+        return processingEnv.getTypeUtils().erasure(type).toString().equals(name);
+    }
+
+    /**
+     * Generated classes live in the package of the annotated class, so the class and all enclosing classes must be
+     * visible from there.
+     */
+    private static boolean isAccessible(TypeElement type) {
+        Element element = type;
+        while (element instanceof TypeElement) {
+            TypeElement t = (TypeElement) element;
+            if (t.getModifiers().contains(Modifier.PRIVATE)) {
+                return false;
+            }
+            if (t.getNestingKind() != NestingKind.TOP_LEVEL && t.getNestingKind() != NestingKind.MEMBER) {
+                return false;
+            }
+            // instances of inner classes are fine, only the type name is referenced
+            element = t.getEnclosingElement();
+        }
+        return true;
+    }
+
+    private static String path(Annotation a) {
+        if (a instanceof GET) return ((GET) a).value();
+        if (a instanceof PUT) return ((PUT) a).value();
+        if (a instanceof POST) return ((POST) a).value();
+        if (a instanceof DELETE) return ((DELETE) a).value();
+        if (a instanceof OPTIONS) return ((OPTIONS) a).value();
+        if (a instanceof HEAD) return ((HEAD) a).value();
+        if (a instanceof TRACE) return ((TRACE) a).value();
+        if (a instanceof PATCH) return ((PATCH) a).value();
+        if (a instanceof CONNECT) return ((CONNECT) a).value();
+        return ((ALL) a).value();
+    }
+
+    private static String literal(String[] values) {
+        if (values == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder("new String[] {");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(literal(values[i]));
+        }
+        return sb.append('}').toString();
+    }
+
+    private static String literal(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c > 0x7e) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
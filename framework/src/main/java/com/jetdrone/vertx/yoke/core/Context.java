@@ -10,14 +10,75 @@ import java.util.*;
  * Context represents the state of a request. Internally it is a Map that allows read write operations and under it
  * there is the application context that only allows read operations. Adding elements to the context with the same
  * name as entries in the application context, shadows the application context entries.
+ *
+ * Well known keys (e.g.: ```session```, ```user```, ```error```) are registered to fixed slots and stored in a small
+ * array, only ad-hoc keys fall back to a map which is allocated on first use. Middleware that writes its own keys on
+ * every request can register them with [register](#register) and access them by slot, which skips the key lookup:
+ *
+ * <pre>
+ * private static final int TOKEN = Context.register("token");
+ * ...
+ * request.put(TOKEN, token);
+ * </pre>
  */
 public final class Context implements Map<String, Object> {
 
+    /**
+     * Marker for keys explicitly set to null
+     */
+    private static final Object NULL = new Object();
+
+    /**
+     * Registry of well known keys, replaced on write so readers never lock
+     */
+    private static volatile Map<String, Integer> slots = Collections.emptyMap();
+    private static volatile String[] slotNames = new String[0];
+
+    public static final int SESSION = register("session");
+    public static final int USER = register("user");
+    public static final int ERROR = register("error");
+    public static final int CANCELED = register("canceled");
+    public static final int CSRF = register("_csrf");
+
+    /**
+     * Registers a well known key so it gets a fixed slot on every context. Registering the same key again returns the
+     * existing slot.
+     *
+     * @param key the key
+     * @return the slot index
+     */
+    public static synchronized int register(String key) {
+        Integer slot = slots.get(key);
+        if (slot != null) {
+            return slot;
+        }
+
+        Map<String, Integer> newSlots = new HashMap<>(slots);
+        String[] newSlotNames = Arrays.copyOf(slotNames, slotNames.length + 1);
+        slot = newSlotNames.length - 1;
+        newSlots.put(key, slot);
+        newSlotNames[slot] = key;
+
+        slotNames = newSlotNames;
+        slots = newSlots;
+        return slot;
+    }
+
+    private static int slotOf(Object key) {
+        Integer slot = slots.get(key);
+        return slot == null ? -1 : slot;
+    }
+
     /**
      * ReadOnly sub context (Application Context)
      */
     private final Map<String, Object> ro;
+    // values of the well known keys, null means not set
+    private Object[] values;
+    // ad-hoc keys, null values are masked so a single lookup tells shadowed from missing
     private Map<String, Object> rw;
+    // set when the request of a recycled context must not be used anymore
+    private boolean invalid;
 
     /**
      * Create a new Context with the given Read Only sub context
@@ -26,112 +87,243 @@ public final class Context implements Map<String, Object> {
      */
     public Context(Map<String, Object> ro) {
         this.ro = ro;
+        this.values = new Object[slotNames.length];
+    }
+
+    /**
+     * Makes any further access to this context fail with an IllegalStateException. Used by the debug mode of request
+     * recycling to catch middleware that keeps a reference to the request after its response ended.
+     */
+    public void invalidate() {
+        clear();
+        invalid = true;
+    }
+
+    private void checkValid() {
+        if (invalid) {
+            throw new IllegalStateException("Context used after the response ended");
+        }
+    }
+
+    private Object getSlot(int slot) {
+        checkValid();
+        return slot < values.length ? values[slot] : null;
+    }
+
+    private Object setSlot(int slot, Object value) {
+        checkValid();
+        if (slot >= values.length) {
+            // a key was registered after this context was created
+            values = Arrays.copyOf(values, slotNames.length);
+        }
+        Object previous = values[slot];
+        values[slot] = value;
+        return previous;
+    }
+
+    private static Object unmask(Object value) {
+        return value == NULL ? null : value;
+    }
+
+    private static Object mask(Object value) {
+        return value == null ? NULL : value;
+    }
+
+    private boolean containsLocalKey(Object o) {
+        int slot = slotOf(o);
+        if (slot != -1) {
+            return getSlot(slot) != null;
+        }
+
+        return rw != null && rw.containsKey(o);
+    }
+
+    /**
+     * Creates a snapshot of the visible entries, local entries shadow the application context.
+     */
+    private Map<String, Object> snapshot() {
+        checkValid();
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                snapshot.put(slotNames[i], unmask(values[i]));
+            }
+        }
+
+        if (rw != null) {
+            for (Entry<String, Object> entry : rw.entrySet()) {
+                snapshot.put(entry.getKey(), unmask(entry.getValue()));
+            }
+        }
+
+        for (Entry<String, Object> entry : ro.entrySet()) {
+            if (!snapshot.containsKey(entry.getKey())) {
+                snapshot.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return snapshot;
     }
 
     @Override
     public int size() {
-        return ro.size() + (rw == null ? 0 : rw.size());
+        checkValid();
+        int size = rw == null ? 0 : rw.size();
+
+        for (Object value : values) {
+            if (value != null) {
+                size++;
+            }
+        }
+
+        for (String key : ro.keySet()) {
+            if (!containsLocalKey(key)) {
+                size++;
+            }
+        }
+
+        return size;
     }
 
     @Override
     public boolean isEmpty() {
-        return ro.isEmpty() || rw == null || rw.isEmpty();
+        return size() == 0;
     }
 
     @Override
     public boolean containsKey(Object o) {
-        if (rw != null) {
-            if (rw.containsKey(o)) {
-                return true;
-            }
-        }
+        checkValid();
+        return containsLocalKey(o) || ro.containsKey(o);
+    }
 
-        return ro.containsKey(o);
+    /**
+     * Same as containsKey for the key registered to the given slot.
+     *
+     * @param slot a slot returned by [register](#register)
+     */
+    public boolean containsKey(int slot) {
+        return getSlot(slot) != null || ro.containsKey(slotNames[slot]);
     }
 
     @Override
     public boolean containsValue(Object o) {
-        if (rw != null) {
-            if (rw.containsValue(o)) {
-                return true;
-            }
-        }
-
-        return ro.containsValue(o);
+        return snapshot().containsValue(o);
     }
 
     @Override
     public Object get(Object o) {
+        checkValid();
+        int slot = slotOf(o);
+        if (slot != -1) {
+            return get(slot);
+        }
+
         if (rw != null) {
-            if (rw.containsKey(o)) {
-                return rw.get(o);
+            Object value = rw.get(o);
+            if (value != null) {
+                return unmask(value);
             }
         }
 
         return ro.get(o);
     }
 
+    /**
+     * Same as get for the key registered to the given slot.
+     *
+     * @param slot a slot returned by [register](#register)
+     */
+    public Object get(int slot) {
+        Object value = getSlot(slot);
+        if (value != null) {
+            return unmask(value);
+        }
+        return ro.get(slotNames[slot]);
+    }
+
     @Override
     public Object put(String s, Object o) {
+        checkValid();
+        int slot = slotOf(s);
+        if (slot != -1) {
+            return put(slot, o);
+        }
+
         if (rw == null) {
             rw = new LinkedHashMap<>();
         }
-        return rw.put(s, o);
+        return unmask(rw.put(s, mask(o)));
+    }
+
+    /**
+     * Same as put for the key registered to the given slot.
+     *
+     * @param slot a slot returned by [register](#register)
+     */
+    public Object put(int slot, Object o) {
+        return unmask(setSlot(slot, mask(o)));
     }
 
     @Override
     public Object remove(Object o) {
+        checkValid();
+        int slot = slotOf(o);
+        if (slot != -1) {
+            return remove(slot);
+        }
+
         if (rw == null) {
             return null;
         }
-        return rw.remove(o);
+        return unmask(rw.remove(o));
+    }
+
+    /**
+     * Same as remove for the key registered to the given slot.
+     *
+     * @param slot a slot returned by [register](#register)
+     */
+    public Object remove(int slot) {
+        return slot < values.length ? unmask(setSlot(slot, null)) : null;
     }
 
     @Override
     public void putAll(Map<? extends String, ?> map) {
-        if (rw == null) {
-            rw = new LinkedHashMap<>();
+        for (Entry<? extends String, ?> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
         }
-        rw.putAll(map);
     }
 
     @Override
     public void clear() {
+        Arrays.fill(values, null);
         if (rw != null) {
             rw.clear();
         }
     }
 
+    /**
+     * Returns a snapshot of the visible keys, changes to the context are not reflected on the returned set.
+     */
     @Override
     public Set<String> keySet() {
-        if (rw != null) {
-            Set<String> keys = rw.keySet();
-            keys.addAll(ro.keySet());
-            return keys;
-        }
-
-        return ro.keySet();
+        return Collections.unmodifiableSet(snapshot().keySet());
     }
 
+    /**
+     * Returns a snapshot of the visible values, changes to the context are not reflected on the returned collection.
+     */
     @Override
     public Collection<Object> values() {
-        if (rw != null) {
-            Collection<Object> values = rw.values();
-            values.addAll(ro.values());
-            return values;
-        }
-
-        return ro.values();
+        return Collections.unmodifiableCollection(snapshot().values());
     }
 
+    /**
+     * Returns a snapshot of the visible entries, changes to the context are not reflected on the returned set.
+     */
     @Override
     public Set<Entry<String, Object>> entrySet() {
-        if (rw != null) {
-            Set<Entry<String, Object>> entries = new HashSet<>(rw.entrySet());
-            entries.addAll(ro.entrySet());
-            return entries;
-        }
-
-        return ro.entrySet();
+        return Collections.unmodifiableSet(snapshot().entrySet());
     }
 }
@@ -0,0 +1,300 @@
+/**
+ * Copyright 2011-2014 the original author or authors.
+ */
+package com.jetdrone.vertx.yoke.core.impl;
+
+import org.vertx.java.core.buffer.Buffer;
+
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * # ContentDecoder
+ *
+ * Streaming decoder of compressed request bodies (```Content-Encoding: gzip``` or ```deflate```). Chunks are inflated
+ * as they arrive, so the compressed body is never kept in memory, and inflating stops as soon as the decoded body
+ * would exceed the limit, so a small compressed body cannot expand into an arbitrary amount of memory.
+ *
+ * ```deflate``` is the zlib format but some clients send raw deflate data, both are accepted. Concatenated gzip
+ * members are decoded as a single body and their checksums are verified.
+ */
+public final class ContentDecoder {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    // gzip header flags
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    // states
+    private static final int HEADER = 0;
+    private static final int EXTRA_LENGTH = 1;
+    private static final int EXTRA = 2;
+    private static final int NAME = 3;
+    private static final int COMMENT = 4;
+    private static final int HEADER_CRC = 5;
+    private static final int DETECT = 6;
+    private static final int BODY = 7;
+    private static final int TRAILER = 8;
+    private static final int DONE = 9;
+
+    private final boolean gzip;
+    private final long limit;
+    private final byte[] scratch = new byte[8192];
+
+    private Inflater inflater;
+    private int state;
+
+    // bytes of the current header or trailer field
+    private final byte[] field = new byte[10];
+    private int fieldLength;
+    private int flags;
+    private int skip;
+
+    // current gzip member
+    private final CRC32 crc = new CRC32();
+    private long memberSize;
+    private boolean members;
+
+    private long size;
+
+    /**
+     * @param gzip  true for gzip, false for deflate
+     * @param limit maximum length of the decoded body, -1 for unlimited
+     */
+    public ContentDecoder(boolean gzip, long limit) {
+        this.gzip = gzip;
+        this.limit = limit;
+        this.state = gzip ? HEADER : DETECT;
+    }
+
+    /**
+     * @param contentEncoding the ```Content-Encoding``` of the request
+     * @return true for gzip (or ```x-gzip```), false for deflate
+     * @throws IllegalArgumentException if the encoding is not supported
+     */
+    public static boolean isGzip(String contentEncoding) {
+        final String encoding = contentEncoding.trim().toLowerCase();
+        if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+            return true;
+        }
+        if ("deflate".equals(encoding)) {
+            return false;
+        }
+        throw new IllegalArgumentException("Unsupported content encoding: " + contentEncoding);
+    }
+
+    /**
+     * @param contentEncoding the ```Content-Encoding``` of the request, may be null
+     * @return true if the body is encoded, false if it is sent as is
+     */
+    public static boolean isEncoded(String contentEncoding) {
+        return contentEncoding != null && contentEncoding.trim().length() > 0 && !"identity".equalsIgnoreCase(contentEncoding.trim());
+    }
+
+    /**
+     * @return the length of the decoded body so far
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Decodes a chunk of the body.
+     *
+     * @param chunk the encoded chunk
+     * @param out   receives the decoded bytes
+     * @return false if the decoded body exceeds the limit, the decoder is then closed
+     * @throws ZipException if the body is not valid, the decoder is then closed
+     */
+    public boolean decode(Buffer chunk, Buffer out) throws ZipException {
+        final byte[] bytes = chunk.getBytes();
+        int pos = 0;
+
+        try {
+            while (pos < bytes.length) {
+                switch (state) {
+                    case HEADER:
+                        pos = fill(bytes, pos, 10);
+                        if (fieldLength == 10) {
+                            if (((field[0] & 0xff) | ((field[1] & 0xff) << 8)) != GZIP_MAGIC || field[2] != 8) {
+                                throw new ZipException("Not in GZIP format");
+                            }
+                            flags = field[3] & 0xff;
+                            fieldLength = 0;
+                            state = EXTRA_LENGTH;
+                        }
+                        break;
+                    case EXTRA_LENGTH:
+                        if ((flags & FEXTRA) == 0) {
+                            state = NAME;
+                            break;
+                        }
+                        pos = fill(bytes, pos, 2);
+                        if (fieldLength == 2) {
+                            skip = (field[0] & 0xff) | ((field[1] & 0xff) << 8);
+                            fieldLength = 0;
+                            state = EXTRA;
+                        }
+                        break;
+                    case EXTRA:
+                        final int n = Math.min(skip, bytes.length - pos);
+                        pos += n;
+                        skip -= n;
+                        if (skip == 0) {
+                            state = NAME;
+                        }
+                        break;
+                    case NAME:
+                        if ((flags & FNAME) == 0 || bytes[pos++] == 0) {
+                            state = COMMENT;
+                        }
+                        break;
+                    case COMMENT:
+                        if ((flags & FCOMMENT) == 0 || bytes[pos++] == 0) {
+                            state = HEADER_CRC;
+                        }
+                        break;
+                    case HEADER_CRC:
+                        if ((flags & FHCRC) != 0) {
+                            pos = fill(bytes, pos, 2);
+                            if (fieldLength < 2) {
+                                break;
+                            }
+                            fieldLength = 0;
+                        }
+                        start(true);
+                        break;
+                    case DETECT:
+                        // a zlib header is a deflate method byte and a check value multiple of 31
+                        pos = fill(bytes, pos, 2);
+                        if (fieldLength == 2) {
+                            final int cmf = field[0] & 0xff;
+                            final int flg = field[1] & 0xff;
+                            fieldLength = 0;
+                            start((cmf & 0x0f) != 8 || ((cmf << 8) | flg) % 31 != 0);
+                            if (!inflate(field, 0, 2, out)) {
+                                return false;
+                            }
+                        }
+                        break;
+                    case BODY:
+                        final int remaining = bytes.length - pos;
+                        if (!inflate(bytes, pos, remaining, out)) {
+                            return false;
+                        }
+                        // the stream may end before the chunk
+                        pos = bytes.length - (state == BODY ? 0 : inflater.getRemaining());
+                        break;
+                    case TRAILER:
+                        pos = fill(bytes, pos, 8);
+                        if (fieldLength == 8) {
+                            if (read32(0) != crc.getValue() || read32(4) != (memberSize & 0xffffffffL)) {
+                                throw new ZipException("Corrupt GZIP trailer");
+                            }
+                            fieldLength = 0;
+                            members = true;
+                            // another member may follow
+                            state = HEADER;
+                        }
+                        break;
+                    default:
+                        throw new ZipException("Unexpected data after the end of the body");
+                }
+            }
+            return true;
+        } catch (ZipException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Verifies that the body is complete and releases the decoder.
+     *
+     * @throws ZipException if the body is truncated
+     */
+    public void end() throws ZipException {
+        final boolean complete = gzip ? state == HEADER && fieldLength == 0 && members : state == DONE;
+        close();
+        if (!complete) {
+            throw new ZipException("Unexpected end of the compressed body");
+        }
+    }
+
+    /**
+     * Releases the inflater, the decoder cannot be used afterwards.
+     */
+    public void close() {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        state = DONE;
+    }
+
+    private void start(boolean nowrap) {
+        if (inflater == null) {
+            inflater = new Inflater(nowrap);
+        } else {
+            inflater.reset();
+        }
+        crc.reset();
+        memberSize = 0;
+        state = BODY;
+    }
+
+    /**
+     * @return false if the limit is exceeded
+     */
+    private boolean inflate(byte[] bytes, int off, int len, Buffer out) throws ZipException {
+        inflater.setInput(bytes, off, len);
+
+        try {
+            while (true) {
+                // never produce more than one byte past the limit
+                final int max = limit == -1 ? scratch.length : (int) Math.min(scratch.length, limit - size + 1);
+                final int n = inflater.inflate(scratch, 0, max);
+
+                if (n > 0) {
+                    size += n;
+                    if (limit != -1 && size > limit) {
+                        close();
+                        return false;
+                    }
+                    crc.update(scratch, 0, n);
+                    memberSize += n;
+                    out.appendBytes(scratch, 0, n);
+                }
+
+                if (inflater.finished()) {
+                    state = gzip ? TRAILER : DONE;
+                    return true;
+                }
+                if (inflater.needsDictionary()) {
+                    throw new ZipException("Preset dictionaries are not supported");
+                }
+                if (n == 0 && inflater.needsInput()) {
+                    return true;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+    }
+
+    private int fill(byte[] bytes, int pos, int length) {
+        final int n = Math.min(length - fieldLength, bytes.length - pos);
+        System.arraycopy(bytes, pos, field, fieldLength, n);
+        fieldLength += n;
+        return pos + n;
+    }
+
+    private long read32(int off) {
+        return (field[off] & 0xffL) | ((field[off + 1] & 0xffL) << 8) | ((field[off + 2] & 0xffL) << 16) | ((field[off + 3] & 0xffL) << 24);
+    }
+}
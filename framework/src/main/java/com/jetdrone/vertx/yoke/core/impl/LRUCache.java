@@ -4,17 +4,23 @@
 package com.jetdrone.vertx.yoke.core.impl;
 
 import java.util.Date;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Double entry LRUCache
+ *
+ * Entries live in a concurrent map so engines used by frozen applications shared by several verticle instances read
+ * templates without taking a lock. Recency is approximated with the clock (second chance) policy: a read marks the
+ * entry as referenced and when the cache is full the eviction walks the entries in insertion order, clearing the mark
+ * of referenced entries and removing the first one that was not read since the previous pass.
+ *
  * @param <R> Raw value (raw value is immutable)
  * @param <C> Compiled value
  */
-public class LRUCache<R, C> extends LinkedHashMap<String, LRUCache.CacheEntry<R, C>> {
-
-    private static final long serialVersionUID = 1l;
+public class LRUCache<R, C> {
 
     /**
      * Generic cache entry.
@@ -23,7 +29,11 @@ public class LRUCache<R, C> extends LinkedHashMap<String, LRUCache.CacheEntry<R,
 
         public final long lastModified;
         public final R raw;
-        public C compiled;
+        public volatile C compiled;
+
+        volatile boolean referenced;
+        // key the entry was put under, set before the entry is queued in the clock
+        volatile String key;
 
         public CacheEntry(Date lastModified, R raw, C compiled) {
             this.lastModified = lastModified.getTime();
@@ -41,19 +51,92 @@ public class LRUCache<R, C> extends LinkedHashMap<String, LRUCache.CacheEntry<R,
     }
 
     private final int maxEntries;
+    private final ConcurrentMap<String, CacheEntry<R, C>> entries = new ConcurrentHashMap<>();
+    // live entries in insertion order, the entry instance tells a queued slot from a newer entry of the same key
+    private final ConcurrentLinkedQueue<CacheEntry<R, C>> clock = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
 
     public LRUCache(final int maxEntries) {
-        super(maxEntries + 1, 1.0f, true);
         this.maxEntries = maxEntries;
     }
 
-    @Override
-    protected boolean removeEldestEntry(final Map.Entry<String, CacheEntry<R, C>> eldest) {
-        return super.size() > maxEntries;
+    public CacheEntry<R, C> get(Object key) {
+        final CacheEntry<R, C> entry = entries.get(key);
+        if (entry != null && !entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry;
+    }
+
+    public CacheEntry<R, C> put(String key, CacheEntry<R, C> value) {
+        value.key = key;
+        final CacheEntry<R, C> previous = entries.put(key, value);
+        clock.add(value);
+        if (previous == null) {
+            if (size.incrementAndGet() > maxEntries) {
+                evict();
+            }
+        } else {
+            // replaced, its slot would never be drained while the cache is not full
+            clock.remove(previous);
+        }
+        return previous;
+    }
+
+    public CacheEntry<R, C> remove(Object key) {
+        final CacheEntry<R, C> previous = entries.remove(key);
+        if (previous != null) {
+            // templates are removed on reload only, the linear scan of the clock is not on the render path
+            clock.remove(previous);
+            size.decrementAndGet();
+        }
+        return previous;
     }
 
     public void putCompiled(String key, C compiled) {
-        CacheEntry<R, C> original = get(key);
-        original.compiled = compiled;
+        final CacheEntry<R, C> original = entries.get(key);
+        // the entry might have been evicted by another thread meanwhile
+        if (original != null) {
+            original.compiled = compiled;
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return the number of slots in the eviction clock
+     */
+    int clockSize() {
+        return clock.size();
+    }
+
+    public void clear() {
+        entries.clear();
+        clock.clear();
+        size.set(0);
+    }
+
+    private void evict() {
+        // one full pass clears every mark, the bound only matters when reads race with the eviction
+        for (int i = 0; i <= 2 * maxEntries; i++) {
+            final CacheEntry<R, C> entry = clock.poll();
+            if (entry == null) {
+                return;
+            }
+            if (entries.get(entry.key) != entry) {
+                // removed or replaced by another thread meanwhile
+                continue;
+            }
+            if (entry.referenced && i < 2 * maxEntries) {
+                entry.referenced = false;
+                clock.add(entry);
+            } else if (entries.remove(entry.key, entry)) {
+                // only when this thread removed it, a concurrent remove of the same entry already counted it
+                size.decrementAndGet();
+                return;
+            }
+        }
     }
 }
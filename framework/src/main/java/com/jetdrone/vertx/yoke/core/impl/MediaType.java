@@ -0,0 +1,198 @@
+/**
+ * Copyright 2011-2014 the original author or authors.
+ */
+package com.jetdrone.vertx.yoke.core.impl;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * # MediaType
+ *
+ * An item of a content negotiation header (```Accept```, ```Accept-Language```, ```Content-Type```, ...) with its
+ * quality. Clients send a handful of distinct header values, so parsed headers are kept in a small global cache and
+ * negotiating the same header again costs a hash lookup, the returned arrays and items are shared and must not be
+ * modified. When the cache is full it is cleared and starts over, so one-off values cannot keep the common ones out.
+ */
+public final class MediaType {
+
+    // distinct header values kept in the cache
+    private static final int CACHE_SIZE = 512;
+    // longer values are parsed but not cached
+    private static final int MAX_LENGTH = 1024;
+
+    private static final Cache<MediaType[]> HEADERS = new Cache<>();
+    private static final Cache<MediaType> TYPES = new Cache<>();
+
+    private static final MediaType[] EMPTY = new MediaType[0];
+
+    private static final Comparator<MediaType> QUALITY = new Comparator<MediaType>() {
+        @Override
+        public int compare(MediaType o1, MediaType o2) {
+            return Float.compare(o2.q, o1.q);
+        }
+    };
+
+    /**
+     * The item as sent, e.g.: ```application/json;q=0.8```
+     */
+    public final String raw;
+    /**
+     * The item without parameters, e.g.: ```application/json```
+     */
+    public final String value;
+    /**
+     * The lower case type, ```*``` for wildcards
+     */
+    public final String type;
+    /**
+     * The lower case subtype, ```*``` for wildcards or when missing
+     */
+    public final String subtype;
+    /**
+     * The quality, 1 when not present
+     */
+    public final float q;
+
+    private MediaType(String raw) {
+        this.raw = raw;
+
+        float quality = 1;
+        int semi = raw.indexOf(';');
+
+        if (semi == -1) {
+            value = raw;
+        } else {
+            value = raw.substring(0, semi).trim();
+
+            while (semi != -1) {
+                int next = raw.indexOf(';', semi + 1);
+                String param = raw.substring(semi + 1, next == -1 ? raw.length() : next).trim();
+                if (param.length() > 2 && param.charAt(0) == 'q') {
+                    int eq = param.indexOf('=');
+                    if (eq != -1 && param.substring(1, eq).trim().length() == 0) {
+                        try {
+                            quality = Float.parseFloat(param.substring(eq + 1).trim());
+                        } catch (NumberFormatException e) {
+                            // ignore an invalid quality
+                        }
+                    }
+                }
+                semi = next;
+            }
+        }
+
+        q = quality;
+
+        int slash = value.indexOf('/');
+        if (slash == -1) {
+            type = value.toLowerCase();
+            subtype = "*";
+        } else {
+            type = value.substring(0, slash).trim().toLowerCase();
+            int end = value.indexOf('/', slash + 1);
+            String sub = value.substring(slash + 1, end == -1 ? value.length() : end).trim().toLowerCase();
+            subtype = sub.length() == 0 ? "*" : sub;
+        }
+    }
+
+    /**
+     * @return true if this type and the other are compatible, wildcards match anything
+     */
+    public boolean matches(MediaType other) {
+        return (type.equals(other.type) || "*".equals(type) || "*".equals(other.type)) &&
+                (subtype.equals(other.subtype) || "*".equals(subtype) || "*".equals(other.subtype));
+    }
+
+    /**
+     * Parses a single media type without its parameters, e.g.: a ```Content-Type``` header. Parameters such as the
+     * multipart ```boundary``` are unique per request, so they are dropped before the value is cached.
+     */
+    public static MediaType of(String value) {
+        final int semi = value.indexOf(';');
+        final String key = semi == -1 ? value : value.substring(0, semi);
+
+        MediaType type = TYPES.get(key);
+        if (type == null) {
+            type = new MediaType(key.trim());
+            TYPES.put(key, type);
+        }
+        return type;
+    }
+
+    /**
+     * Parses a comma separated header into its items sorted by quality, items with the same quality keep the order
+     * of the header.
+     *
+     * @param header the header value, may be null
+     * @return the sorted items, never null
+     */
+    public static MediaType[] parse(String header) {
+        if (header == null) {
+            return EMPTY;
+        }
+
+        MediaType[] items = HEADERS.get(header);
+        if (items == null) {
+            items = split(header);
+            HEADERS.put(header, items);
+        }
+        return items;
+    }
+
+    private static MediaType[] split(String header) {
+        MediaType[] items = new MediaType[8];
+        int count = 0;
+        int start = 0;
+
+        while (start <= header.length()) {
+            int comma = header.indexOf(',', start);
+            if (comma == -1) {
+                comma = header.length();
+            }
+
+            String item = header.substring(start, comma).trim();
+            if (item.length() > 0) {
+                if (count == items.length) {
+                    items = Arrays.copyOf(items, count * 2);
+                }
+                items[count++] = new MediaType(item);
+            }
+            start = comma + 1;
+        }
+
+        items = Arrays.copyOf(items, count);
+        // stable sort, same quality keeps the order of the header
+        Arrays.sort(items, QUALITY);
+        return items;
+    }
+
+    private static final class Cache<T> {
+        private final ConcurrentMap<String, T> map = new ConcurrentHashMap<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        T get(String key) {
+            return map.get(key);
+        }
+
+        void put(String key, T value) {
+            if (key.length() > MAX_LENGTH) {
+                return;
+            }
+            // real clients send few distinct values, when full start over instead of keeping stale ones forever
+            if (size.incrementAndGet() > CACHE_SIZE) {
+                map.clear();
+                size.set(1);
+            }
+            map.put(key, value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return raw;
+    }
+}
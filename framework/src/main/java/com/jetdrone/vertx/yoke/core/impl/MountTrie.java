@@ -0,0 +1,129 @@
+/**
+ * Copyright 2011-2014 the original author or authors.
+ */
+package com.jetdrone.vertx.yoke.core.impl;
+
+import com.jetdrone.vertx.yoke.Middleware;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * # MountTrie
+ *
+ * Compiled lookup structure for mounted middleware. All mount points are inserted into a trie and every node of the
+ * trie holds the ordered chain of middleware that applies to any path reaching it, so a request only walks its own
+ * path and gets back the middleware that should run, in registration order.
+ *
+ * The trie is keyed by character (instead of by path segment) in order to keep the exact semantics of the original
+ * ```path.startsWith(mount)``` test, e.g.: a middleware mounted at ```/api``` also runs for ```/api-v2```.
+ */
+public final class MountTrie {
+
+    private static final Middleware[] EMPTY = new Middleware[0];
+
+    private static final class Node {
+        char[] keys = new char[0];
+        Node[] children = new Node[0];
+        // indexes of the middleware whose mount point ends exactly at this node
+        int[] terminals;
+        // ordered chain of middleware that matches any path that reaches this node
+        Middleware[] chain;
+
+        Node child(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node addChild(char c) {
+            Node node = child(c);
+            if (node == null) {
+                node = new Node();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = c;
+                children[children.length - 1] = node;
+            }
+            return node;
+        }
+
+        void addTerminal(int index) {
+            if (terminals == null) {
+                terminals = new int[] {index};
+            } else {
+                terminals = Arrays.copyOf(terminals, terminals.length + 1);
+                terminals[terminals.length - 1] = index;
+            }
+        }
+    }
+
+    private final Node root = new Node();
+
+    /**
+     * Compiles a trie from the mount points and middleware, both lists are expected to have the same size and to be
+     * in registration order.
+     *
+     * @param mounts     mount point of each middleware
+     * @param middleware the middleware
+     */
+    public MountTrie(List<String> mounts, List<Middleware> middleware) {
+        for (int i = 0; i < mounts.size(); i++) {
+            String mount = mounts.get(i);
+            Node node = root;
+            for (int j = 0; j < mount.length(); j++) {
+                node = node.addChild(mount.charAt(j));
+            }
+            node.addTerminal(i);
+        }
+
+        compile(root, new ArrayList<Integer>(), EMPTY, middleware);
+    }
+
+    private static void compile(Node node, List<Integer> indexes, Middleware[] chain, List<Middleware> middleware) {
+        if (node.terminals != null) {
+            indexes = new ArrayList<>(indexes);
+            for (int index : node.terminals) {
+                indexes.add(index);
+            }
+            // restore the registration order
+            Collections.sort(indexes);
+
+            chain = new Middleware[indexes.size()];
+            for (int i = 0; i < chain.length; i++) {
+                chain[i] = middleware.get(indexes.get(i));
+            }
+        }
+
+        // nodes without mount points share the chain of their closest mounted ancestor
+        node.chain = chain;
+
+        for (Node child : node.children) {
+            compile(child, indexes, chain, middleware);
+        }
+    }
+
+    /**
+     * Returns the ordered chain of middleware that is mounted on a prefix of the given path. The returned array is
+     * shared and must not be modified.
+     *
+     * @param path the request path
+     * @return the matching middleware
+     */
+    public Middleware[] match(String path) {
+        Node node = root;
+        for (int i = 0; i < path.length(); i++) {
+            Node next = node.child(path.charAt(i));
+            if (next == null) {
+                break;
+            }
+            node = next;
+        }
+        return node.chain;
+    }
+}
@@ -0,0 +1,246 @@
+/**
+ * Copyright 2011-2014 the original author or authors.
+ */
+package com.jetdrone.vertx.yoke.core.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * # RouteTree
+ *
+ * Lookup structure for simple route patterns. Patterns are split in path segments and inserted in a tree where each
+ * node has static children (looked up by the segment text) and at most one ```:param``` child, so finding all routes
+ * that match a path costs one hash lookup per segment instead of one regular expression per route.
+ *
+ * Only patterns made of static text and whole segment ```:param``` tokens can be added, anything else (regular
+ * expression characters, params in the middle of a segment) is rejected by [add](#add) and must be evaluated as a
+ * regular expression by the caller. The tree follows the same rules as the patterns compiled by the Router:
+ *
+ * * a param matches any non empty segment,
+ * * a pattern that does not end with ```/``` also matches the path with a trailing ```/```.
+ */
+public final class RouteTree<T> {
+
+    private static final String REGEX_CHARS = "\\^$.|?*+()[]{}";
+
+    /**
+     * A route added to the tree.
+     */
+    public static final class Route<T> {
+        /**
+         * Registration order of the route
+         */
+        public final int order;
+        public final T value;
+        // param names and the index of the segment that holds them
+        final String[] names;
+        final int[] positions;
+
+        Route(int order, T value, String[] names, int[] positions) {
+            this.order = order;
+            this.value = value;
+            this.names = names;
+            this.positions = positions;
+        }
+
+        /**
+         * @return the number of params of the route
+         */
+        public int params() {
+            return names.length;
+        }
+
+        /**
+         * @param index the param index
+         * @return the name of the param
+         */
+        public String name(int index) {
+            return names[index];
+        }
+
+        /**
+         * @param index    the param index
+         * @param segments the segments of the matched path
+         * @return the value of the param
+         */
+        public String value(int index, String[] segments) {
+            return segments[positions[index]];
+        }
+    }
+
+    private static final class Node<T> {
+        Map<String, Node<T>> statics;
+        Node<T> param;
+        // routes that end at this node
+        List<Route<T>> exact;
+        // routes that end at this node and also accept a trailing slash
+        List<Route<T>> slash;
+
+        Node<T> child(String segment) {
+            if (segment.length() > 1 && segment.charAt(0) == ':') {
+                if (param == null) {
+                    param = new Node<>();
+                }
+                return param;
+            }
+
+            if (statics == null) {
+                statics = new HashMap<>();
+            }
+            Node<T> node = statics.get(segment);
+            if (node == null) {
+                node = new Node<>();
+                statics.put(segment, node);
+            }
+            return node;
+        }
+    }
+
+    private final Node<T> root = new Node<>();
+
+    /**
+     * Adds a pattern to the tree.
+     *
+     * @param order   the registration order of the route, matches are returned sorted by it
+     * @param pattern the pattern, e.g.: ```/users/:id```
+     * @param value   the value returned on a match
+     * @return false if the pattern cannot be represented in the tree
+     */
+    public boolean add(int order, String pattern, T value) {
+        final String[] segments = split(pattern);
+        if (segments == null) {
+            return false;
+        }
+
+        final List<String> names = new ArrayList<>();
+        final List<Integer> positions = new ArrayList<>();
+
+        for (int i = 0; i < segments.length; i++) {
+            final String segment = segments[i];
+            if (segment.length() > 1 && segment.charAt(0) == ':') {
+                if (!isParamName(segment)) {
+                    return false;
+                }
+                names.add(segment.substring(1));
+                positions.add(i);
+            } else {
+                for (int j = 0; j < segment.length(); j++) {
+                    final char c = segment.charAt(j);
+                    // regular expressions or params in the middle of a segment
+                    if (REGEX_CHARS.indexOf(c) != -1 || c == ':') {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        Node<T> node = root;
+        for (String segment : segments) {
+            node = node.child(segment);
+        }
+
+        final int[] pos = new int[positions.size()];
+        for (int i = 0; i < pos.length; i++) {
+            pos[i] = positions.get(i);
+        }
+        final Route<T> route = new Route<>(order, value, names.toArray(new String[names.size()]), pos);
+
+        if (pattern.endsWith("/")) {
+            if (node.exact == null) {
+                node.exact = new ArrayList<>();
+            }
+            node.exact.add(route);
+        } else {
+            if (node.slash == null) {
+                node.slash = new ArrayList<>();
+            }
+            node.slash.add(route);
+        }
+        return true;
+    }
+
+    /**
+     * Collects all routes that match the given path segments, in no particular order.
+     *
+     * @param segments the path split with [split](#split)
+     * @param matches  the list to add the matching routes to
+     */
+    public void match(String[] segments, List<Route<T>> matches) {
+        match(root, segments, 0, matches);
+    }
+
+    private static <T> void match(Node<T> node, String[] segments, int index, List<Route<T>> matches) {
+        if (index == segments.length) {
+            if (node.exact != null) {
+                matches.addAll(node.exact);
+            }
+            if (node.slash != null) {
+                matches.addAll(node.slash);
+            }
+            return;
+        }
+
+        final String segment = segments[index];
+
+        if (index == segments.length - 1 && segment.length() == 0 && node.slash != null) {
+            // trailing slash
+            matches.addAll(node.slash);
+        }
+
+        if (node.statics != null) {
+            final Node<T> child = node.statics.get(segment);
+            if (child != null) {
+                match(child, segments, index + 1, matches);
+            }
+        }
+
+        if (node.param != null && segment.length() > 0) {
+            match(node.param, segments, index + 1, matches);
+        }
+    }
+
+    /**
+     * Splits a path into its segments, the leading slash is dropped and empty segments are kept, so ```/a/b/```
+     * becomes ```["a", "b", ""]```.
+     *
+     * @param path the path
+     * @return the segments or null if the path does not start with a slash
+     */
+    public static String[] split(String path) {
+        if (path == null || path.length() == 0 || path.charAt(0) != '/') {
+            return null;
+        }
+
+        int count = 1;
+        for (int i = 1; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                count++;
+            }
+        }
+
+        final String[] segments = new String[count];
+        int start = 1;
+        for (int i = 0; i < count - 1; i++) {
+            final int end = path.indexOf('/', start);
+            segments[i] = path.substring(start, end);
+            start = end + 1;
+        }
+        segments[count - 1] = path.substring(start);
+        return segments;
+    }
+
+    private static boolean isParamName(String segment) {
+        for (int i = 1; i < segment.length(); i++) {
+            final char c = segment.charAt(i);
+            final boolean letter = c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+            // same rule as the Router: [A-Za-z][A-Za-z0-9_]*
+            if (!(letter || i > 1 && (c >= '0' && c <= '9' || c == '_'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
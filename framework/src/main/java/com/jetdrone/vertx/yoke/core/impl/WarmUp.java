@@ -0,0 +1,147 @@
+/**
+ * Copyright 2011-2014 the original author or authors.
+ */
+package com.jetdrone.vertx.yoke.core.impl;
+
+import com.jetdrone.vertx.yoke.Yoke;
+import com.jetdrone.vertx.yoke.test.Response;
+import com.jetdrone.vertx.yoke.test.YokeTester;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.MultiMap;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.http.CaseInsensitiveMultiMap;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * # WarmUp
+ *
+ * Replays a set of requests through the full middleware chain in-process, using the fake requests of
+ * [YokeTester](../../test/YokeTester.html), so the JIT compiles the hot paths before real traffic arrives. Requests are
+ * replayed one after the other until all rounds are done or the time budget expires.
+ *
+ * Each request is a JSON object:
+ * <pre>
+ * {
+ *   method: String, // default GET
+ *   url: String, // path and query string, default /
+ *   headers: JsonObject, // optional
+ *   body: String // optional
+ * }
+ * </pre>
+ *
+ * All replayed requests carry the header ```x-yoke-warmup: true``` so middleware with side effects can skip them.
+ */
+public final class WarmUp {
+
+    private final Vertx vertx;
+    private final YokeTester tester;
+    private final JsonArray requests;
+    private final int rounds;
+    private final long budget;
+
+    private Handler<Integer> doneHandler;
+    private long timerId = -1;
+    private int count;
+    private boolean done;
+
+    /**
+     * @param vertx    the Vert.x instance
+     * @param yoke     the application to warm up
+     * @param requests the requests to replay
+     * @param rounds   how many times the whole set is replayed
+     * @param budget   maximum duration of the warm-up in milliseconds
+     */
+    public WarmUp(Vertx vertx, Yoke yoke, JsonArray requests, int rounds, long budget) {
+        this.vertx = vertx;
+        this.tester = new YokeTester(vertx, yoke);
+        this.requests = requests;
+        this.rounds = rounds;
+        this.budget = budget;
+    }
+
+    /**
+     * Starts the warm-up.
+     *
+     * @param handler called once with the number of replayed requests
+     */
+    public void run(Handler<Integer> handler) {
+        doneHandler = handler;
+
+        if (requests.size() == 0 || rounds <= 0) {
+            finish();
+            return;
+        }
+
+        timerId = vertx.setTimer(budget, new Handler<Long>() {
+            @Override
+            public void handle(Long event) {
+                timerId = -1;
+                finish();
+            }
+        });
+
+        next();
+    }
+
+    private final Handler<Response> completed = new Handler<Response>() {
+        @Override
+        public void handle(Response response) {
+            // yield to the event loop between requests instead of recursing
+            vertx.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    next();
+                }
+            });
+        }
+    };
+
+    private void next() {
+        if (done) {
+            return;
+        }
+
+        if (count == requests.size() * rounds) {
+            finish();
+            return;
+        }
+
+        final JsonObject request = requests.get(count % requests.size());
+        count++;
+
+        final MultiMap headers = new CaseInsensitiveMultiMap();
+        final JsonObject json = request.getObject("headers");
+        if (json != null) {
+            for (String name : json.getFieldNames()) {
+                headers.add(name, String.valueOf(json.getValue(name)));
+            }
+        }
+        headers.set("x-yoke-warmup", "true");
+
+        final String body = request.getString("body");
+
+        try {
+            tester.request(
+                    request.getString("method", "GET"),
+                    request.getString("url", "/"),
+                    headers,
+                    body == null ? new Buffer(0) : new Buffer(body),
+                    completed);
+        } catch (RuntimeException e) {
+            // a request that cannot be replayed does not stop the warm-up
+            completed.handle(null);
+        }
+    }
+
+    private void finish() {
+        if (!done) {
+            done = true;
+            if (timerId != -1) {
+                vertx.cancelTimer(timerId);
+            }
+            doneHandler.handle(count);
+        }
+    }
+}
@@ -4,6 +4,7 @@
 package com.jetdrone.vertx.yoke.middleware;
 
 import com.jetdrone.vertx.yoke.Middleware;
+import com.jetdrone.vertx.yoke.core.Context;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.json.JsonObject;
 
@@ -165,7 +166,7 @@ public class BasicAuth extends Middleware {
                     @Override
                     public void handle(JsonObject json) {
                         if (json != null) {
-                            request.put("user", user);
+                            request.put(Context.USER, user);
                             next.handle(null);
                         } else {
                             handle401(request, next);
@@ -0,0 +1,290 @@
+/**
+ * Copyright 2011-2014 the original author or authors.
+ */
+package com.jetdrone.vertx.yoke.middleware;
+
+import com.jetdrone.vertx.yoke.Middleware;
+import com.jetdrone.vertx.yoke.Yoke;
+import com.jetdrone.vertx.yoke.test.Response;
+import com.jetdrone.vertx.yoke.test.YokeTester;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.MultiMap;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.http.CaseInsensitiveMultiMap;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonElement;
+import org.vertx.java.core.json.JsonObject;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.Map;
+
+/** # Batch
+ *
+ * Executes several requests in a single round trip. The body of the request is a JSON array of sub-requests which
+ * are dispatched in-process through the same Yoke application (using the fake requests of
+ * [YokeTester](../test/YokeTester.html)) and the response is a JSON array with the result of each sub-request, in
+ * the same order:
+ *
+ * <pre>
+ * POST /batch
+ * [
+ *   {"method": "GET", "url": "/api/users/1"},
+ *   {"method": "POST", "url": "/api/users", "headers": {"x-custom": "1"}, "body": {"name": "paulo"}}
+ * ]
+ *
+ * 200 OK
+ * [
+ *   {"status": 200, "headers": {"content-type": "application/json"}, "body": "{...}"},
+ *   {"status": 201, "headers": {}, "body": ""}
+ * ]
+ * </pre>
+ *
+ * Sub-requests inherit the headers of the batch request (e.g.: cookies and authorization) unless they define their
+ * own, except the headers that describe the batch body or its connection (e.g.: ```content-encoding```,
+ * ```accept-encoding``` or ```connection```), since sub-request bodies are plain and results are embedded as text.
+ * Sub-requests run concurrently, up to ```concurrency``` at a time. Sub-requests cannot target the batch endpoint itself.
+ * The [BodyParser](BodyParser.html) must run before this middleware.
+ *
+ * <pre>
+ * yoke.use(new BodyParser());
+ * yoke.use("/batch", new Batch(yoke, 4, 20));
+ * </pre>
+ */
+public class Batch extends Middleware {
+
+    /**
+     * Headers of the batch request that do not apply to its sub-requests
+     */
+    private static final String[] NOT_INHERITED = {
+            // the body of the sub-request is not the body of the batch
+            "content-length", "content-type", "content-encoding", "transfer-encoding",
+            // sub-responses are embedded as text in the batch response
+            "accept-encoding",
+            // hop-by-hop
+            "connection", "expect", "te", "upgrade"
+    };
+
+    /**
+     * Header set on every sub-request, a batch endpoint receiving it rejects the request so batches cannot nest. A
+     * client sending it only gets its own batch rejected.
+     */
+    private static final String SUB_REQUEST = "x-yoke-batch";
+
+    private final Yoke yoke;
+    private final int concurrency;
+    private final int maxItems;
+
+    /**
+     * @param yoke        the application that executes the sub-requests
+     * @param concurrency maximum number of sub-requests of a batch in flight at the same time
+     * @param maxItems    maximum number of sub-requests in a batch
+     */
+    public Batch(Yoke yoke, int concurrency, int maxItems) {
+        this.yoke = yoke;
+        this.concurrency = concurrency;
+        this.maxItems = maxItems;
+    }
+
+    public Batch(Yoke yoke) {
+        this(yoke, 4, 20);
+    }
+
+    @Override
+    public void handle(final YokeRequest request, final Handler<Object> next) {
+        if (!"POST".equals(request.method()) || !isBatchPath(request.path())) {
+            next.handle(null);
+            return;
+        }
+
+        // a sub-request reached the batch endpoint through a path the item check did not recognize
+        if (request.getHeader(SUB_REQUEST) != null) {
+            next.handle(400);
+            return;
+        }
+
+        final Object body = request.body();
+
+        if (!(body instanceof JsonArray)) {
+            next.handle(400);
+            return;
+        }
+
+        final JsonArray items = (JsonArray) body;
+
+        if (items.size() > maxItems) {
+            next.handle(413);
+            return;
+        }
+
+        new Execution(request, items).start();
+    }
+
+    private class Execution {
+        final YokeRequest request;
+        final JsonArray items;
+        final JsonObject[] results;
+        final YokeTester tester;
+
+        int started;
+        int completed;
+
+        Execution(YokeRequest request, JsonArray items) {
+            this.request = request;
+            this.items = items;
+            this.results = new JsonObject[items.size()];
+            this.tester = new YokeTester(vertx, yoke, request.isSecure());
+        }
+
+        void start() {
+            if (items.size() == 0) {
+                done();
+                return;
+            }
+
+            while (started < items.size() && started - completed < concurrency) {
+                dispatch(started++);
+            }
+        }
+
+        void dispatch(final int index) {
+            final Object item = items.get(index);
+
+            if (!(item instanceof JsonObject)) {
+                complete(index, error(400));
+                return;
+            }
+
+            final JsonObject json = (JsonObject) item;
+            final String url = json.getString("url");
+
+            // quick check, nested batches are also rejected by the endpoint through the sub-request header
+            if (url == null || isBatchPath(path(url))) {
+                complete(index, error(400));
+                return;
+            }
+
+            final MultiMap headers = new CaseInsensitiveMultiMap();
+            for (Map.Entry<String, String> header : request.headers()) {
+                headers.add(header.getKey(), header.getValue());
+            }
+            for (String name : NOT_INHERITED) {
+                headers.remove(name);
+            }
+
+            final JsonObject itemHeaders = json.getObject("headers");
+            if (itemHeaders != null) {
+                for (String name : itemHeaders.getFieldNames()) {
+                    headers.set(name, String.valueOf(itemHeaders.getValue(name)));
+                }
+            }
+            headers.set(SUB_REQUEST, "1");
+
+            final Buffer itemBody;
+            final Object value = json.getValue("body");
+            if (value == null) {
+                itemBody = new Buffer(0);
+            } else {
+                if (value instanceof JsonElement) {
+                    itemBody = new Buffer(((JsonElement) value).isArray() ?
+                            ((JsonElement) value).asArray().encode() :
+                            ((JsonElement) value).asObject().encode());
+                    if (!headers.contains("content-type")) {
+                        headers.set("content-type", "application/json");
+                    }
+                } else {
+                    itemBody = new Buffer(String.valueOf(value));
+                }
+                headers.set("content-length", Integer.toString(itemBody.length()));
+            }
+
+            try {
+                tester.request(json.getString("method", "GET"), url, headers, itemBody, new Handler<Response>() {
+                    @Override
+                    public void handle(Response response) {
+                        complete(index, result(response));
+                    }
+                });
+            } catch (RuntimeException e) {
+                complete(index, error(400));
+            }
+        }
+
+        void complete(final int index, JsonObject result) {
+            if (results[index] != null) {
+                // already completed
+                return;
+            }
+
+            results[index] = result;
+            completed++;
+
+            if (completed == items.size()) {
+                done();
+            } else if (started < items.size()) {
+                // dispatch from the event loop so synchronous sub-requests do not grow the stack
+                vertx.runOnContext(new Handler<Void>() {
+                    @Override
+                    public void handle(Void event) {
+                        start();
+                    }
+                });
+            }
+        }
+
+        void done() {
+            JsonArray response = new JsonArray();
+            for (JsonObject result : results) {
+                response.addObject(result);
+            }
+            request.response().end(response);
+        }
+    }
+
+    private boolean isBatchPath(String path) {
+        if (path == null) {
+            // not a valid url, it cannot be dispatched either
+            return true;
+        }
+        if (path.endsWith("/") && path.length() > 1) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path.equals(mount.endsWith("/") && mount.length() > 1 ? mount.substring(0, mount.length() - 1) : mount);
+    }
+
+    /**
+     * @return the path the sub-request is served at, decoded and without scheme or host, null if invalid
+     */
+    private static String path(String url) {
+        try {
+            return new URI(url).getPath();
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    private static JsonObject error(int status) {
+        return new JsonObject()
+                .putNumber("status", status)
+                .putObject("headers", new JsonObject())
+                .putString("body", "");
+    }
+
+    private static JsonObject result(Response response) {
+        JsonObject headers = new JsonObject();
+        for (String name : response.headers.names()) {
+            List<String> values = response.headers.getAll(name);
+            if (values.size() == 1) {
+                headers.putString(name, values.get(0));
+            } else {
+                headers.putArray(name, new JsonArray(values.toArray()));
+            }
+        }
+
+        return new JsonObject()
+                .putNumber("status", response.getStatusCode())
+                .putObject("headers", headers)
+                .putString("body", response.body.toString());
+    }
+}
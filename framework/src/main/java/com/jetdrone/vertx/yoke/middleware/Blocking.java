@@ -0,0 +1,177 @@
+/**
+ * Copyright 2011-2014 the original author or authors.
+ */
+package com.jetdrone.vertx.yoke.middleware;
+
+import com.jetdrone.vertx.yoke.Middleware;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** # Blocking
+ *
+ * Runs a middleware that blocks or does CPU heavy work (PDF generation, synchronous template loading, password
+ * hashing) on a bounded worker pool instead of the event loop.
+ *
+ * Every instance owns its own pool and queue (a bulkhead), so a slow route can only exhaust its own workers. When both
+ * the pool and the queue are full the request fails with ```503``` without blocking the event loop.
+ *
+ * The wrapped middleware runs on a worker thread, calls to ```next``` are handed back to the event loop that owns the
+ * request and so are writes, status, header and cookie changes made through the response methods (which are executed
+ * in the order they were issued). Headers and status should be set before the first write and the ```headers()```
+ * map should not be modified directly. Do not register Vert.x handlers (timers, event bus) from the wrapped
+ * middleware, they are bound to the context of the thread that registers them.
+ *
+ * <pre>
+ * yoke.use("/report", new Blocking(new PdfMiddleware(), 4, 64));
+ *
+ * router.get("/hash", new Blocking(new BCryptMiddleware(), 2, 16));
+ * </pre>
+ */
+public class Blocking extends Middleware {
+
+    private static final AtomicInteger POOLS = new AtomicInteger();
+
+    private final Middleware middleware;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Creates a blocking middleware with its own pool.
+     *
+     * @param middleware the blocking middleware
+     * @param threads    maximum number of worker threads
+     * @param queueSize  maximum number of requests waiting for a worker
+     */
+    public Blocking(Middleware middleware, int threads, int queueSize) {
+        this(threads, queueSize, middleware);
+    }
+
+    /**
+     * Creates a blocking middleware with a pool of 4 threads and a queue of 256 requests.
+     *
+     * @param middleware the blocking middleware
+     */
+    public Blocking(Middleware middleware) {
+        this(middleware, 4, 256);
+    }
+
+    /**
+     * Constructor for subclasses that override [execute](#execute) instead of wrapping a middleware.
+     *
+     * @param threads   maximum number of worker threads
+     * @param queueSize maximum number of requests waiting for a worker
+     */
+    protected Blocking(int threads, int queueSize) {
+        this(threads, queueSize, null);
+    }
+
+    private Blocking(int threads, int queueSize, Middleware middleware) {
+        this.middleware = middleware;
+
+        final String prefix = "yoke-blocking-" + POOLS.incrementAndGet() + "-";
+
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // idle pools do not keep threads around
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public Middleware init(Vertx vertx, String mount) {
+        super.init(vertx, mount);
+        if (middleware != null) {
+            middleware.init(vertx, mount);
+        }
+        return this;
+    }
+
+    @Override
+    public void freeze() {
+        if (middleware != null) {
+            middleware.freeze();
+        }
+    }
+
+    /**
+     * @return the number of requests waiting for a worker
+     */
+    public int queued() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stops the worker pool, requests already queued still run.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Runs on a worker thread, by default it calls the wrapped middleware.
+     *
+     * @param context the context of the event loop that owns the request
+     * @param request the request
+     * @param next    continuation that resumes the chain on the event loop
+     */
+    protected void execute(Context context, YokeRequest request, Handler<Object> next) {
+        middleware.handle(request, next);
+    }
+
+    @Override
+    public void handle(final YokeRequest request, final Handler<Object> next) {
+        final Context context = vertx.currentContext();
+
+        // the continuation always runs on the event loop and only once, even if the middleware calls next and throws
+        final AtomicBoolean resumed = new AtomicBoolean();
+        final Handler<Object> resume = new Handler<Object>() {
+            @Override
+            public void handle(final Object error) {
+                if (!resumed.compareAndSet(false, true)) {
+                    return;
+                }
+                context.runOnContext(new Handler<Void>() {
+                    @Override
+                    public void handle(Void event) {
+                        next.handle(error);
+                    }
+                });
+            }
+        };
+
+        request.response().bind(context);
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        execute(context, request, resume);
+                    } catch (Error e) {
+                        // resume so the request does not hang, the error still reaches the worker thread
+                        resume.handle(500);
+                        throw e;
+                    } catch (Throwable t) {
+                        resume.handle(t);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            next.handle(503);
+        }
+    }
+}
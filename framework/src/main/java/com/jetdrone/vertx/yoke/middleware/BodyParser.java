@@ -4,13 +4,21 @@
 package com.jetdrone.vertx.yoke.middleware;
 
 import com.jetdrone.vertx.yoke.Middleware;
+import com.jetdrone.vertx.yoke.core.Context;
 import com.jetdrone.vertx.yoke.core.JSON;
+import com.jetdrone.vertx.yoke.core.impl.ContentDecoder;
+import io.netty.handler.codec.http.QueryStringDecoder;
 import org.vertx.java.core.Handler;
+import org.vertx.java.core.MultiMap;
 import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.http.CaseInsensitiveMultiMap;
 import org.vertx.java.core.http.HttpServerFileUpload;
 import org.vertx.java.core.json.DecodeException;
 
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipException;
 
 /** # BodyParser
  *
@@ -21,6 +29,11 @@ import java.util.HashMap;
  * If the content type was *multipart/form-data* and there were uploaded files the files are ```files()``` returns
  * `Map&lt;String, HttpServerFileUpload&gt;`.
  *
+ * JSON and form bodies may be compressed (```Content-Encoding: gzip``` or ```deflate```), they are decompressed as
+ * they arrive and the [Limit](Limit.html) applies to the decompressed length. Invalid compressed data is rejected
+ * with *400* and other encodings with *415*. Once decoded the ```content-encoding``` header is removed and
+ * ```content-length``` is the decoded length, so the headers describe the parsed body.
+ *
  * ### Limitations
  *
  * Currently when parsing *multipart/form-data* if there are several files uploaded under the same name, only the last
@@ -78,10 +91,49 @@ public class BodyParser extends Middleware {
             final boolean isJSON = contentType != null && contentType.contains("application/json");
             final boolean isMULTIPART = contentType != null && contentType.contains("multipart/form-data");
             final boolean isURLENCODEC = contentType != null && contentType.contains("application/x-www-form-urlencoded");
-            final Buffer buffer = (!isMULTIPART && !isURLENCODEC) ? new Buffer(0) : null;
 
-            // enable the parsing at Vert.x level
-            request.expectMultiPart(true);
+            final String contentEncoding = request.getHeader("content-encoding");
+            final ContentDecoder decoder;
+
+            if (ContentDecoder.isEncoded(contentEncoding)) {
+                if (isMULTIPART) {
+                    next.handle(415);
+                    return;
+                }
+                try {
+                    decoder = new ContentDecoder(ContentDecoder.isGzip(contentEncoding), request.bodyLengthLimit());
+                } catch (IllegalArgumentException e) {
+                    next.handle(415);
+                    return;
+                }
+            } else {
+                decoder = null;
+            }
+
+            if (decoder != null) {
+                // release the inflater if the upload does not complete
+                request.response().closeHook(new Handler<Void>() {
+                    @Override
+                    public void handle(Void event) {
+                        decoder.close();
+                    }
+                });
+                request.exceptionHandler(new Handler<Throwable>() {
+                    @Override
+                    public void handle(Throwable throwable) {
+                        decoder.close();
+                        next.handle(throwable);
+                    }
+                });
+            }
+
+            // compressed forms are decoded here since Vert.x would only see the compressed bytes
+            final Buffer buffer = (!isMULTIPART && (!isURLENCODEC || decoder != null)) ? new Buffer(0) : null;
+
+            if (decoder == null) {
+                // enable the parsing at Vert.x level
+                request.expectMultiPart(true);
+            }
 
             if (isMULTIPART) {
                 request.uploadHandler(new Handler<HttpServerFileUpload>() {
@@ -112,20 +164,37 @@ public class BodyParser extends Middleware {
                 long size = 0;
                 final long limit = request.bodyLengthLimit();
 
+                private void cancel(int status) {
+                    request.dataHandler(null);
+                    request.endHandler(null);
+
+                    request.put(Context.CANCELED, true);
+                    next.handle(status);
+                }
+
                 @Override
                 public void handle(Buffer event) {
+                    if (decoder != null) {
+                        // the limit applies to the decompressed body
+                        try {
+                            if (!decoder.decode(event, buffer)) {
+                                cancel(413);
+                            }
+                        } catch (ZipException e) {
+                            cancel(400);
+                        }
+                        return;
+                    }
+
                     if (limit != -1) {
                         size += event.length();
-                        if (size < limit) {
+                        // same as the decoded body and the content-length check of Limit, the limit itself is allowed
+                        if (size <= limit) {
                             if (!isMULTIPART && !isURLENCODEC) {
                                 buffer.appendBuffer(event);
                             }
                         } else {
-                            request.dataHandler(null);
-                            request.endHandler(null);
-
-                            request.put("canceled", true);
-                            next.handle(413);
+                            cancel(413);
                         }
                     } else {
                         if (!isMULTIPART && !isURLENCODEC) {
@@ -138,6 +207,24 @@ public class BodyParser extends Middleware {
             request.endHandler(new Handler<Void>() {
                 @Override
                 public void handle(Void _void) {
+                    if (decoder != null) {
+                        try {
+                            decoder.end();
+                        } catch (ZipException e) {
+                            next.handle(400);
+                            return;
+                        }
+
+                        request.headers().remove("content-encoding");
+                        request.headers().set("content-length", Long.toString(decoder.size()));
+
+                        if (isURLENCODEC) {
+                            request.setFormAttributes(decodeForm(buffer));
+                            next.handle(null);
+                            return;
+                        }
+                    }
+
                     if (isJSON) {
                         if (buffer != null && buffer.length() > 0) {
                             try {
@@ -147,7 +234,7 @@ public class BodyParser extends Middleware {
                                 next.handle(400);
                                 return;
                             }
-                            if (!request.get("canceled", false)) {
+                            if (!request.get(Context.CANCELED, false)) {
                                 next.handle(null);
                             }
                         } else {
@@ -157,7 +244,7 @@ public class BodyParser extends Middleware {
                         if (buffer != null) {
                             request.setBody(buffer);
                         }
-                        if (!request.get("canceled", false)) {
+                        if (!request.get(Context.CANCELED, false)) {
                             next.handle(null);
                         }
                     }
@@ -165,4 +252,13 @@ public class BodyParser extends Middleware {
             });
         }
     }
+
+    private static MultiMap decodeForm(Buffer buffer) {
+        final MultiMap form = new CaseInsensitiveMultiMap();
+        final Map<String, List<String>> params = new QueryStringDecoder(buffer.toString("UTF-8"), false).parameters();
+        for (Map.Entry<String, List<String>> entry : params.entrySet()) {
+            form.add(entry.getKey(), entry.getValue());
+        }
+        return form;
+    }
 }
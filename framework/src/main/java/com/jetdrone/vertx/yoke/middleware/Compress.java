@@ -6,10 +6,15 @@ package com.jetdrone.vertx.yoke.middleware;
 import com.jetdrone.vertx.yoke.Middleware;
 import com.jetdrone.vertx.yoke.middleware.filters.DeflateWriterFilter;
 import com.jetdrone.vertx.yoke.middleware.filters.GZipWriterFilter;
+import com.jetdrone.vertx.yoke.middleware.filters.ParallelGZipWriterFilter;
+import com.jetdrone.vertx.yoke.middleware.filters.WriterFilter;
+import com.jetdrone.vertx.yoke.util.EventLoopDelay;
 import org.vertx.java.core.Handler;
 
-import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 /**
  * # Compress
@@ -19,7 +24,25 @@ import java.util.regex.Pattern;
  * request accepts compression and tries to select the best matched algorithm.
  *
  * You can specify which content types are compressable and by default json/text/javascript
- * are enabled.
+ * are enabled. The compression level trades CPU time for size, from 1 (fastest) to 9 (smallest), the default is the
+ * zlib default (6).
+ *
+ * The decision is taken when the response headers are sent:
+ *
+ * * bodies with a known length (a ```content-length``` header or a body written at once with ```end```) smaller than
+ *   the [threshold](#threshold) are sent as is, compressing them costs CPU and often makes them larger;
+ * * when the event loop is busy (see [EventLoopDelay](../util/EventLoopDelay.html)) the level is first lowered to the
+ *   fastest one and then compression is skipped, see [backoff](#backoff);
+ * * gzip bodies with a known length above the [parallel](#parallel) threshold are compressed in blocks on a worker
+ *   pool (see [ParallelGZipWriterFilter](filters/ParallelGZipWriterFilter.html)) instead of on the event loop.
+ *
+ * The decisions are counted and can be read with [compressed](#compressed), [reduced](#reduced),
+ * [parallelized](#parallelized), [skippedType](#skippedType), [skippedSize](#skippedSize) and
+ * [skippedLoad](#skippedLoad).
+ *
+ * <pre>
+ * yoke.use(new Compress().threshold(1400).backoff(10, 50).parallel(4 * 1024 * 1024, 4));
+ * </pre>
  */
 public class Compress extends Middleware {
 
@@ -28,13 +51,59 @@ public class Compress extends Middleware {
      */
     private final Pattern filter;
 
+    /**
+     * Compression level
+     */
+    private final int level;
+
+    /**
+     * Minimum known body length to compress
+     */
+    private int threshold = 1024;
+
+    /**
+     * Event loop delays (ms) to lower the level and to skip compression, 0 disables
+     */
+    private long reduceDelay = 20;
+    private long skipDelay = 100;
+
+    /**
+     * Minimum known body length to compress in parallel, 0 disables
+     */
+    private long parallelThreshold;
+    private int blockSize = 128 * 1024;
+    private int window;
+    private ForkJoinPool pool;
+
+    // decisions
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong reduced = new AtomicLong();
+    private final AtomicLong parallelized = new AtomicLong();
+    private final AtomicLong skippedType = new AtomicLong();
+    private final AtomicLong skippedSize = new AtomicLong();
+    private final AtomicLong skippedLoad = new AtomicLong();
+
+    /**
+     * Creates a new Compression Middleware given a regular expression of allowed mime types and a compression level
+     *
+     * @param filter Regular expression to specify which mime types are allowed to be compressed
+     * @param level  Compression level, 0-9 or -1 for the default
+     */
+    public Compress(Pattern filter, int level) {
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.filter = filter;
+        this.level = level;
+    }
+
     /**
      * Creates a new Compression Middleware given a regular expression of allowed mime types
      *
      * @param filter Regular expression to specify which mime types are allowed to be compressed
      */
     public Compress(Pattern filter) {
-        this.filter = filter;
+        this(filter, Deflater.DEFAULT_COMPRESSION);
     }
 
     /**
@@ -44,6 +113,104 @@ public class Compress extends Middleware {
         this(Pattern.compile("json|text|javascript"));
     }
 
+    /**
+     * Sets the minimum length of a body to be compressed, bodies of unknown length are always compressed.
+     *
+     * @param bytes minimum length, 1024 by default
+     */
+    public Compress threshold(int bytes) {
+        this.threshold = bytes;
+        return this;
+    }
+
+    /**
+     * Sets how compression backs off when the event loop is busy.
+     *
+     * @param reduceDelay event loop delay in ms from which the fastest level is used, 20 by default, 0 disables
+     * @param skipDelay   event loop delay in ms from which responses are not compressed, 100 by default, 0 disables
+     */
+    public Compress backoff(long reduceDelay, long skipDelay) {
+        this.reduceDelay = reduceDelay;
+        this.skipDelay = skipDelay;
+        return this;
+    }
+
+    /**
+     * Compresses large gzip bodies in parallel on a pool of ```threads``` workers. Only bodies whose length is known
+     * upfront are compressed in parallel, bodies of unknown length are compressed as they are written so streamed
+     * responses are not delayed. Each response keeps at most 2 blocks of 128KB per thread in memory.
+     *
+     * @param threshold minimum body length to compress in parallel, 0 disables
+     * @param threads   number of worker threads
+     */
+    public Compress parallel(long threshold, int threads) {
+        return parallel(threshold, threads, 128 * 1024, 2 * threads);
+    }
+
+    /**
+     * Compresses large gzip bodies in parallel, see [parallel](#parallel).
+     *
+     * @param threshold minimum body length to compress in parallel, 0 disables
+     * @param threads   number of worker threads
+     * @param blockSize length of the blocks compressed independently, at least 32KB
+     * @param window    maximum number of blocks of a response being compressed or waiting to be sent
+     */
+    public Compress parallel(long threshold, int threads, int blockSize, int window) {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        this.parallelThreshold = threshold;
+        this.blockSize = blockSize;
+        this.window = window;
+        if (threshold > 0) {
+            pool = new ForkJoinPool(threads);
+        }
+        return this;
+    }
+
+    /**
+     * @return the number of compressed responses
+     */
+    public long compressed() {
+        return compressed.get();
+    }
+
+    /**
+     * @return the number of responses compressed with the fastest level because the event loop was busy
+     */
+    public long reduced() {
+        return reduced.get();
+    }
+
+    /**
+     * @return the number of responses compressed in parallel
+     */
+    public long parallelized() {
+        return parallelized.get();
+    }
+
+    /**
+     * @return the number of responses not compressed because of their content type
+     */
+    public long skippedType() {
+        return skippedType.get();
+    }
+
+    /**
+     * @return the number of responses not compressed because they are smaller than the threshold
+     */
+    public long skippedSize() {
+        return skippedSize.get();
+    }
+
+    /**
+     * @return the number of responses not compressed because the event loop was busy
+     */
+    public long skippedLoad() {
+        return skippedLoad.get();
+    }
+
     @Override
     public void handle(YokeRequest request, Handler<Object> next) {
         final String method = request.method();
@@ -66,20 +233,71 @@ public class Compress extends Middleware {
             return;
         }
 
-        try {
-            // default to gzip
-            if ("*".equals(accept.trim())) {
-                response.setFilter(new GZipWriterFilter(filter));
-            } else {
-                if (accept.contains("gzip")) {
-                    response.setFilter(new GZipWriterFilter(filter));
-                } else if (accept.contains("deflate")) {
-                    response.setFilter(new DeflateWriterFilter(filter));
-                }
+        // default to gzip
+        if ("*".equals(accept.trim())) {
+            response.setFilter(new Candidate(true));
+        } else {
+            if (accept.contains("gzip")) {
+                response.setFilter(new Candidate(true));
+            } else if (accept.contains("deflate")) {
+                response.setFilter(new Candidate(false));
             }
-            next.handle(null);
-        } catch (IOException ioe) {
-            next.handle(ioe);
+        }
+        next.handle(null);
+    }
+
+    private long delay() {
+        if ((reduceDelay <= 0 && skipDelay <= 0) || vertx == null || vertx.currentContext() == null) {
+            return 0;
+        }
+        return EventLoopDelay.current(vertx).delay();
+    }
+
+    /**
+     * Installed for each request, the encoder is only created once the response headers show that the body is worth
+     * compressing.
+     */
+    private final class Candidate implements YokeResponse.FilterSelector {
+
+        private final boolean gzip;
+
+        Candidate(boolean gzip) {
+            this.gzip = gzip;
+        }
+
+        @Override
+        public WriterFilter select(String contentType, long contentLength) {
+            if (contentType == null || !filter.matcher(contentType).find()) {
+                skippedType.incrementAndGet();
+                return null;
+            }
+
+            if (contentLength != -1 && contentLength < threshold) {
+                skippedSize.incrementAndGet();
+                return null;
+            }
+
+            final long delay = delay();
+            if (skipDelay > 0 && delay >= skipDelay) {
+                skippedLoad.incrementAndGet();
+                return null;
+            }
+
+            int selected = level;
+            if (reduceDelay > 0 && delay >= reduceDelay && level != 0 && level != Deflater.BEST_SPEED) {
+                selected = Deflater.BEST_SPEED;
+                reduced.incrementAndGet();
+            }
+
+            compressed.incrementAndGet();
+
+            final ForkJoinPool workers = pool;
+            if (gzip && workers != null && contentLength >= parallelThreshold) {
+                parallelized.incrementAndGet();
+                return new ParallelGZipWriterFilter(filter, selected, vertx.currentContext(), workers, blockSize, window);
+            }
+
+            return gzip ? new GZipWriterFilter(filter, selected) : new DeflateWriterFilter(filter, selected);
         }
     }
 }
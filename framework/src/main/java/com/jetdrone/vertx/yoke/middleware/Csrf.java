@@ -4,6 +4,7 @@
 package com.jetdrone.vertx.yoke.middleware;
 
 import com.jetdrone.vertx.yoke.Middleware;
+import com.jetdrone.vertx.yoke.core.Context;
 import org.vertx.java.core.Handler;
 
 import java.util.UUID;
@@ -30,6 +31,11 @@ public class Csrf extends Middleware {
      */
     private final String key;
 
+    /**
+     * Context slot of the key
+     */
+    private final int slot;
+
     /**
      * Instantiate a new Csrf with a user defined key
      *
@@ -41,6 +47,7 @@ public class Csrf extends Middleware {
      */
     public Csrf(final String key) {
         this.key = key;
+        this.slot = Context.register(key);
         valueHandler = new ValueHandler() {
             @Override
             public String handle(YokeRequest request) {
@@ -80,6 +87,7 @@ public class Csrf extends Middleware {
      */
     public Csrf(String key, ValueHandler valueHandler) {
         this.key = key;
+        this.slot = Context.register(key);
         this.valueHandler = valueHandler;
     }
 
@@ -103,11 +111,11 @@ public class Csrf extends Middleware {
     @Override
     public void handle(YokeRequest request, Handler<Object> next) {
 
-        String token = request.get(key);
+        String token = request.get(slot);
         // generate CSRF token
         if (token == null) {
             token = UUID.randomUUID().toString();
-            request.put(key, token);
+            request.put(slot, token);
         }
 
         // ignore these methods
@@ -4,6 +4,7 @@
 package com.jetdrone.vertx.yoke.middleware;
 
 import com.jetdrone.vertx.yoke.Middleware;
+import com.jetdrone.vertx.yoke.core.Context;
 import com.jetdrone.vertx.yoke.util.Utils;
 import com.jetdrone.vertx.yoke.core.YokeException;
 import io.netty.handler.codec.http.HttpResponseStatus;
@@ -186,19 +187,19 @@ public class ErrorHandler extends Middleware {
         YokeResponse response = request.response();
 
         if (response.getStatusCode() < 400) {
-            response.setStatusCode(getErrorCode(request.get("error")));
+            response.setStatusCode(getErrorCode(request.get(Context.ERROR)));
         }
 
-        if (request.get("error") == null) {
-            request.put("error", response.getStatusCode());
+        if (request.get(Context.ERROR) == null) {
+            request.put(Context.ERROR, response.getStatusCode());
         }
-        String errorMessage = getMessage(request.get("error"));
+        String errorMessage = getMessage(request.get(Context.ERROR));
         int errorCode = response.getStatusCode();
 
         // set the status message also to the right error code
         response.setStatusMessage(HttpResponseStatus.valueOf(errorCode).reasonPhrase());
 
-        List<String> stackTrace = getStackTrace(request.get("error"));
+        List<String> stackTrace = getStackTrace(request.get(Context.ERROR));
 
         // does the response already set the mime type?
         String mime = response.getHeader("content-type");
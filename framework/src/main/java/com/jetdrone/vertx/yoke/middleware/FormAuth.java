@@ -4,6 +4,7 @@
 package com.jetdrone.vertx.yoke.middleware;
 
 import com.jetdrone.vertx.yoke.Middleware;
+import com.jetdrone.vertx.yoke.core.Context;
 import com.jetdrone.vertx.yoke.util.Utils;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.Vertx;
@@ -127,7 +128,7 @@ public class FormAuth extends Middleware {
     public final Middleware RequiredAuth = new Middleware() {
         @Override
         public void handle(final YokeRequest request, final Handler<Object> next) {
-            JsonObject session = request.get("session");
+            JsonObject session = request.get(Context.SESSION);
 
             if (session != null) {
                 if (session.getString("id") != null) {
@@ -5,16 +5,24 @@ package com.jetdrone.vertx.yoke.middleware;
 
 import com.jetdrone.vertx.yoke.Middleware;
 import com.jetdrone.vertx.yoke.annotations.*;
+import com.jetdrone.vertx.yoke.core.YokeException;
+import com.jetdrone.vertx.yoke.core.impl.RouteTree;
 import com.jetdrone.vertx.yoke.util.AsyncIterator;
 import org.vertx.java.core.Handler;
-import org.vertx.java.core.MultiMap;
 import org.vertx.java.core.Vertx;
 
 import java.lang.annotation.Annotation;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -35,17 +43,24 @@ import java.util.regex.Pattern;
  */
 public class Router extends Middleware {
 
-    private final List<PatternBinding> getBindings = new ArrayList<>();
-    private final List<PatternBinding> putBindings = new ArrayList<>();
-    private final List<PatternBinding> postBindings = new ArrayList<>();
-    private final List<PatternBinding> deleteBindings = new ArrayList<>();
-    private final List<PatternBinding> optionsBindings = new ArrayList<>();
-    private final List<PatternBinding> headBindings = new ArrayList<>();
-    private final List<PatternBinding> traceBindings = new ArrayList<>();
-    private final List<PatternBinding> connectBindings = new ArrayList<>();
-    private final List<PatternBinding> patchBindings = new ArrayList<>();
+    private final Routes getBindings = new Routes();
+    private final Routes putBindings = new Routes();
+    private final Routes postBindings = new Routes();
+    private final Routes deleteBindings = new Routes();
+    private final Routes optionsBindings = new Routes();
+    private final Routes headBindings = new Routes();
+    private final Routes traceBindings = new Routes();
+    private final Routes connectBindings = new Routes();
+    private final Routes patchBindings = new Routes();
 
-    private final Map<String, Middleware> paramProcessors = new HashMap<>();
+    private Map<String, Middleware> paramProcessors = new HashMap<>();
+
+    private boolean frozen;
+
+    // route match cache, disabled when the limit is 0
+    private int cacheLimit;
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
 
     /**
      * Create a new Router Middleware.
@@ -69,43 +84,123 @@ public class Router extends Middleware {
         super.init(vertx, mount);
         // since this call can happen after the bindings are in place we need to update all bindings to have a reference
         // to the vertx object
-        for (PatternBinding binding : getBindings) {
-            binding.middleware.init(vertx, mount);
-        }
+        getBindings.init(vertx, mount);
+        putBindings.init(vertx, mount);
+        postBindings.init(vertx, mount);
+        deleteBindings.init(vertx, mount);
+        optionsBindings.init(vertx, mount);
+        headBindings.init(vertx, mount);
+        traceBindings.init(vertx, mount);
+        connectBindings.init(vertx, mount);
+        patchBindings.init(vertx, mount);
+        return this;
+    }
 
-        for (PatternBinding binding : putBindings) {
-            binding.middleware.init(vertx, mount);
+    @Override
+    public void freeze() {
+        if (frozen) {
+            return;
         }
 
-        for (PatternBinding binding : postBindings) {
-            binding.middleware.init(vertx, mount);
+        getBindings.freeze();
+        putBindings.freeze();
+        postBindings.freeze();
+        deleteBindings.freeze();
+        optionsBindings.freeze();
+        headBindings.freeze();
+        traceBindings.freeze();
+        connectBindings.freeze();
+        patchBindings.freeze();
+
+        for (Middleware paramMiddleware : paramProcessors.values()) {
+            paramMiddleware.freeze();
         }
+        paramProcessors = Collections.unmodifiableMap(new HashMap<>(paramProcessors));
 
-        for (PatternBinding binding : deleteBindings) {
-            binding.middleware.init(vertx, mount);
-        }
+        frozen = true;
+    }
 
-        for (PatternBinding binding : optionsBindings) {
-            binding.middleware.init(vertx, mount);
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("Router is frozen and cannot be modified");
         }
+    }
 
-        for (PatternBinding binding : headBindings) {
-            binding.middleware.init(vertx, mount);
+    /**
+     * Enables a cache of match results keyed by method and path. On a hit the router does not evaluate any pattern.
+     * This pays off when most of the traffic hits a small set of concrete URLs, e.g.: ```/api/config```. Paths that
+     * match no route are not cached. When the cache is full one entry is evicted, entries hit since the last eviction
+     * pass get a second chance (clock eviction), so a stream of one-off paths (crawlers, ids in the url) does not
+     * push out the hot ones. The cache is cleared when routes are added.
+     *
+     * The key is the path as received, not the normalized path, since regular expression routes match the raw path.
+     *
+     * @param maxEntries maximum number of cached paths per HTTP method, 0 disables the cache
+     * @return self
+     */
+    public Router cache(int maxEntries) {
+        checkNotFrozen();
+        cacheLimit = maxEntries;
+        for (Routes routes : routes()) {
+            routes.cache = maxEntries > 0 ? new MatchCache(maxEntries) : null;
         }
+        return this;
+    }
+
+    /**
+     * @return the number of requests matched from the cache
+     */
+    public long cacheHits() {
+        return cacheHits.get();
+    }
 
-        for (PatternBinding binding : traceBindings) {
-            binding.middleware.init(vertx, mount);
+    /**
+     * @return the number of requests that were not in the cache
+     */
+    public long cacheMisses() {
+        return cacheMisses.get();
+    }
+
+    private Routes[] routes() {
+        return new Routes[] {getBindings, putBindings, postBindings, deleteBindings, optionsBindings, headBindings,
+                traceBindings, connectBindings, patchBindings};
+    }
+
+    private void invalidateCache() {
+        if (cacheLimit > 0) {
+            for (Routes routes : routes()) {
+                routes.cache.clear();
+            }
         }
+    }
 
-        for (PatternBinding binding : connectBindings) {
-            binding.middleware.init(vertx, mount);
+    private Iterator<Match> match(Routes routes, YokeRequest request) {
+        final MatchCache cache = routes.cache;
+        final String path = request.path();
+        if (cache == null) {
+            return routes.match(request);
         }
 
-        for (PatternBinding binding : patchBindings) {
-            binding.middleware.init(vertx, mount);
+        List<Match> matches = cache.get(path);
+        if (matches != null) {
+            cacheHits.incrementAndGet();
+            return matches.iterator();
         }
 
-        return this;
+        cacheMisses.incrementAndGet();
+        // the cached result must hold every match, not only the ones this request reaches
+        final Iterator<Match> iterator = routes.match(request);
+        if (!iterator.hasNext()) {
+            // a 404 must not evict a route that exists
+            return iterator;
+        }
+        matches = new ArrayList<>();
+        while (iterator.hasNext()) {
+            matches.add(iterator.next());
+        }
+        matches = Collections.unmodifiableList(matches);
+        cache.put(path, matches);
+        return matches.iterator();
     }
 
     @Override
@@ -148,9 +243,7 @@ public class Router extends Middleware {
      * @param handlers The middleware to call
      */
     public Router get(String pattern, Middleware... handlers) {
-        for (Middleware handler : handlers) {
-            addPattern(pattern, handler, getBindings);
-        }
+        addPattern(pattern, handlers, getBindings);
         return this;
     }
 
@@ -174,9 +267,7 @@ public class Router extends Middleware {
      * @param handlers The middleware to call
      */
     public Router put(String pattern, Middleware... handlers) {
-        for (Middleware handler : handlers) {
-            addPattern(pattern, handler, putBindings);
-        }
+        addPattern(pattern, handlers, putBindings);
         return this;
     }
 
@@ -200,9 +291,7 @@ public class Router extends Middleware {
      * @param handlers The middleware to call
      */
     public Router post(String pattern, Middleware... handlers) {
-        for (Middleware handler : handlers) {
-            addPattern(pattern, handler, postBindings);
-        }
+        addPattern(pattern, handlers, postBindings);
         return this;
     }
 
@@ -226,9 +315,7 @@ public class Router extends Middleware {
      * @param handlers The middleware to call
      */
     public Router delete(String pattern, Middleware... handlers) {
-        for (Middleware handler : handlers) {
-            addPattern(pattern, handler, deleteBindings);
-        }
+        addPattern(pattern, handlers, deleteBindings);
         return this;
     }
 
@@ -252,9 +339,7 @@ public class Router extends Middleware {
      * @param handlers The middleware to call
      */
     public Router options(String pattern, Middleware... handlers) {
-        for (Middleware handler : handlers) {
-            addPattern(pattern, handler, optionsBindings);
-        }
+        addPattern(pattern, handlers, optionsBindings);
         return this;
     }
 
@@ -278,9 +363,7 @@ public class Router extends Middleware {
      * @param handlers The middleware to call
      */
     public Router head(String pattern, Middleware... handlers) {
-        for (Middleware handler : handlers) {
-            addPattern(pattern, handler, headBindings);
-        }
+        addPattern(pattern, handlers, headBindings);
         return this;
     }
 
@@ -304,9 +387,7 @@ public class Router extends Middleware {
      * @param handlers The middleware to call
      */
     public Router trace(String pattern, Middleware... handlers) {
-        for (Middleware handler : handlers) {
-            addPattern(pattern, handler, traceBindings);
-        }
+        addPattern(pattern, handlers, traceBindings);
         return this;
     }
 
@@ -330,9 +411,7 @@ public class Router extends Middleware {
      * @param handlers The middleware to call
      */
     public Router connect(String pattern, Middleware... handlers) {
-        for (Middleware handler : handlers) {
-            addPattern(pattern, handler, connectBindings);
-        }
+        addPattern(pattern, handlers, connectBindings);
         return this;
     }
 
@@ -356,9 +435,7 @@ public class Router extends Middleware {
      * @param handlers The middleware to call
      */
     public Router patch(String pattern, Middleware... handlers) {
-        for (Middleware handler : handlers) {
-            addPattern(pattern, handler, patchBindings);
-        }
+        addPattern(pattern, handlers, patchBindings);
         return this;
     }
 
@@ -418,9 +495,7 @@ public class Router extends Middleware {
      * @param handlers The middleware to call
      */
     public Router get(Pattern regex, Middleware... handlers) {
-        for (Middleware handler : handlers) {
-            addRegEx(regex, handler, getBindings);
-        }
+        addRegEx(regex, handlers, getBindings);
         return this;
     }
 
@@ -444,9 +519,7 @@ public class Router extends Middleware {
      * @param handlers The middleware to call
      */
     public Router put(Pattern regex, Middleware... handlers) {
-        for (Middleware handler : handlers) {
-            addRegEx(regex, handler, putBindings);
-        }
+        addRegEx(regex, handlers, putBindings);
         return this;
     }
 
@@ -470,9 +543,7 @@ public class Router extends Middleware {
      * @param handlers The middleware to call
      */
     public Router post(Pattern regex, Middleware... handlers) {
-        for (Middleware handler : handlers) {
-            addRegEx(regex, handler, postBindings);
-        }
+        addRegEx(regex, handlers, postBindings);
         return this;
     }
 
@@ -496,9 +567,7 @@ public class Router extends Middleware {
      * @param handlers The middleware to call
      */
     public Router delete(Pattern regex, Middleware... handlers) {
-        for (Middleware handler : handlers) {
-            addRegEx(regex, handler, deleteBindings);
-        }
+        addRegEx(regex, handlers, deleteBindings);
         return this;
     }
 
@@ -522,9 +591,7 @@ public class Router extends Middleware {
      * @param handlers The middleware to call
      */
     public Router options(Pattern regex, Middleware... handlers) {
-        for (Middleware handler : handlers) {
-            addRegEx(regex, handler, optionsBindings);
-        }
+        addRegEx(regex, handlers, optionsBindings);
         return this;
     }
 
@@ -548,9 +615,7 @@ public class Router extends Middleware {
      * @param handlers The middleware to call
      */
     public Router head(Pattern regex, Middleware... handlers) {
-        for (Middleware handler : handlers) {
-            addRegEx(regex, handler, headBindings);
-        }
+        addRegEx(regex, handlers, headBindings);
         return this;
     }
 
@@ -574,9 +639,7 @@ public class Router extends Middleware {
      * @param handlers The middleware to call
      */
     public Router trace(Pattern regex, Middleware... handlers) {
-        for (Middleware handler : handlers) {
-            addRegEx(regex, handler, traceBindings);
-        }
+        addRegEx(regex, handlers, traceBindings);
         return this;
     }
 
@@ -600,9 +663,7 @@ public class Router extends Middleware {
      * @param handlers The middleware to call
      */
     public Router connect(Pattern regex, Middleware... handlers) {
-        for (Middleware handler : handlers) {
-            addRegEx(regex, handler, connectBindings);
-        }
+        addRegEx(regex, handlers, connectBindings);
         return this;
     }
 
@@ -626,9 +687,7 @@ public class Router extends Middleware {
      * @param handlers The middleware to call
      */
     public Router patch(Pattern regex, Middleware... handlers) {
-        for (Middleware handler : handlers) {
-            addRegEx(regex, handler, patchBindings);
-        }
+        addRegEx(regex, handlers, patchBindings);
         return this;
     }
 
@@ -683,9 +742,16 @@ public class Router extends Middleware {
     }
 
     public Router param(final String paramName, final Middleware handler) {
+        checkNotFrozen();
         // also pass the vertx object to the routes
         handler.init(vertx, mount);
         paramProcessors.put(paramName, handler);
+        // update the plans of the routes using the param
+        for (Routes routes : routes()) {
+            for (PatternBinding binding : routes.bindings) {
+                plan(binding);
+            }
+        }
         return this;
     }
 
@@ -704,11 +770,12 @@ public class Router extends Middleware {
         });
     }
 
-    private void addPattern(String input, Middleware handler, List<PatternBinding> bindings) {
+    private void addPattern(String input, Middleware[] handlers, Routes routes) {
+        checkNotFrozen();
         // We need to search for any :<token name> tokens in the String and replace them with named capture groups
         Matcher m =  Pattern.compile(":([A-Za-z][A-Za-z0-9_]*)").matcher(input);
         StringBuffer sb = new StringBuffer();
-        Set<String> groups = new HashSet<>();
+        Set<String> groups = new LinkedHashSet<>();
         while (m.find()) {
             String group = m.group().substring(1);
             if (groups.contains(group)) {
@@ -723,26 +790,30 @@ public class Router extends Middleware {
             sb.append("\\/?$");
         }
         String regex = sb.toString();
-        PatternBinding binding = new PatternBinding(Pattern.compile(regex), groups, handler);
+        PatternBinding binding = new PatternBinding(Pattern.compile(regex), groups.toArray(new String[groups.size()]), handlers.clone());
+        plan(binding);
         // also pass the vertx object to the routes
-        handler.init(vertx, mount);
-        bindings.add(binding);
+        binding.init(vertx, mount);
+        routes.add(input, binding);
+        invalidateCache();
     }
 
-    private void addRegEx(Pattern regex, Middleware handler, List<PatternBinding> bindings) {
-        PatternBinding binding = new PatternBinding(regex, null, handler);
+    private void addRegEx(Pattern regex, Middleware[] handlers, Routes routes) {
+        checkNotFrozen();
+        PatternBinding binding = new PatternBinding(regex, null, handlers.clone());
         // also pass the vertx object to the routes
-        handler.init(vertx, mount);
-        bindings.add(binding);
+        binding.init(vertx, mount);
+        routes.add(null, binding);
+        invalidateCache();
     }
 
-    private void route(final YokeRequest request, final Handler<Object> next, final List<PatternBinding> bindings) {
+    private void route(final YokeRequest request, final Handler<Object> next, final Routes routes) {
 
-        new AsyncIterator<PatternBinding>(bindings) {
+        new AsyncIterator<Match>(match(routes, request)) {
             @Override
-            public void handle(PatternBinding binding) {
+            public void handle(Match match) {
                 if (hasNext()) {
-                    route(request, binding, new Handler<Object>() {
+                    route(request, match, new Handler<Object>() {
                         @Override
                         public void handle(Object err) {
                             if (err == null) {
@@ -760,113 +831,707 @@ public class Router extends Middleware {
         };
     }
 
-    private void route(final YokeRequest request, final PatternBinding binding, final Handler<Object> next) {
-        final Matcher m = binding.pattern.matcher(request.path());
-        if (m.matches()) {
-            final MultiMap params = request.params();
+    /**
+     * Computes the param processors of a binding, so routes without processors do not look them up per request.
+     */
+    private void plan(PatternBinding binding) {
+        if (binding.paramNames == null) {
+            return;
+        }
 
-            if (binding.paramNames != null) {
-                // Named params
-                new AsyncIterator<String>(binding.paramNames) {
-                    @Override
-                    public void handle(String param) {
-                        if (hasNext()) {
-                            params.add(param, m.group(param));
-                            Middleware paramMiddleware = paramProcessors.get(param);
-                            if (paramMiddleware != null) {
-                                paramMiddleware.handle(request, new Handler<Object>() {
-                                    @Override
-                                    public void handle(Object err) {
-                                        if (err == null) {
-                                            next();
-                                        } else {
-                                            next.handle(err);
-                                        }
-                                    }
-                                });
-                            } else {
+        final List<Middleware> processors = new ArrayList<>();
+        for (String param : binding.paramNames) {
+            Middleware paramMiddleware = paramProcessors.get(param);
+            if (paramMiddleware != null) {
+                processors.add(paramMiddleware);
+            }
+        }
+
+        binding.processors = processors.isEmpty() ? null : processors.toArray(new Middleware[processors.size()]);
+    }
+
+    private void route(final YokeRequest request, final Match match, final Handler<Object> next) {
+        final PatternBinding binding = match.binding;
+        // Named or un-named params, only added to request.params() if something reads them
+        request.addPathParams(binding.paramNames, match.values);
+
+        if (binding.paramNames != null) {
+            final Middleware[] processors = binding.processors;
+
+            if (processors == null) {
+                run(request, match, next);
+                return;
+            }
+
+            // all params are set, the processors run concurrently and the route runs once all of them complete
+            final Join join = new Join(request, match, next, processors.length);
+
+            for (Middleware paramMiddleware : processors) {
+                paramMiddleware.handle(request, join);
+                if (join.failed) {
+                    // do not start more work for a failed request
+                    break;
+                }
+            }
+        } else {
+            run(request, match, next);
+        }
+    }
+
+    /**
+     * Completion of the param processors of a route, the first error ends the route.
+     */
+    private static class Join implements Handler<Object> {
+        final YokeRequest request;
+        final Match match;
+        final Handler<Object> next;
+        int pending;
+        boolean failed;
+
+        Join(YokeRequest request, Match match, Handler<Object> next, int pending) {
+            this.request = request;
+            this.match = match;
+            this.next = next;
+            this.pending = pending;
+        }
+
+        @Override
+        public void handle(Object err) {
+            if (failed) {
+                return;
+            }
+            if (err != null) {
+                failed = true;
+                next.handle(err);
+                return;
+            }
+            if (--pending == 0) {
+                run(request, match, next);
+            }
+        }
+    }
+
+    /**
+     * Runs the middleware chain of a matched route, once the chain completes the router continues with the next
+     * matching route.
+     */
+    private static void run(final YokeRequest request, final Match match, final Handler<Object> next) {
+        final PatternBinding binding = match.binding;
+
+        if (binding.middleware.length == 1) {
+            call(binding.middleware[0], request, match, next);
+            return;
+        }
+
+        new AsyncIterator<Middleware>(Arrays.asList(binding.middleware)) {
+            @Override
+            public void handle(Middleware middleware) {
+                if (hasNext()) {
+                    call(middleware, request, match, new Handler<Object>() {
+                        @Override
+                        public void handle(Object err) {
+                            if (err == null) {
                                 next();
+                            } else {
+                                next.handle(err);
                             }
-                        } else {
-                            binding.middleware.handle(request, next);
                         }
-                    }
-                };
-            } else {
-                // Un-named params
-                for (int i = 0; i < m.groupCount(); i++) {
-                    params.add("param" + i, m.group(i + 1));
+                    });
+                } else {
+                    next.handle(null);
                 }
-                binding.middleware.handle(request, next);
             }
+        };
+    }
+
+    private static void call(Middleware middleware, YokeRequest request, Match match, Handler<Object> next) {
+        if (middleware instanceof Annotated) {
+            // bind params straight from the match
+            ((Annotated) middleware).handle(request, match, next);
         } else {
-            next.handle(null);
+            middleware.handle(request, next);
         }
     }
 
+    /**
+     * A route: the pattern and the ordered chain of middleware that runs when it matches
+     */
     private static class PatternBinding {
         final Pattern pattern;
-        final Middleware middleware;
-        final Set<String> paramNames;
-
-        private PatternBinding(Pattern pattern, Set<String> paramNames, Middleware middleware) {
+        final Middleware[] middleware;
+        final String[] paramNames;
+        // param processors of the named params, null if there are none
+        Middleware[] processors;
+        // registration order within the method
+        int order;
+
+        private PatternBinding(Pattern pattern, String[] paramNames, Middleware[] middleware) {
             this.pattern = pattern;
             this.paramNames = paramNames;
             this.middleware = middleware;
         }
+
+        void init(Vertx vertx, String mount) {
+            for (Middleware m : middleware) {
+                m.init(vertx, mount);
+            }
+        }
+
+        void freeze() {
+            for (Middleware m : middleware) {
+                m.freeze();
+            }
+        }
     }
 
-    private static Middleware wrap(final Object o, final Method m, final boolean simple, final String[] consumes, final String[] produces) {
-        return new Middleware() {
-            @Override
-            public void handle(YokeRequest request, Handler<Object> next) {
-                try {
-                    // we only know how to process certain media types
-                    if (consumes != null) {
-                        boolean canConsume = false;
-                        for (String c : consumes) {
-                            if (request.is(c)) {
-                                canConsume = true;
-                                break;
-                            }
-                        }
+    /**
+     * A binding that matched the request path
+     */
+    private static class Match {
+        final PatternBinding binding;
+        // values of the named params in the order of binding.paramNames or of the un-named groups
+        final String[] values;
+
+        Match(PatternBinding binding, String[] values) {
+            this.binding = binding;
+            this.values = values;
+        }
 
-                        if (!canConsume) {
-                            // 415 Unsupported Media Type (we don't know how to handle this media)
-                            next.handle(415);
-                            return;
-                        }
+        /**
+         * @return the value of a param by name, un-named groups are named ```param0```, ```param1```, ...
+         */
+        String get(String name) {
+            final String[] names = binding.paramNames;
+            if (names != null) {
+                for (int i = 0; i < names.length; i++) {
+                    if (names[i].equals(name)) {
+                        return values[i];
+                    }
+                }
+            } else if (name.startsWith("param")) {
+                for (int i = 0; i < values.length; i++) {
+                    if (name.equals("param" + i)) {
+                        return values[i];
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final Comparator<RouteTree.Route<PatternBinding>> REGISTRATION_ORDER = new Comparator<RouteTree.Route<PatternBinding>>() {
+        @Override
+        public int compare(RouteTree.Route<PatternBinding> o1, RouteTree.Route<PatternBinding> o2) {
+            return Integer.compare(o1.order, o2.order);
+        }
+    };
+
+    /**
+     * Bounded map of match results, evicts one entry at a time with the clock (second chance) policy: a hit marks the
+     * entry as referenced, the eviction walks the entries in insertion order, clearing the mark of referenced entries
+     * and removing the first one that was not hit since the previous pass.
+     */
+    private static final class MatchCache {
+
+        private static final class Entry {
+            final List<Match> matches;
+            volatile boolean referenced;
+
+            Entry(List<Match> matches) {
+                this.matches = matches;
+            }
+        }
+
+        private final int limit;
+        private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+        private final ConcurrentLinkedQueue<String> clock = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        MatchCache(int limit) {
+            this.limit = limit;
+        }
+
+        List<Match> get(String path) {
+            final Entry entry = entries.get(path);
+            if (entry == null) {
+                return null;
+            }
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+            return entry.matches;
+        }
+
+        void put(String path, List<Match> matches) {
+            if (entries.putIfAbsent(path, new Entry(matches)) == null) {
+                clock.add(path);
+                if (size.incrementAndGet() > limit) {
+                    evict();
+                }
+            }
+        }
+
+        private void evict() {
+            // one full pass clears every mark, the bound only matters when hits race with the eviction
+            for (int i = 0; i <= 2 * limit; i++) {
+                final String path = clock.poll();
+                if (path == null) {
+                    return;
+                }
+                final Entry entry = entries.get(path);
+                if (entry == null) {
+                    continue;
+                }
+                if (entry.referenced && i < 2 * limit) {
+                    entry.referenced = false;
+                    clock.add(path);
+                } else {
+                    entries.remove(path);
+                    size.decrementAndGet();
+                    return;
+                }
+            }
+        }
+
+        void clear() {
+            entries.clear();
+            clock.clear();
+            size.set(0);
+        }
+    }
+
+    /**
+     * The bindings of a HTTP method. Simple patterns are kept in a route tree, patterns that use regular expressions
+     * are evaluated one by one, only as far as the iteration of the matches gets.
+     */
+    private static class Routes {
+        // all bindings in registration order
+        List<PatternBinding> bindings = new ArrayList<>();
+        final RouteTree<PatternBinding> tree = new RouteTree<>();
+        List<PatternBinding> regex = new ArrayList<>();
+        boolean hasTree;
+        // match results by path, null when the cache is disabled
+        MatchCache cache;
+
+        void add(String pattern, PatternBinding binding) {
+            binding.order = bindings.size();
+            bindings.add(binding);
+
+            if (pattern != null && tree.add(binding.order, pattern, binding)) {
+                hasTree = true;
+            } else {
+                regex.add(binding);
+            }
+        }
+
+        Iterator<Match> match(YokeRequest request) {
+            List<RouteTree.Route<PatternBinding>> hits = null;
+            String[] segments = null;
+
+            if (hasTree) {
+                // split once per request, shared by all routers
+                segments = request.pathSegments();
+                if (segments != null) {
+                    hits = new ArrayList<>(2);
+                    tree.match(segments, hits);
+                    if (hits.size() > 1) {
+                        // routes are tried in the order they were registered
+                        Collections.sort(hits, REGISTRATION_ORDER);
                     }
+                }
+            }
+
+            return new Matches(regex, request.path(), segments, hits);
+        }
+
+        void init(Vertx vertx, String mount) {
+            for (PatternBinding binding : bindings) {
+                binding.init(vertx, mount);
+            }
+        }
+
+        void freeze() {
+            for (PatternBinding binding : bindings) {
+                binding.freeze();
+            }
+            bindings = Collections.unmodifiableList(Arrays.asList(bindings.toArray(new PatternBinding[bindings.size()])));
+            regex = Collections.unmodifiableList(Arrays.asList(regex.toArray(new PatternBinding[regex.size()])));
+        }
+    }
 
-                    // the object was marked with a specific content type
-                    if (produces != null) {
-                        String bestContentType = request.accepts(produces);
+    /**
+     * Merges the tree hits and the regular expression routes in registration order. A regular expression is only
+     * evaluated when the iteration reaches it, so once a route handles the request the remaining routes cost nothing.
+     */
+    private static final class Matches implements Iterator<Match> {
+        private final List<PatternBinding> regex;
+        private final String path;
+        private final String[] segments;
+        // tree hits sorted by registration order, null if the tree was not searched
+        private final List<RouteTree.Route<PatternBinding>> hits;
+        private int hit;
+        private int rx;
+        private Match next;
+
+        Matches(List<PatternBinding> regex, String path, String[] segments, List<RouteTree.Route<PatternBinding>> hits) {
+            this.regex = regex;
+            this.path = path;
+            this.segments = segments;
+            this.hits = hits;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                next = advance();
+            }
+            return next != null;
+        }
+
+        @Override
+        public Match next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Match match = next;
+            next = null;
+            return match;
+        }
 
-                        // the client does not know how to handle our content type, return 406
-                        if (bestContentType == null) {
-                            next.handle(406);
-                            return;
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private Match advance() {
+            final RouteTree.Route<PatternBinding> route = hits != null && hit < hits.size() ? hits.get(hit) : null;
+
+            // regular expressions registered before the next tree hit come first
+            while (rx < regex.size() && (route == null || regex.get(rx).order < route.order)) {
+                final Match match = match(regex.get(rx++));
+                if (match != null) {
+                    return match;
+                }
+            }
+
+            if (route == null) {
+                return null;
+            }
+
+            hit++;
+            final String[] values = new String[route.params()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = route.value(i, segments);
+            }
+            return new Match(route.value, values);
+        }
+
+        private Match match(PatternBinding binding) {
+            final Matcher m = binding.pattern.matcher(path);
+            if (!m.matches()) {
+                return null;
+            }
+
+            final String[] values;
+            if (binding.paramNames != null) {
+                values = new String[binding.paramNames.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = m.group(binding.paramNames[i]);
+                }
+            } else {
+                values = new String[m.groupCount()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = m.group(i + 1);
+                }
+            }
+            return new Match(binding, values);
+        }
+    }
+
+    /**
+     * Route registration generated at compile time by the
+     * [RouterProcessor](../annotations/processor/RouterProcessor.html) for a class with annotated methods. The
+     * generated class is named after the binary name of the annotated class with the ```$$YokeRoutes``` suffix.
+     */
+    public interface Table<T> {
+        /**
+         * Registers all annotated methods of the target on the router.
+         */
+        void register(Router router, T target);
+    }
+
+    /**
+     * Middleware for an annotated method. Performs the content negotiation declared with
+     * [Consumes](../annotations/Consumes.html) and [Produces](../annotations/Produces.html) and invokes the method,
+     * exceptions thrown by the method are passed to the error handler.
+     *
+     * Arguments annotated with [Param](../annotations/Param.html) are bound by name, path params are taken from the
+     * matched route and anything else from the request params (e.g.: the query string). The raw values are passed to
+     * [invoke](#invoke) in the order of the ```params``` names and converted with the ```as*``` methods, conversion
+     * errors end the request with ```400```.
+     */
+    public static abstract class Annotated extends Middleware {
+
+        private static final String[] NO_PARAMS = new String[0];
+
+        private final String[] consumes;
+        private final String[] produces;
+        private final String[] params;
+
+        /**
+         * @param consumes the accepted media types or null
+         * @param produces the produced media types or null
+         * @param params   the names of the params bound to the method arguments
+         */
+        protected Annotated(String[] consumes, String[] produces, String... params) {
+            this.consumes = consumes;
+            this.produces = produces;
+            this.params = params;
+        }
+
+        /**
+         * Invokes the annotated method.
+         *
+         * @param values the raw values of the bound params, in the order of the param names given to the constructor
+         */
+        protected abstract void invoke(YokeRequest request, Handler<Object> next, String[] values) throws Throwable;
+
+        @Override
+        public void handle(YokeRequest request, Handler<Object> next) {
+            handle(request, null, next);
+        }
+
+        void handle(YokeRequest request, Match match, Handler<Object> next) {
+            try {
+                // we only know how to process certain media types
+                if (consumes != null) {
+                    boolean canConsume = false;
+                    for (String c : consumes) {
+                        if (request.is(c)) {
+                            canConsume = true;
+                            break;
                         }
+                    }
+
+                    if (!canConsume) {
+                        // 415 Unsupported Media Type (we don't know how to handle this media)
+                        next.handle(415);
+                        return;
+                    }
+                }
 
-                        // mark the response with the correct content type (which allows middleware to know it later on)
-                        request.response().setContentType(bestContentType);
+                // the object was marked with a specific content type
+                if (produces != null) {
+                    String bestContentType = request.accepts(produces);
+
+                    // the client does not know how to handle our content type, return 406
+                    if (bestContentType == null) {
+                        next.handle(406);
+                        return;
                     }
 
-                    if (simple) {
-                        m.invoke(o, request);
-                    } else {
-                        m.invoke(o, request, next);
+                    // mark the response with the correct content type (which allows middleware to know it later on)
+                    request.response().setContentType(bestContentType);
+                }
+
+                invoke(request, next, values(request, match));
+            } catch (Error e) {
+                // errors such as OutOfMemoryError are not routed as a response
+                throw e;
+            } catch (Throwable t) {
+                // exceptions thrown by the method reach the error handler unwrapped
+                next.handle(t);
+            }
+        }
+
+        private String[] values(YokeRequest request, Match match) {
+            if (params.length == 0) {
+                return NO_PARAMS;
+            }
+
+            final String[] values = new String[params.length];
+            for (int i = 0; i < values.length; i++) {
+                String value = match != null ? match.get(params[i]) : null;
+                if (value == null) {
+                    value = request.params().get(params[i]);
+                }
+                values[i] = value;
+            }
+            return values;
+        }
+
+        public static String asString(String name, String value) {
+            return value;
+        }
+
+        public static int asInt(String name, String value) throws YokeException {
+            if (value != null) {
+                try {
+                    return Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    // fall through
+                }
+            }
+            throw invalid(name, value);
+        }
+
+        public static long asLong(String name, String value) throws YokeException {
+            if (value != null) {
+                try {
+                    return Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    // fall through
+                }
+            }
+            throw invalid(name, value);
+        }
+
+        public static boolean asBoolean(String name, String value) throws YokeException {
+            if ("true".equalsIgnoreCase(value)) {
+                return true;
+            }
+            if ("false".equalsIgnoreCase(value)) {
+                return false;
+            }
+            throw invalid(name, value);
+        }
+
+        public static UUID asUUID(String name, String value) throws YokeException {
+            if (value != null) {
+                // UUID.fromString accepts groups of any length
+                if (value.length() == 36) {
+                    try {
+                        return UUID.fromString(value);
+                    } catch (IllegalArgumentException e) {
+                        // fall through
                     }
-                } catch (IllegalAccessException | InvocationTargetException e) {
-                    e.printStackTrace();
-                    next.handle(e);
                 }
+                throw invalid(name, value);
+            }
+            return null;
+        }
+
+        private static YokeException invalid(String name, String value) {
+            return new YokeException(400, value == null ? "Missing param '" + name + "'" : "Invalid param '" + name + "'");
+        }
+
+        /**
+         * @return the name of the conversion method for the type of a bound argument, null if the type is not
+         * supported
+         */
+        public static String converter(String type) {
+            switch (type) {
+                case "java.lang.String":
+                    return "asString";
+                case "int":
+                    return "asInt";
+                case "long":
+                    return "asLong";
+                case "boolean":
+                    return "asBoolean";
+                case "java.util.UUID":
+                    return "asUUID";
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * Resolves the annotated method to a method handle bound to its target object, so requests call it directly
+     * instead of going through reflection. The raw values of the params are converted by filters on the handle, so
+     * primitives are not boxed. Return values are discarded.
+     */
+    private static MethodHandle invoker(final Object o, final Method m, final int offset, final String[] params) {
+        try {
+            // public methods of non public classes (e.g.: anonymous classes) are not accessible otherwise
+            m.setAccessible(true);
+            MethodHandle handle = MethodHandles.lookup().unreflect(m);
+            if (!Modifier.isStatic(m.getModifiers())) {
+                handle = handle.bindTo(o);
+            }
+
+            final Class<?>[] types = m.getParameterTypes();
+            for (int i = 0; i < params.length; i++) {
+                final Class<?> type = types[offset + i];
+                final MethodHandle converter = MethodHandles.lookup().findStatic(Annotated.class,
+                        Annotated.converter(type.getName()), MethodType.methodType(type, String.class, String.class));
+                handle = MethodHandles.filterArguments(handle, offset + i, MethodHandles.insertArguments(converter, 0, params[i]));
+            }
+
+            return handle
+                    .asSpreader(String[].class, params.length)
+                    .asType(offset == 1 ? SIMPLE : FULL);
+        } catch (IllegalAccessException | NoSuchMethodException | SecurityException e) {
+            throw new IllegalArgumentException("Cannot access " + m, e);
+        }
+    }
+
+    private static final MethodType SIMPLE = MethodType.methodType(void.class, YokeRequest.class, String[].class);
+    private static final MethodType FULL = MethodType.methodType(void.class, YokeRequest.class, Handler.class, String[].class);
+
+    private static Middleware wrap(final Object o, final Method m, final int offset, final String[] params, final String[] consumes, final String[] produces) {
+        final MethodHandle handle = invoker(o, m, offset, params);
+
+        if (offset == 1) {
+            return new Annotated(consumes, produces, params) {
+                @Override
+                protected void invoke(YokeRequest request, Handler<Object> next, String[] values) throws Throwable {
+                    handle.invokeExact(request, values);
+                }
+            };
+        }
+
+        return new Annotated(consumes, produces, params) {
+            @Override
+            protected void invoke(YokeRequest request, Handler<Object> next, String[] values) throws Throwable {
+                handle.invokeExact(request, (Handler) next, values);
             }
         };
     }
 
     /**
-     * Builds a Router from an annotated Java Object
+     * @return the names of the [Param](../annotations/Param.html) arguments after the request (and handler), null if
+     * a remaining argument is not annotated or its type cannot be converted
+     */
+    private static String[] params(Method m, int offset) {
+        final Class<?>[] types = m.getParameterTypes();
+        final Annotation[][] annotations = m.getParameterAnnotations();
+        final String[] params = new String[types.length - offset];
+
+        for (int i = 0; i < params.length; i++) {
+            for (Annotation a : annotations[offset + i]) {
+                if (a instanceof Param) {
+                    params[i] = ((Param) a).value();
+                }
+            }
+            if (params[i] == null || Annotated.converter(types[offset + i].getName()) == null) {
+                return null;
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Looks up the route table generated at compile time for the class of the object.
+     */
+    @SuppressWarnings("unchecked")
+    private static Table<Object> table(Class<?> clazz) {
+        try {
+            Class<?> generated = Class.forName(clazz.getName() + "$$YokeRoutes", true, clazz.getClassLoader());
+            if (Table.class.isAssignableFrom(generated)) {
+                return (Table<Object>) generated.newInstance();
+            }
+        } catch (ClassNotFoundException | LinkageError | InstantiationException | IllegalAccessException e) {
+            // not generated, scan the class
+        }
+        return null;
+    }
+
+    /**
+     * Builds a Router from an annotated Java Object. When the class of the object was compiled with the
+     * [RouterProcessor](../annotations/processor/RouterProcessor.html) the generated route table is used and no
+     * reflection takes place.
      */
     public static Router from(Object... objs) {
 
@@ -874,6 +1539,14 @@ public class Router extends Middleware {
 
         for (Object o : objs) {
 
+            if (!(o instanceof Class)) {
+                Table<Object> table = table(o.getClass());
+                if (table != null) {
+                    table.register(router, o);
+                    continue;
+                }
+            }
+
             boolean staticOnly = false;
 
             // when the Object is a Class then all markers have been added to static fields
@@ -900,20 +1573,24 @@ public class Router extends Middleware {
                 }
 
                 Class[] paramTypes = m.getParameterTypes();
-                int type = 0;
-
-                if (paramTypes != null) {
-                    if (paramTypes.length == 1 && paramTypes[0].equals(YokeRequest.class)) {
-                        // single argument handler
-                        type = 1;
-                    }
-                    if (paramTypes.length == 2 && paramTypes[0].equals(YokeRequest.class) && paramTypes[1].equals(Handler.class)) {
-                        // double argument handler
-                        type = 2;
+                int offset = 0;
+
+                if (paramTypes.length >= 1 && paramTypes[0].equals(YokeRequest.class)) {
+                    // request handler
+                    offset = 1;
+                    if (paramTypes.length >= 2 && paramTypes[1].equals(Handler.class)) {
+                        // middleware handler
+                        offset = 2;
                     }
                 }
 
-                if (type == 0) {
+                if (offset == 0) {
+                    continue;
+                }
+
+                // remaining arguments are bound to params
+                final String[] params = params(m, offset);
+                if (params == null) {
                     continue;
                 }
 
@@ -949,34 +1626,34 @@ public class Router extends Middleware {
 
                 for (Annotation a : annotations) {
                     if (a instanceof GET) {
-                        router.get(((GET) a).value(), wrap(o, m, type == 1, consumes, produces));
+                        router.get(((GET) a).value(), wrap(o, m, offset, params, consumes, produces));
                     }
                     if (a instanceof PUT) {
-                        router.put(((PUT) a).value(), wrap(o, m, type == 1, consumes, produces));
+                        router.put(((PUT) a).value(), wrap(o, m, offset, params, consumes, produces));
                     }
                     if (a instanceof POST) {
-                        router.post(((POST) a).value(), wrap(o, m, type == 1, consumes, produces));
+                        router.post(((POST) a).value(), wrap(o, m, offset, params, consumes, produces));
                     }
                     if (a instanceof DELETE) {
-                        router.delete(((DELETE) a).value(), wrap(o, m, type == 1, consumes, produces));
+                        router.delete(((DELETE) a).value(), wrap(o, m, offset, params, consumes, produces));
                     }
                     if (a instanceof OPTIONS) {
-                        router.options(((OPTIONS) a).value(), wrap(o, m, type == 1, consumes, produces));
+                        router.options(((OPTIONS) a).value(), wrap(o, m, offset, params, consumes, produces));
                     }
                     if (a instanceof HEAD) {
-                        router.head(((HEAD) a).value(), wrap(o, m, type == 1, consumes, produces));
+                        router.head(((HEAD) a).value(), wrap(o, m, offset, params, consumes, produces));
                     }
                     if (a instanceof TRACE) {
-                        router.trace(((TRACE) a).value(), wrap(o, m, type == 1, consumes, produces));
+                        router.trace(((TRACE) a).value(), wrap(o, m, offset, params, consumes, produces));
                     }
                     if (a instanceof PATCH) {
-                        router.patch(((PATCH) a).value(), wrap(o, m, type == 1, consumes, produces));
+                        router.patch(((PATCH) a).value(), wrap(o, m, offset, params, consumes, produces));
                     }
                     if (a instanceof CONNECT) {
-                        router.connect(((CONNECT) a).value(), wrap(o, m, type == 1, consumes, produces));
+                        router.connect(((CONNECT) a).value(), wrap(o, m, offset, params, consumes, produces));
                     }
                     if (a instanceof ALL) {
-                        router.all(((ALL) a).value(), wrap(o, m, type == 1, consumes, produces));
+                        router.all(((ALL) a).value(), wrap(o, m, offset, params, consumes, produces));
                     }
                 }
             }
@@ -4,6 +4,7 @@
 package com.jetdrone.vertx.yoke.middleware;
 
 import com.jetdrone.vertx.yoke.Middleware;
+import com.jetdrone.vertx.yoke.core.Context;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.json.JsonObject;
 
@@ -82,7 +83,7 @@ public class Session extends Middleware {
         response.headersHandler(new Handler<Void>() {
             @Override
             public void handle(Void done) {
-                JsonObject session = request.get("session");
+                JsonObject session = request.get(Context.SESSION);
                 String sessionId = session == null ? null : session.getString("id");
 
                 // removed
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2011-2014 the original author or authors.
+ */
+package com.jetdrone.vertx.yoke.middleware;
+
+import com.jetdrone.vertx.yoke.core.YokeException;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/** # Sync
+ *
+ * Terminal handler written in synchronous style. Instead of nesting callbacks the handler waits for asynchronous
+ * results with ```await```, the asynchronous call itself is started on the event loop that owns the request and only
+ * the handler thread waits for the result.
+ *
+ * Handlers run on the bounded worker pool of [Blocking](Blocking.html) and writes to the response are executed on the
+ * event loop. Any exception thrown by the handler is passed to the error handler.
+ *
+ * This is not a way to wait on slow I/O without tying up threads: there are no virtual threads on Java 7, so every
+ * ```await``` blocks a worker thread until the result arrives or the timeout expires. With the defaults (16 threads,
+ * 30 seconds) 16 slow calls are enough to make the endpoint queue and then reject requests. Size the pool for the
+ * number of requests that can be waiting at the same time and keep the timeout close to the latency of the calls,
+ * for high concurrency I/O bound endpoints prefer plain asynchronous middleware.
+ *
+ * <pre>
+ * router.get("/session/:sid", new Sync() {
+ *   public void handle(YokeRequest request) throws Throwable {
+ *     final String sid = request.params().get("sid");
+ *     JsonObject session = await(new Call&lt;JsonObject&gt;() {
+ *       public void call(Handler&lt;JsonObject&gt; handler) {
+ *         store.get(sid, handler);
+ *       }
+ *     });
+ *     request.response().end(session);
+ *   }
+ * });
+ * </pre>
+ */
+public abstract class Sync extends Blocking {
+
+    /**
+     * An asynchronous call that completes by calling the given handler once.
+     */
+    public interface Call<T> {
+        void call(Handler<T> handler);
+    }
+
+    // context of the request being handled by the current worker thread
+    private static final ThreadLocal<Context> CURRENT = new ThreadLocal<>();
+
+    private final long timeout;
+
+    /**
+     * Creates a sync handler with its own pool.
+     *
+     * @param threads   maximum number of worker threads, i.e.: concurrent requests
+     * @param queueSize maximum number of requests waiting for a worker
+     * @param timeout   maximum time in milliseconds to wait on each ```await```
+     */
+    public Sync(int threads, int queueSize, long timeout) {
+        super(threads, queueSize);
+        this.timeout = timeout;
+    }
+
+    public Sync(int threads, int queueSize) {
+        this(threads, queueSize, 30000);
+    }
+
+    public Sync() {
+        this(16, 256);
+    }
+
+    /**
+     * Handles the request on a worker thread.
+     *
+     * @param request the request
+     * @throws Throwable any error is passed to the error handler
+     */
+    public abstract void handle(YokeRequest request) throws Throwable;
+
+    @Override
+    protected final void execute(Context context, YokeRequest request, Handler<Object> next) {
+        CURRENT.set(context);
+        try {
+            handle(request);
+        } catch (Throwable t) {
+            next.handle(t);
+        } finally {
+            CURRENT.remove();
+        }
+    }
+
+    /**
+     * Starts the call on the event loop and waits for its result. Can only be called from ```handle```.
+     *
+     * @param call the asynchronous call
+     * @return the value passed to the handler of the call
+     * @throws YokeException with status 504 when the call does not complete in time
+     */
+    protected <T> T await(final Call<T> call) throws Throwable {
+        final Context context = CURRENT.get();
+        if (context == null) {
+            throw new IllegalStateException("await can only be called from Sync.handle");
+        }
+
+        final Outcome<T> outcome = new Outcome<>();
+
+        context.runOnContext(new Handler<Void>() {
+            @Override
+            public void handle(Void event) {
+                try {
+                    call.call(outcome);
+                } catch (Throwable t) {
+                    // release the waiting thread now instead of at the timeout
+                    outcome.fail(t);
+                }
+            }
+        });
+
+        if (!outcome.latch.await(timeout, TimeUnit.MILLISECONDS)) {
+            throw new YokeException(504, "Timed out waiting for an asynchronous result");
+        }
+        if (outcome.failure != null) {
+            throw outcome.failure;
+        }
+        return outcome.value;
+    }
+
+    /**
+     * Same as ```await``` for calls that complete with an ```AsyncResult```, a failed result throws its cause.
+     *
+     * @param call the asynchronous call
+     * @return the result
+     */
+    protected <T> T awaitResult(final Call<AsyncResult<T>> call) throws Throwable {
+        AsyncResult<T> result = await(call);
+        if (result.failed()) {
+            throw result.cause();
+        }
+        return result.result();
+    }
+
+    private static class Outcome<T> implements Handler<T> {
+        final CountDownLatch latch = new CountDownLatch(1);
+        T value;
+        Throwable failure;
+
+        @Override
+        public void handle(T value) {
+            // only the first completion counts
+            if (latch.getCount() > 0) {
+                this.value = value;
+                latch.countDown();
+            }
+        }
+
+        void fail(Throwable failure) {
+            if (latch.getCount() > 0) {
+                this.failure = failure;
+                latch.countDown();
+            }
+        }
+    }
+}
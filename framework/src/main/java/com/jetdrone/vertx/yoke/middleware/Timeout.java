@@ -4,17 +4,24 @@
 package com.jetdrone.vertx.yoke.middleware;
 
 import com.jetdrone.vertx.yoke.Middleware;
+import com.jetdrone.vertx.yoke.util.WheelTimer;
 import org.vertx.java.core.Handler;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /** # Timeout
  *
  * Times out the request in ```ms```, defaulting to ```5000```.
  *
  * The timeout error is passed to ```next.handle(408)``` so that you may customize the response behaviour.
+ *
+ * Deadlines are kept on the [WheelTimer](../util/WheelTimer.html) of the event loop instead of a Vert.x timer per
+ * request, the number of requests that timed out is available from ```expired()```.
  */
 public class Timeout extends Middleware {
 
     private final long timeout;
+    private final AtomicLong expired = new AtomicLong();
 
     public Timeout(long timeout) {
         this.timeout = timeout;
@@ -23,13 +30,22 @@ public class Timeout extends Middleware {
     public Timeout() {
         this(5000);
     }
+
+    /**
+     * @return the number of requests that timed out
+     */
+    public long expired() {
+        return expired.get();
+    }
+
     @Override
     public void handle(final YokeRequest request, final Handler<Object> next) {
         final YokeResponse response = request.response();
 
-        final long timerId = vertx.setTimer(timeout, new Handler<Long>() {
+        final WheelTimer.Task task = WheelTimer.current(vertx).schedule(timeout, new Handler<Void>() {
             @Override
-            public void handle(Long event) {
+            public void handle(Void event) {
+                expired.incrementAndGet();
                 next.handle(408);
             }
         });
@@ -37,7 +53,7 @@ public class Timeout extends Middleware {
         response.endHandler(new Handler<Void>() {
             @Override
             public void handle(Void event) {
-                vertx.cancelTimer(timerId);
+                task.cancel();
             }
         });
 
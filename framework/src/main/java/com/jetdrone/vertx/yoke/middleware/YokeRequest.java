@@ -4,7 +4,10 @@
 package com.jetdrone.vertx.yoke.middleware;
 
 import com.jetdrone.vertx.yoke.core.Context;
+import com.jetdrone.vertx.yoke.core.impl.MediaType;
+import com.jetdrone.vertx.yoke.core.impl.RouteTree;
 import com.jetdrone.vertx.yoke.store.SessionStore;
+import com.jetdrone.vertx.yoke.util.TrustedProxies;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.MultiMap;
 import org.vertx.java.core.buffer.Buffer;
@@ -20,43 +23,17 @@ import javax.security.cert.X509Certificate;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.util.*;
+import java.util.regex.Pattern;
 
 /** YokeRequest is an extension to Vert.x *HttpServerRequest* with some helper methods to make it easier to perform common
  * tasks related to web application development.
  */
 public class YokeRequest implements HttpServerRequest {
 
-    private static final Comparator<String> ACCEPT_X_COMPARATOR = new Comparator<String>() {
-        float getQuality(String s) {
-            if (s == null) {
-                return 0;
-            }
-
-            String[] params = s.split(" *; *");
-            for (int i = 1; i < params.length; i++) {
-                String[] q = params[1].split(" *= *");
-                if ("q".equals(q[0])) {
-                    return Float.parseFloat(q[1]);
-                }
-            }
-            return 1;
-        }
-        @Override
-        public int compare(String o1, String o2) {
-            float f1 = getQuality(o1);
-            float f2 = getQuality(o2);
-            if (f1 < f2) {
-                return 1;
-            }
-            if (f1 > f2) {
-                return -1;
-            }
-            return 0;
-        }
-    };
+    private static final Pattern LOCALE_SEPARATOR = Pattern.compile("_|-");
 
     // the original request
-    private final HttpServerRequest request;
+    private HttpServerRequest request;
     // the wrapped response
     private final YokeResponse response;
     // the request context
@@ -73,6 +50,10 @@ public class YokeRequest implements HttpServerRequest {
     protected Object body;
     private Map<String, YokeFileUpload> files;
     private Set<YokeCookie> cookies;
+    // form decoded by Yoke instead of Vert.x (e.g.: compressed bodies)
+    private MultiMap formAttributes;
+    // path params of the matched routes not yet added to params(), pairs of names (null for un-named) and values
+    private List<String[]> pathParams;
     // control flags
     private boolean expectMultiPartCalled = false;
 
@@ -85,16 +66,51 @@ public class YokeRequest implements HttpServerRequest {
         this.store = store;
     }
 
+    /** Rebinds this request to a new Vert.x request, clearing all per request state including the context and the
+     * wrapped response. This is used internally by Yoke when request recycling is enabled and should not be called
+     * by middleware.
+     *
+     * @param request the new Vert.x request
+     */
+    public void recycle(HttpServerRequest request) {
+        this.request = request;
+        // lazily read from the new request
+        this.method = null;
+        this.bodyLengthLimit = -1;
+        this.body = null;
+        this.files = null;
+        this.cookies = null;
+        this.formAttributes = null;
+        this.pathParams = null;
+        this.expectMultiPartCalled = false;
+        this.cachedNormalizedPath = null;
+        this.cachedPathSegments = null;
+        this.cachedIp = null;
+        context.clear();
+        response.recycle(request.response());
+    }
+
     /** Allow getting properties in a generified way.
      *
      * @param name The key to get
      * @return {R} The found object
      */
-    @SuppressWarnings("unchecked")
     public <R> R get(String name) {
-        // do some conversions for JsonObject/JsonArray
-        Object o = context.get(name);
+        return convert(context.get(name));
+    }
 
+    /** Same as get for a key registered with [Context.register](../core/Context.html#register), skips the key lookup.
+     *
+     * @param slot The slot of the key to get
+     * @return {R} The found object
+     */
+    public <R> R get(int slot) {
+        return convert(context.get(slot));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <R> R convert(Object o) {
+        // do some conversions for JsonObject/JsonArray
         if (o instanceof Map) {
             return (R) new JsonObject((Map) o);
         }
@@ -118,6 +134,21 @@ public class YokeRequest implements HttpServerRequest {
         }
     }
 
+    /** Same as get with a default value for a key registered with
+     * [Context.register](../core/Context.html#register), skips the key lookup.
+     *
+     * @param slot The slot of the key to get
+     * @param defaultValue value returned when the key does not exist
+     * @return {R} The found object
+     */
+    public <R> R get(int slot, R defaultValue) {
+        if (context.containsKey(slot)) {
+            return get(slot);
+        } else {
+            return defaultValue;
+        }
+    }
+
     /** Allows putting a value into the context
      *
      * @param name the key to store
@@ -132,6 +163,20 @@ public class YokeRequest implements HttpServerRequest {
         return (R) context.put(name, value);
     }
 
+    /** Same as put for a key registered with [Context.register](../core/Context.html#register), skips the key lookup.
+     *
+     * @param slot the slot of the key to store
+     * @param value the value to store
+     * @return {R} the previous value or null
+     */
+    @SuppressWarnings("unchecked")
+    public <R> R put(int slot, R value) {
+        if (value == null) {
+            return (R) context.remove(slot);
+        }
+        return (R) context.put(slot, value);
+    }
+
     /** Allow getting headers in a generified way.
      *
      * @param name The key to get
@@ -268,6 +313,11 @@ public class YokeRequest implements HttpServerRequest {
         this.body = body;
     }
 
+    /** Mutator for the form attributes, when the body was not parsed by Vert.x */
+    void setFormAttributes(MultiMap formAttributes) {
+        this.formAttributes = formAttributes;
+    }
+
     /** The uploaded setFiles */
     public Map<String, YokeFileUpload> files() {
         return files;
@@ -297,14 +347,14 @@ public class YokeRequest implements HttpServerRequest {
     /** Destroys a session from the request context and also from the storage engine.
      */
     public void destroySession() {
-        JsonObject session = get("session");
+        JsonObject session = get(Context.SESSION);
         if (session == null) {
             return;
         }
 
         String sessionId = session.getString("id");
         // remove from the context
-        put("session", null);
+        put(Context.SESSION, null);
 
         if (sessionId == null) {
             return;
@@ -335,7 +385,7 @@ public class YokeRequest implements HttpServerRequest {
             @Override
             public void handle(JsonObject session) {
                 if (session != null) {
-                    put("session", session);
+                    put(Context.SESSION, session);
                 }
                 handler.handle(null);
             }
@@ -363,12 +413,12 @@ public class YokeRequest implements HttpServerRequest {
     public JsonObject createSession(final String sessionId) {
         final JsonObject session = new JsonObject().putString("id", sessionId);
 
-        put("session", session);
+        put(Context.SESSION, session);
 
         response().headersHandler(new Handler<Void>() {
             @Override
             public void handle(Void event) {
-                JsonObject session = get("session");
+                JsonObject session = get(Context.SESSION);
                 if (session != null) {
                     store.set(sessionId, session, new Handler<Object>() {
                         @Override
@@ -390,26 +440,6 @@ public class YokeRequest implements HttpServerRequest {
         return secure;
     }
 
-    private static String[] splitMime(String mime) {
-        // find any ; e.g.: "application/json;q=0.8"
-        int space = mime.indexOf(';');
-
-        if (space != -1) {
-            mime = mime.substring(0, space);
-        }
-
-        String[] parts = mime.split("/");
-
-        if (parts.length < 2) {
-            return new String[] {
-                    parts[0],
-                    "*"
-            };
-        }
-
-        return parts;
-    }
-
     /** Check if the given type(s) is acceptable, returning the best match when true, otherwise null, in which
      * case you should respond with 406 "Not Acceptable".
      *
@@ -423,21 +453,11 @@ public class YokeRequest implements HttpServerRequest {
             return types[0];
         }
 
-        // parse
-        String[] acceptTypes = accept.split(" *, *");
-        // sort on quality
-        Arrays.sort(acceptTypes, ACCEPT_X_COMPARATOR);
-
-        for (String senderAccept : acceptTypes) {
-            String[] sAccept = splitMime(senderAccept);
-
+        // parsed once, sorted on quality
+        for (MediaType senderAccept : MediaType.parse(accept)) {
             for (String appAccept : types) {
-                String[] aAccept = splitMime(appAccept);
-
-                if (
-                        (sAccept[0].equals(aAccept[0]) || "*".equals(sAccept[0]) || "*".equals(aAccept[0])) &&
-                        (sAccept[1].equals(aAccept[1]) || "*".equals(sAccept[1]) || "*".equals(aAccept[1]))) {
-                    return senderAccept;
+                if (senderAccept.matches(MediaType.of(appAccept))) {
+                    return senderAccept.raw;
                 }
             }
         }
@@ -448,28 +468,13 @@ public class YokeRequest implements HttpServerRequest {
     /** Returns the array of accept-? ordered by quality.
      */
     public List<String> sortedHeader(String header) {
-        String accept = getHeader(header);
-        // accept anything when accept is not present
-        if (accept == null) {
-            return Collections.emptyList();
-        }
-
-        // parse
-        String[] items = accept.split(" *, *");
-        // sort on quality
-        Arrays.sort(items, ACCEPT_X_COMPARATOR);
+        // parsed once, sorted on quality
+        MediaType[] items = MediaType.parse(getHeader(header));
 
         List<String> list = new ArrayList<>(items.length);
 
-        for (String item : items) {
-            // find any ; e.g.: "application/json;q=0.8"
-            int space = item.indexOf(';');
-
-            if (space != -1) {
-                list.add(item.substring(0, space));
-            } else {
-                list.add(item);
-            }
+        for (MediaType item : items) {
+            list.add(item.value);
         }
 
         return list;
@@ -504,48 +509,89 @@ public class YokeRequest implements HttpServerRequest {
             return false;
         }
         // get the content type only (exclude charset)
-        ct = ct.split(";")[0];
+        MediaType contentType = MediaType.of(ct);
 
         // if we received an incomplete CT
         if (type.indexOf('/') == -1) {
             // when the content is incomplete we assume */type, e.g.:
             // json -> */json
-            type = "*/" + type;
+            return type.equalsIgnoreCase(contentType.subtype);
         }
 
-        // process wildcards
-        if (type.contains("*")) {
-            String[] parts = type.split("/");
-            String[] ctParts = ct.split("/");
-            if ("*".equals(parts[0]) && parts[1].equals(ctParts[1])) {
-                return true;
-            }
+        MediaType expected = MediaType.of(type);
 
-            if ("*".equals(parts[1]) && parts[0].equals(ctParts[0])) {
-                return true;
-            }
+        return ("*".equals(expected.type) || expected.type.equals(contentType.type)) &&
+                ("*".equals(expected.subtype) || expected.subtype.equals(contentType.subtype));
+    }
 
-            return false;
+    private String cachedIp = null;
+
+    /** Returns the ip address of the client. When trust-proxy is enabled (default) the address is read from the
+     * ```X-Forwarded-For``` header (or the legacy ```x-forward-for```): the hops are walked from right to left and
+     * the first hop that is not a trusted proxy is the client. trust-proxy can be ```true``` (trust all hops),
+     * ```false``` or a [TrustedProxies](../util/TrustedProxies.html) instance. Host names are never resolved.
+     */
+    public String ip() {
+        if (cachedIp != null) {
+            return cachedIp;
         }
 
-        return ct.contains(type);
-    }
+        final String remote = remoteIp();
+        final Object trustProxy = context.get("trust-proxy");
 
-    /** Returns the ip address of the client, when trust-proxy is true (default) then first look into X-Forward-For
-     * Header */
-    public String ip() {
-        Boolean trustProxy = (Boolean) context.get("trust-proxy");
-        if (trustProxy != null && trustProxy) {
-            String xForwardFor = getHeader("x-forward-for");
+        String ip = remote;
+
+        if (Boolean.TRUE.equals(trustProxy)) {
+            final String xForwardFor = forwardedFor();
             if (xForwardFor != null) {
-                String[] ips = xForwardFor.split(" *, *");
-                if (ips.length > 0) {
-                    return ips[0];
+                // all hops are trusted, the client is the first one
+                int end = xForwardFor.indexOf(',');
+                String first = xForwardFor.substring(0, end == -1 ? xForwardFor.length() : end).trim();
+                if (first.length() > 0) {
+                    ip = first;
+                }
+            }
+        } else if (trustProxy instanceof TrustedProxies) {
+            final TrustedProxies proxies = (TrustedProxies) trustProxy;
+            final String xForwardFor = proxies.contains(remote) ? forwardedFor() : null;
+            if (xForwardFor != null) {
+                int end = xForwardFor.length();
+                while (end >= 0) {
+                    final int start = xForwardFor.lastIndexOf(',', end - 1);
+                    final String hop = xForwardFor.substring(start + 1, end).trim();
+                    if (hop.length() > 0) {
+                        ip = hop;
+                        if (!proxies.contains(hop)) {
+                            break;
+                        }
+                    }
+                    if (start == -1) {
+                        break;
+                    }
+                    end = start;
                 }
             }
         }
 
-        return request.remoteAddress().getHostName();
+        cachedIp = ip;
+        return cachedIp;
+    }
+
+    private String forwardedFor() {
+        String xForwardFor = getHeader("x-forwarded-for");
+        if (xForwardFor == null) {
+            xForwardFor = getHeader("x-forward-for");
+        }
+        return xForwardFor;
+    }
+
+    private String remoteIp() {
+        final InetSocketAddress address = request.remoteAddress();
+        if (address.getAddress() != null) {
+            // the literal address, never a reverse lookup
+            return address.getAddress().getHostAddress();
+        }
+        return address.getHostString();
     }
 
     /** Allow getting parameters in a generified way.
@@ -588,7 +634,7 @@ public class YokeRequest implements HttpServerRequest {
      * @return {String} The found object
      */
     public String getFormParameter(String name) {
-        return request.formAttributes().get(name);
+        return formAttributes().get(name);
     }
 
     /** Allow getting form parameters in a generified way and return defaultValue if the key does not exist.
@@ -598,7 +644,7 @@ public class YokeRequest implements HttpServerRequest {
      * @return {String} The found object
      */
     public String getFormParameter(String name, String defaultValue) {
-        String value = request.formAttributes().get(name);
+        String value = formAttributes().get(name);
 
         if (value == null) {
             return defaultValue;
@@ -613,7 +659,7 @@ public class YokeRequest implements HttpServerRequest {
      * @return {List} The found object
      */
     public List<String> getFormParameterList(String name) {
-        return request.formAttributes().getAll(name);
+        return formAttributes().getAll(name);
     }
 
     /** Return the real request */
@@ -626,22 +672,13 @@ public class YokeRequest implements HttpServerRequest {
      * @return Locale (best match if more than one)
      */
     public Locale locale() {
-        String languages = getHeader("Accept-Language");
-        if (languages != null) {
-            // parse
-            String[] acceptLanguages = languages.split(" *, *");
-            // sort on quality
-            Arrays.sort(acceptLanguages, ACCEPT_X_COMPARATOR);
-
-            String bestLanguage = acceptLanguages[0];
+        // parsed once, sorted on quality
+        MediaType[] acceptLanguages = MediaType.parse(getHeader("Accept-Language"));
 
-            int idx = bestLanguage.indexOf(';');
+        if (acceptLanguages.length > 0) {
+            String bestLanguage = acceptLanguages[0].value;
 
-            if (idx != -1) {
-                bestLanguage = bestLanguage.substring(0, idx).trim();
-            }
-
-            String[] parts = bestLanguage.split("_|-");
+            String[] parts = LOCALE_SEPARATOR.split(bestLanguage);
             switch (parts.length) {
                 case 3: return new Locale(parts[0], parts[1], parts[2]);
                 case 2: return new Locale(parts[0], parts[1]);
@@ -676,7 +713,13 @@ public class YokeRequest implements HttpServerRequest {
     }
 
     private String cachedNormalizedPath = null;
+    private String[] cachedPathSegments = null;
 
+    /** Returns the path with empty, ```.``` and ```..``` segments resolved and without a trailing slash. Paths that
+     * are already normal (the common case) are returned as is after a single scan.
+     *
+     * @return the normalized path or null if the path is not absolute or tries to go above the root
+     */
     public String normalizedPath() {
         if (cachedNormalizedPath != null) {
             return cachedNormalizedPath;
@@ -684,53 +727,98 @@ public class YokeRequest implements HttpServerRequest {
 
         String path = request.path();
 
-        // path should start with / so we should ignore it
-        if (path.charAt(0) == '/') {
-            path = path.substring(1);
-        } else {
+        // path should start with /
+        if (path.length() == 0 || path.charAt(0) != '/') {
             return null;
         }
 
-        String[] parts = path.split("/");
-        Deque<String> resolved = new LinkedList<>();
+        if (isNormal(path)) {
+            cachedNormalizedPath = path;
+            return cachedNormalizedPath;
+        }
 
-        for (String p : parts) {
-            if ("".equals(p)) {
-                continue;
-            }
+        // resolve the segments in place, the first count entries are the resolved path
+        String[] parts = pathSegments().clone();
+        int count = 0;
 
-            if (".".equals(p)) {
+        for (String p : parts) {
+            if (p.length() == 0 || ".".equals(p)) {
                 continue;
             }
 
             if ("..".equals(p)) {
                 // if there is no entry the path is trying to jump outside the root
-                if (resolved.pollLast() == null) {
+                if (count == 0) {
                     return null;
                 }
+                count--;
                 continue;
             }
 
-            resolved.offerLast(p);
+            parts[count++] = p;
         }
 
-        if (resolved.size() == 0) {
+        if (count == 0) {
             cachedNormalizedPath = "/";
             return cachedNormalizedPath;
         }
 
         // re assemble the path
-        StringBuilder sb = new StringBuilder();
+        StringBuilder sb = new StringBuilder(path.length());
 
-        for (String s : resolved) {
-            sb.append("/");
-            sb.append(s);
+        for (int i = 0; i < count; i++) {
+            sb.append('/');
+            sb.append(parts[i]);
         }
 
         cachedNormalizedPath = sb.toString();
         return cachedNormalizedPath;
     }
 
+    /** Checks in a single pass that an absolute path has no empty, ```.``` or ```..``` segments and no trailing slash.
+     */
+    private static boolean isNormal(String path) {
+        final int len = path.length();
+
+        if (len == 1) {
+            // root
+            return true;
+        }
+
+        for (int i = 0; i < len; i++) {
+            if (path.charAt(i) == '/') {
+                // empty segment or trailing slash
+                if (i + 1 == len || path.charAt(i + 1) == '/') {
+                    return false;
+                }
+                // . or .. segment
+                if (path.charAt(i + 1) == '.') {
+                    int end = i + 2;
+                    if (end < len && path.charAt(end) == '.') {
+                        end++;
+                    }
+                    if (end == len || path.charAt(end) == '/') {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Returns the segments of the request path (not normalized), the leading slash is dropped and empty segments are
+     * kept, so ```/a/b/``` becomes ```["a", "b", ""]```. The path is split once per request and shared by the Router
+     * and the normalization, the returned array must not be modified.
+     *
+     * @return the segments or null if the path is not absolute
+     */
+    public String[] pathSegments() {
+        if (cachedPathSegments == null) {
+            cachedPathSegments = RouteTree.split(path());
+        }
+        return cachedPathSegments;
+    }
+
     @Override
     public String query() {
         return request.query();
@@ -748,7 +836,33 @@ public class YokeRequest implements HttpServerRequest {
 
     @Override
     public MultiMap params() {
-        return request.params();
+        final MultiMap params = request.params();
+        if (pathParams != null) {
+            final List<String[]> pending = pathParams;
+            pathParams = null;
+            for (int i = 0; i < pending.size(); i += 2) {
+                final String[] names = pending.get(i);
+                final String[] values = pending.get(i + 1);
+                for (int j = 0; j < values.length; j++) {
+                    params.add(names != null ? names[j] : "param" + j, values[j]);
+                }
+            }
+        }
+        return params;
+    }
+
+    /** Adds the params of a matched route, they are only copied to [params](#params) when it is first called so
+     * routes that bind their params directly do not pay for it.
+     *
+     * @param names the param names or null for un-named params (```param0```, ```param1```, ...)
+     * @param values the param values
+     */
+    void addPathParams(String[] names, String[] values) {
+        if (pathParams == null) {
+            pathParams = new ArrayList<>(2);
+        }
+        pathParams.add(names);
+        pathParams.add(values);
     }
 
     @Override
@@ -802,6 +916,9 @@ public class YokeRequest implements HttpServerRequest {
 
     @Override
     public MultiMap formAttributes() {
+        if (formAttributes != null) {
+            return formAttributes;
+        }
         return request.formAttributes();
     }
 
@@ -6,6 +6,7 @@ package com.jetdrone.vertx.yoke.middleware;
 import com.jetdrone.vertx.yoke.Engine;
 import com.jetdrone.vertx.yoke.MimeType;
 import com.jetdrone.vertx.yoke.core.Context;
+import com.jetdrone.vertx.yoke.middleware.filters.AsyncWriterFilter;
 import com.jetdrone.vertx.yoke.middleware.filters.WriterFilter;
 import com.jetdrone.vertx.yoke.core.YokeException;
 import io.netty.handler.codec.http.Cookie;
@@ -28,7 +29,7 @@ import java.util.*;
 /** # YokeResponse */
 public class YokeResponse implements HttpServerResponse {
     // the original request
-    private final HttpServerResponse response;
+    private HttpServerResponse response;
     // the context
     private final Context context;
     // engine map
@@ -43,7 +44,15 @@ public class YokeResponse implements HttpServerResponse {
 
     // writer filter
     private WriterFilter filter;
+    private FilterSelector selector;
     private boolean hasBody;
+    // close handler set by the application and internal hooks that run before it
+    private Handler<Void> closeHandler;
+    private List<Handler<Void>> closeHooks;
+
+    // event loop that owns the response while it is handled from other threads
+    private org.vertx.java.core.Context owner;
+    private Thread ownerThread;
 
     public YokeResponse(HttpServerResponse response, Context context, Map<String, Engine> engines) {
         this.response = response;
@@ -51,10 +60,74 @@ public class YokeResponse implements HttpServerResponse {
         this.engines = engines;
     }
 
+    /**
+     * Rebinds this response to a new Vert.x response, clearing all per request state. This is used internally by
+     * Yoke when request recycling is enabled and should not be called by middleware.
+     *
+     * @param response the new Vert.x response
+     */
+    void recycle(HttpServerResponse response) {
+        this.response = response;
+        if (cookies != null) {
+            cookies.clear();
+        }
+        if (headersHandler != null) {
+            headersHandler.clear();
+        }
+        headersHandlerTriggered = false;
+        if (endHandler != null) {
+            endHandler.clear();
+        }
+        filter = null;
+        selector = null;
+        hasBody = false;
+        closeHandler = null;
+        if (closeHooks != null) {
+            closeHooks.clear();
+        }
+        owner = null;
+        ownerThread = null;
+    }
+
+    /**
+     * Binds this response to the current event loop. From this moment on, writes, status, header, trailer and cookie
+     * changes issued from other threads (e.g.: [Blocking](Blocking.html) middleware) are not executed directly but
+     * scheduled on the event loop in the order they were issued. Must be called from the event loop that owns the
+     * request.
+     *
+     * @param context the current Vert.x context
+     */
+    void bind(org.vertx.java.core.Context context) {
+        this.owner = context;
+        this.ownerThread = Thread.currentThread();
+    }
+
+    private boolean offContext() {
+        return owner != null && Thread.currentThread() != ownerThread;
+    }
+
     // protected extension
 
     void setFilter(WriterFilter filter) {
         this.filter = filter;
+        this.selector = null;
+    }
+
+    /**
+     * Chooses the encoder of the body once the response headers are known.
+     */
+    interface FilterSelector {
+        /**
+         * @param contentType   the response content type, may be null
+         * @param contentLength the length of the body when known upfront, -1 otherwise
+         * @return the encoder or null to send the body as is
+         */
+        WriterFilter select(String contentType, long contentLength);
+    }
+
+    void setFilter(FilterSelector selector) {
+        this.selector = selector;
+        this.filter = null;
     }
 
     // extension to default interface
@@ -290,22 +363,69 @@ public class YokeResponse implements HttpServerResponse {
         end(cb + " && " + cb + "(" + body + ");");
     }
 
-    public void end(ReadStream<?> stream) {
-        // TODO: filter stream?
+    public void end(final ReadStream<?> stream) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    end(stream);
+                }
+            });
+            return;
+        }
         hasBody = true;
-        filter = null;
         triggerHeadersHandlers();
-        Pump.createPump(stream, response).start();
+
+        if (filter == null) {
+            Pump.createPump(stream, response).start();
+            stream.endHandler(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    response.end();
+                    triggerEndHandlers();
+                }
+            });
+            return;
+        }
+
+        // encode chunk by chunk, encoded blocks are sent as they are produced and the source is paused while the
+        // connection cannot take more data
+        final WriterFilter encoder = filter;
+        final Handler<Void> resume = new Handler<Void>() {
+            @Override
+            public void handle(Void event) {
+                stream.resume();
+            }
+        };
+
+        stream.dataHandler(new Handler<Buffer>() {
+            @Override
+            public void handle(Buffer data) {
+                writeEncoded(encoder.write(data));
+                if (writeQueueFull()) {
+                    stream.pause();
+                    drainHandler(resume);
+                }
+            }
+        });
         stream.endHandler(new Handler<Void>() {
             @Override
             public void handle(Void event) {
-                response.end();
-                triggerEndHandlers();
+                endEncoded(encoder.end(new Buffer(0)));
             }
         });
     }
 
-    public YokeResponse addCookie(Cookie cookie) {
+    public YokeResponse addCookie(final Cookie cookie) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    addCookie(cookie);
+                }
+            });
+            return this;
+        }
         if (cookies == null) {
             cookies = new TreeSet<>();
         }
@@ -330,6 +450,13 @@ public class YokeResponse implements HttpServerResponse {
     }
 
     private void triggerHeadersHandlers() {
+        triggerHeadersHandlers(-1);
+    }
+
+    /**
+     * @param length the length of the body when it is written at once, -1 if not known
+     */
+    private void triggerHeadersHandlers(long length) {
         if (!headersHandlerTriggered) {
             headersHandlerTriggered = true;
             // if there are handlers call them
@@ -343,24 +470,163 @@ public class YokeResponse implements HttpServerResponse {
                 response.putHeader("set-cookie", ServerCookieEncoder.encode(cookies));
             }
 
+            // if there is no content delete content-type, content-encoding
+            if (!hasBody) {
+                // nothing to encode
+                filter = null;
+                selector = null;
+                response.headers().remove("content-encoding");
+                response.headers().remove("content-type");
+            }
             // if there is a filter then set the right header
-            if (filter != null) {
+            if (filter != null || selector != null) {
+                if (length == -1) {
+                    length = contentLength();
+                }
+                final String contentType = response.headers().get("content-type");
+                if (selector != null) {
+                    filter = selector.select(contentType, length);
+                    selector = null;
+                }
                 // verify if the filter can filter this content
-                if (filter.canFilter(response.headers().get("content-type"))) {
+                if (filter != null && filter.canFilter(contentType, length)) {
                     response.putHeader("content-encoding", filter.encoding());
+                    // the length of the encoded body is not known upfront
+                    response.headers().remove("content-length");
+                    final WriterFilter encoder = filter;
+                    closeHook(new Handler<Void>() {
+                        @Override
+                        public void handle(Void event) {
+                            encoder.close();
+                        }
+                    });
+                    if (filter instanceof AsyncWriterFilter) {
+                        bindAsync((AsyncWriterFilter) filter);
+                    }
                 } else {
                     // disable the filter
                     filter = null;
                 }
             }
-            // if there is no content delete content-type, content-encoding
-            if (!hasBody) {
-                response.headers().remove("content-encoding");
-                response.headers().remove("content-type");
+        }
+    }
+
+    /**
+     * @return the length in bytes of a string once encoded, computed without encoding it, or -1 for encodings other
+     * than UTF-8
+     */
+    private static long byteLength(String chunk, String enc) {
+        if (!"UTF-8".equalsIgnoreCase(enc) && !"UTF8".equalsIgnoreCase(enc)) {
+            return -1;
+        }
+        long length = 0;
+        for (int i = 0; i < chunk.length(); i++) {
+            final char c = chunk.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < chunk.length() && Character.isLowSurrogate(chunk.charAt(i + 1))) {
+                // a supplementary character is 4 bytes for 2 chars
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return the content-length header or -1 if not set or invalid
+     */
+    private long contentLength() {
+        final String header = response.headers().get("content-length");
+        if (header != null) {
+            try {
+                return Long.parseLong(header.trim());
+            } catch (NumberFormatException e) {
+                // unknown
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Sends the encoded bytes produced so far, the encoded body has no known length so it is sent chunked.
+     */
+    private void writeEncoded(Buffer encoded) {
+        if (encoded.length() > 0) {
+            if (!response.isChunked()) {
+                response.setChunked(true);
             }
+            response.write(encoded);
         }
     }
 
+    /**
+     * Registers a handler called when the connection closes before the response ended, e.g.: to release an encoder
+     * or decoder when the client went away. Hooks run before the close handler of the application.
+     */
+    void closeHook(Handler<Void> hook) {
+        if (closeHooks == null) {
+            closeHooks = new ArrayList<>();
+        }
+        if (closeHooks.isEmpty()) {
+            final HttpServerResponse bound = response;
+            bound.closeHandler(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    // a recycled response may be serving another request by now
+                    if (response != bound) {
+                        return;
+                    }
+                    for (Handler<Void> handler : closeHooks) {
+                        handler.handle(null);
+                    }
+                    if (closeHandler != null) {
+                        closeHandler.handle(null);
+                    }
+                }
+            });
+        }
+        closeHooks.add(hook);
+    }
+
+    /**
+     * Encoded bytes of asynchronous encoders are sent as they arrive, the response ends after the last ones.
+     */
+    private void bindAsync(AsyncWriterFilter encoder) {
+        encoder.output(new Handler<Buffer>() {
+            @Override
+            public void handle(Buffer encoded) {
+                writeEncoded(encoded);
+            }
+        }, new Handler<Throwable>() {
+            @Override
+            public void handle(Throwable failure) {
+                if (failure == null) {
+                    response.end();
+                } else {
+                    // the headers are already sent, the client sees a truncated body
+                    response.close();
+                }
+                triggerEndHandlers();
+            }
+        });
+    }
+
+    /**
+     * Ends an encoded body, asynchronous encoders end the response once their last bytes are sent.
+     */
+    private void endEncoded(Buffer encoded) {
+        if (filter instanceof AsyncWriterFilter) {
+            return;
+        }
+        response.end(encoded);
+        triggerEndHandlers();
+    }
+
     private void triggerEndHandlers() {
         if (endHandler != null) {
             for (Handler<Void> handler : endHandler) {
@@ -377,7 +643,16 @@ public class YokeResponse implements HttpServerResponse {
     }
 
     @Override
-    public YokeResponse setStatusCode(int statusCode) {
+    public YokeResponse setStatusCode(final int statusCode) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    setStatusCode(statusCode);
+                }
+            });
+            return this;
+        }
         response.setStatusCode(statusCode);
         return this;
     }
@@ -388,13 +663,31 @@ public class YokeResponse implements HttpServerResponse {
     }
 
     @Override
-    public YokeResponse setStatusMessage(String statusMessage) {
+    public YokeResponse setStatusMessage(final String statusMessage) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    setStatusMessage(statusMessage);
+                }
+            });
+            return this;
+        }
         response.setStatusMessage(statusMessage);
         return this;
     }
 
     @Override
-    public YokeResponse setChunked(boolean chunked) {
+    public YokeResponse setChunked(final boolean chunked) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    setChunked(chunked);
+                }
+            });
+            return this;
+        }
         response.setChunked(chunked);
         return this;
     }
@@ -410,25 +703,61 @@ public class YokeResponse implements HttpServerResponse {
     }
 
     @Override
-    public YokeResponse putHeader(String name, String value) {
+    public YokeResponse putHeader(final String name, final String value) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    putHeader(name, value);
+                }
+            });
+            return this;
+        }
         response.putHeader(name, value);
         return this;
     }
 
     @Override
-    public YokeResponse putHeader(CharSequence name, CharSequence value) {
+    public YokeResponse putHeader(final CharSequence name, final CharSequence value) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    putHeader(name, value);
+                }
+            });
+            return this;
+        }
         response.putHeader(name, value);
         return this;
     }
 
     @Override
-    public YokeResponse putHeader(String name, Iterable<String> values) {
+    public YokeResponse putHeader(final String name, final Iterable<String> values) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    putHeader(name, values);
+                }
+            });
+            return this;
+        }
         response.putHeader(name, values);
         return this;
     }
 
     @Override
-    public YokeResponse putHeader(CharSequence name, Iterable<CharSequence> values) {
+    public YokeResponse putHeader(final CharSequence name, final Iterable<CharSequence> values) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    putHeader(name, values);
+                }
+            });
+            return this;
+        }
         response.putHeader(name, values);
         return this;
     }
@@ -439,43 +768,91 @@ public class YokeResponse implements HttpServerResponse {
     }
 
     @Override
-    public YokeResponse putTrailer(String name, String value) {
+    public YokeResponse putTrailer(final String name, final String value) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    putTrailer(name, value);
+                }
+            });
+            return this;
+        }
         response.putTrailer(name, value);
         return this;
     }
 
     @Override
-    public YokeResponse putTrailer(CharSequence name, CharSequence value) {
+    public YokeResponse putTrailer(final CharSequence name, final CharSequence value) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    putTrailer(name, value);
+                }
+            });
+            return this;
+        }
         response.putTrailer(name, value);
         return this;
     }
 
     @Override
-    public YokeResponse putTrailer(String name, Iterable<String> values) {
+    public YokeResponse putTrailer(final String name, final Iterable<String> values) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    putTrailer(name, values);
+                }
+            });
+            return this;
+        }
         response.putTrailer(name, values);
         return this;
     }
 
     @Override
-    public YokeResponse putTrailer(CharSequence name, Iterable<CharSequence> value) {
+    public YokeResponse putTrailer(final CharSequence name, final Iterable<CharSequence> value) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    putTrailer(name, value);
+                }
+            });
+            return this;
+        }
         response.putTrailer(name, value);
         return this;
     }
 
     @Override
     public YokeResponse closeHandler(Handler<Void> handler) {
-        response.closeHandler(handler);
+        closeHandler = handler;
+        if (closeHooks == null || closeHooks.isEmpty()) {
+            response.closeHandler(handler);
+        }
         return this;
     }
 
     @Override
-    public YokeResponse write(Buffer chunk) {
+    public YokeResponse write(final Buffer chunk) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    write(chunk);
+                }
+            });
+            return this;
+        }
         hasBody = true;
         triggerHeadersHandlers();
         if (filter == null) {
             response.write(chunk);
         } else {
-            filter.write(chunk);
+            writeEncoded(filter.write(chunk));
         }
         return this;
     }
@@ -488,83 +865,161 @@ public class YokeResponse implements HttpServerResponse {
 
     @Override
     public boolean writeQueueFull() {
-        return response.writeQueueFull();
+        return response.writeQueueFull() || (filter instanceof AsyncWriterFilter && ((AsyncWriterFilter) filter).writeQueueFull());
     }
 
     @Override
     public YokeResponse drainHandler(Handler<Void> handler) {
-        response.drainHandler(handler);
+        if (filter instanceof AsyncWriterFilter && ((AsyncWriterFilter) filter).writeQueueFull()) {
+            // the encoder drains first, writers check again when resumed
+            ((AsyncWriterFilter) filter).drainHandler(handler);
+        } else {
+            response.drainHandler(handler);
+        }
         return this;
     }
 
     @Override
-    public YokeResponse write(String chunk, String enc) {
+    public YokeResponse write(final String chunk, final String enc) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    write(chunk, enc);
+                }
+            });
+            return this;
+        }
         hasBody = true;
         triggerHeadersHandlers();
         if (filter == null) {
             response.write(chunk, enc);
         } else {
-            filter.write(chunk, enc);
+            writeEncoded(filter.write(chunk, enc));
         }
         return this;
     }
 
     @Override
-    public YokeResponse write(String chunk) {
+    public YokeResponse write(final String chunk) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    write(chunk);
+                }
+            });
+            return this;
+        }
         hasBody = true;
         triggerHeadersHandlers();
         if (filter == null) {
             response.write(chunk);
         } else {
-            filter.write(chunk);
+            writeEncoded(filter.write(chunk));
         }
         return this;
     }
 
     @Override
-    public void end(String chunk) {
+    public void end(final String chunk) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    end(chunk);
+                }
+            });
+            return;
+        }
         hasBody = true;
-        triggerHeadersHandlers();
+        triggerHeadersHandlers(byteLength(chunk, "UTF-8"));
         if (filter == null) {
             response.end(chunk);
+            triggerEndHandlers();
         } else {
-            response.end(filter.end(chunk));
+            endEncoded(filter.end(chunk));
         }
-        triggerEndHandlers();
     }
 
     @Override
-    public void end(String chunk, String enc) {
+    public void end(final String chunk, final String enc) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    end(chunk, enc);
+                }
+            });
+            return;
+        }
         hasBody = true;
-        triggerHeadersHandlers();
+        triggerHeadersHandlers(byteLength(chunk, enc));
         if (filter == null) {
             response.end(chunk, enc);
+            triggerEndHandlers();
         } else {
-            response.end(filter.end(chunk, enc));
+            endEncoded(filter.end(chunk, enc));
         }
-        triggerEndHandlers();
     }
 
     @Override
-    public void end(Buffer chunk) {
+    public void end(final Buffer chunk) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    end(chunk);
+                }
+            });
+            return;
+        }
         hasBody = true;
-        triggerHeadersHandlers();
-        response.end(filter == null ? chunk : filter.end(chunk));
-        triggerEndHandlers();
+        triggerHeadersHandlers(chunk.length());
+        if (filter == null) {
+            response.end(chunk);
+            triggerEndHandlers();
+        } else {
+            endEncoded(filter.end(chunk));
+        }
     }
 
     @Override
     public void end() {
-        triggerHeadersHandlers();
-        response.end();
-        triggerEndHandlers();
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    end();
+                }
+            });
+            return;
+        }
+        triggerHeadersHandlers(0);
+        if (filter == null) {
+            response.end();
+            triggerEndHandlers();
+        } else {
+            // flush the encoder
+            endEncoded(filter.end(new Buffer(0)));
+        }
     }
 
     @Override
-    public YokeResponse sendFile(String filename) {
-        // TODO: filter file?
+    public YokeResponse sendFile(final String filename) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    sendFile(filename);
+                }
+            });
+            return this;
+        }
+        // files are sent as they are, never through an encoder
         hasBody = true;
         filter = null;
+        selector = null;
         triggerHeadersHandlers();
         response.sendFile(filename);
         triggerEndHandlers();
@@ -572,10 +1027,20 @@ public class YokeResponse implements HttpServerResponse {
     }
 
     @Override
-    public YokeResponse sendFile(String filename, String notFoundFile) {
-        // TODO: filter file?
+    public YokeResponse sendFile(final String filename, final String notFoundFile) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    sendFile(filename, notFoundFile);
+                }
+            });
+            return this;
+        }
+        // files are sent as they are, never through an encoder
         hasBody = true;
         filter = null;
+        selector = null;
         triggerHeadersHandlers();
         response.sendFile(filename, notFoundFile);
         triggerEndHandlers();
@@ -583,10 +1048,20 @@ public class YokeResponse implements HttpServerResponse {
     }
 
     @Override
-    public YokeResponse sendFile(String filename, Handler<AsyncResult<Void>> resultHandler) {
-        // TODO: filter file?
+    public YokeResponse sendFile(final String filename, final Handler<AsyncResult<Void>> resultHandler) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    sendFile(filename, resultHandler);
+                }
+            });
+            return this;
+        }
+        // files are sent as they are, never through an encoder
         hasBody = true;
         filter = null;
+        selector = null;
         triggerHeadersHandlers();
         response.sendFile(filename, resultHandler);
         triggerEndHandlers();
@@ -594,10 +1069,20 @@ public class YokeResponse implements HttpServerResponse {
     }
 
     @Override
-    public YokeResponse sendFile(String filename, String notFoundFile, Handler<AsyncResult<Void>> resultHandler) {
-        // TODO: filter file?
+    public YokeResponse sendFile(final String filename, final String notFoundFile, final Handler<AsyncResult<Void>> resultHandler) {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    sendFile(filename, notFoundFile, resultHandler);
+                }
+            });
+            return this;
+        }
+        // files are sent as they are, never through an encoder
         hasBody = true;
         filter = null;
+        selector = null;
         triggerHeadersHandlers();
         response.sendFile(filename, notFoundFile, resultHandler);
         triggerEndHandlers();
@@ -606,6 +1091,19 @@ public class YokeResponse implements HttpServerResponse {
 
     @Override
     public void close() {
+        if (offContext()) {
+            owner.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    close();
+                }
+            });
+            return;
+        }
+        if (filter != null) {
+            filter.close();
+            filter = null;
+        }
         response.close();
         triggerEndHandlers();
     }
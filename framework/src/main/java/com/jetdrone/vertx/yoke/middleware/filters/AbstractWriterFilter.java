@@ -12,71 +12,129 @@ import java.util.regex.Pattern;
 
 /**
  * # AbstractWriterFilter
+ *
+ * Adapts an encoder ```OutputStream``` to the [WriterFilter](WriterFilter.html) interface. The stream returned by
+ * ```createOutputStream``` must write to ```sink```, the encoded bytes are handed to the response after each write.
+ *
+ * @deprecated streams copy and flush the output in small pieces, extend [DeflaterWriterFilter](DeflaterWriterFilter.html)
+ * or implement [WriterFilter](WriterFilter.html) directly.
  */
+@Deprecated
 public abstract class AbstractWriterFilter implements WriterFilter {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     final Pattern filter;
+    // encoded bytes not yet handed to the response
+    Buffer buffer = new Buffer();
+    // collects the output of the encoder
+    protected final OutputStream sink = new OutputStream() {
+        @Override
+        public void write(int i) throws IOException {
+            buffer.appendByte((byte) i);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            buffer.appendBytes(b, off, len);
+        }
+    };
     final OutputStream stream;
-    final Buffer buffer = new Buffer();
+    private boolean closed;
 
     public AbstractWriterFilter(Pattern filter) throws IOException {
         this.filter = filter;
         this.stream = createOutputStream();
     }
 
-    private void write(byte[] b) {
+    /**
+     * @return the encoder stream, it must write to ```sink```
+     */
+    public abstract OutputStream createOutputStream() throws IOException;
+
+    private Buffer write(byte[] b) {
         try {
             stream.write(b);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        return take();
     }
 
-    public abstract OutputStream createOutputStream() throws IOException;
-
-    private void end(byte[] b) {
+    private Buffer end(byte[] b) {
         try {
             stream.write(b);
+            closed = true;
             stream.close();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        return take();
+    }
+
+    /**
+     * Hands over the encoded bytes produced so far.
+     */
+    private Buffer take() {
+        final Buffer encoded = buffer;
+        if (encoded.length() > 0) {
+            buffer = new Buffer();
+        }
+        return encoded;
     }
 
     @Override
-    public void write(Buffer buffer) {
-        write(buffer.getBytes());
+    public Buffer write(Buffer buffer) {
+        return write(buffer.getBytes());
     }
 
     @Override
-    public void write(String chunk) {
-        write(chunk.getBytes());
+    public Buffer write(String chunk) {
+        return write(chunk.getBytes(UTF8));
     }
 
     @Override
-    public void write(String chunk, String enc) {
-        write(chunk.getBytes(Charset.forName(enc)));
+    public Buffer write(String chunk, String enc) {
+        return write(chunk.getBytes(Charset.forName(enc)));
     }
 
     @Override
     public Buffer end(Buffer buffer) {
-        end(buffer.getBytes());
-        return buffer;
+        return end(buffer.getBytes());
     }
 
     @Override
     public Buffer end(String chunk) {
-        end(chunk.getBytes());
-        return buffer;
+        return end(chunk.getBytes(UTF8));
     }
 
     @Override
     public Buffer end(String chunk, String enc) {
-        end(chunk.getBytes(Charset.forName(enc)));
-        return buffer;
+        return end(chunk.getBytes(Charset.forName(enc)));
     }
 
-    @Override
+    /**
+     * The content type check of the former interface, subclasses that override it keep working.
+     */
     public boolean canFilter(String contentType) {
         return filter.matcher(contentType).find();
     }
+
+    @Override
+    public boolean canFilter(String contentType, long contentLength) {
+        return contentType != null && canFilter(contentType);
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // the response is gone, nothing to report
+        }
+    }
 }
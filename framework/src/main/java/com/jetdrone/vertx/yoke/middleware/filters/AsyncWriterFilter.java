@@ -0,0 +1,35 @@
+/**
+ * Copyright 2011-2014 the original author or authors.
+ */
+package com.jetdrone.vertx.yoke.middleware.filters;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+
+/**
+ * # AsyncWriterFilter
+ *
+ * A [WriterFilter](WriterFilter.html) that encodes off the event loop. The ```write``` and ```end``` methods only
+ * hand the body over and return empty buffers, the encoded bytes are delivered later to the output handlers, in order
+ * and on the event loop of the response. The response ends once the last encoded bytes are delivered.
+ */
+public interface AsyncWriterFilter extends WriterFilter {
+
+    /**
+     * Sets where the encoded bytes go, called before the first write.
+     *
+     * @param data called with the encoded bytes as they are ready
+     * @param done called once after the last encoded bytes, with null or with the failure that stopped the encoding
+     */
+    void output(Handler<Buffer> data, Handler<Throwable> done);
+
+    /**
+     * @return true while the encoder has as much pending work as it allows, writers should wait for the drain handler
+     */
+    boolean writeQueueFull();
+
+    /**
+     * Sets a handler called once pending work drops after [writeQueueFull](#writeQueueFull) returned true.
+     */
+    void drainHandler(Handler<Void> handler);
+}
@@ -3,28 +3,22 @@
  */
 package com.jetdrone.vertx.yoke.middleware.filters;
 
-import java.io.IOException;
-import java.io.OutputStream;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 
 /**
  * # DeflateWriterFilter
+ *
+ * Encodes the body for the HTTP ```deflate``` content coding, which is deflate data in the zlib format (RFC 1950).
  */
-public class DeflateWriterFilter extends AbstractWriterFilter {
+public class DeflateWriterFilter extends DeflaterWriterFilter {
 
-    public DeflateWriterFilter(Pattern filter) throws IOException {
-        super(filter);
+    public DeflateWriterFilter(Pattern filter, int level) {
+        super(filter, level, false);
     }
 
-    @Override
-    public OutputStream createOutputStream() throws IOException {
-        return new GZIPOutputStream(new OutputStream() {
-            @Override
-            public void write(int i) throws IOException {
-                buffer.appendByte((byte) i);
-            }
-        });
+    public DeflateWriterFilter(Pattern filter) {
+        this(filter, Deflater.DEFAULT_COMPRESSION);
     }
 
     @Override
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2011-2014 the original author or authors.
+ */
+package com.jetdrone.vertx.yoke.middleware.filters;
+
+import java.util.ArrayDeque;
+import java.util.zip.Deflater;
+
+/**
+ * # DeflaterPool
+ *
+ * Per thread pool of ```Deflater``` instances. Each response would otherwise allocate a new deflater and its native
+ * memory, since responses are encoded on the event loop that owns them every event loop keeps its own pool and no
+ * synchronization is needed. Each thread also owns the scratch array the deflaters write their output to.
+ */
+final class DeflaterPool {
+
+    // idle deflaters kept per thread and framing
+    private static final int MAX_IDLE = 32;
+    private static final int SCRATCH_SIZE = 8192;
+
+    private static final ThreadLocal<DeflaterPool> POOL = new ThreadLocal<DeflaterPool>() {
+        @Override
+        protected DeflaterPool initialValue() {
+            return new DeflaterPool();
+        }
+    };
+
+    private final ArrayDeque<Deflater> zlib = new ArrayDeque<>();
+    private final ArrayDeque<Deflater> raw = new ArrayDeque<>();
+
+    final byte[] scratch = new byte[SCRATCH_SIZE];
+
+    private DeflaterPool() {
+    }
+
+    static DeflaterPool current() {
+        return POOL.get();
+    }
+
+    /**
+     * @param level  compression level (0-9 or ```Deflater.DEFAULT_COMPRESSION```)
+     * @param nowrap true for raw deflate data (e.g.: inside gzip), false for the zlib format
+     */
+    Deflater acquire(int level, boolean nowrap) {
+        Deflater deflater = (nowrap ? raw : zlib).pollLast();
+        if (deflater == null) {
+            deflater = new Deflater(level, nowrap);
+        } else {
+            deflater.setLevel(level);
+        }
+        return deflater;
+    }
+
+    void release(Deflater deflater, boolean nowrap) {
+        final ArrayDeque<Deflater> idle = nowrap ? raw : zlib;
+        if (idle.size() < MAX_IDLE) {
+            deflater.reset();
+            idle.addLast(deflater);
+        } else {
+            // free the native memory now
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2011-2014 the original author or authors.
+ */
+package com.jetdrone.vertx.yoke.middleware.filters;
+
+import org.vertx.java.core.buffer.Buffer;
+
+import java.nio.charset.Charset;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+/**
+ * # DeflaterWriterFilter
+ *
+ * Base of the compression filters, drives a pooled ```Deflater``` directly: input is handed over in bulk and the
+ * output is copied from a per event loop scratch array straight into the response buffer. The deflater is taken from
+ * the pool on the first write, so filters that end up not being used cost nothing, and returned when the body ends or
+ * the response is closed.
+ */
+public abstract class DeflaterWriterFilter implements WriterFilter {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Pattern filter;
+    private final int level;
+    private final boolean nowrap;
+
+    private Deflater deflater;
+    private boolean finished;
+
+    /**
+     * @param filter content types to compress
+     * @param level  compression level (0-9 or ```Deflater.DEFAULT_COMPRESSION```)
+     * @param nowrap true for raw deflate data, false for the zlib format
+     */
+    protected DeflaterWriterFilter(Pattern filter, int level, boolean nowrap) {
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.filter = filter;
+        this.level = level;
+        this.nowrap = nowrap;
+    }
+
+    /**
+     * Called before the first compressed bytes, e.g.: to write a header.
+     */
+    protected void start(Buffer out) {
+    }
+
+    /**
+     * Called with the uncompressed input, e.g.: to compute a checksum.
+     */
+    protected void update(byte[] b) {
+    }
+
+    /**
+     * Called after the last compressed bytes, e.g.: to write a trailer.
+     */
+    protected void finish(Buffer out) {
+    }
+
+    private Buffer deflate(byte[] b, boolean last) {
+        if (finished) {
+            throw new IllegalStateException("Body already ended");
+        }
+
+        final DeflaterPool pool = DeflaterPool.current();
+        final Buffer out = new Buffer(b.length / 2 + 64);
+
+        if (deflater == null) {
+            deflater = pool.acquire(level, nowrap);
+            start(out);
+        }
+
+        try {
+            if (b.length > 0) {
+                update(b);
+                deflater.setInput(b);
+            }
+
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    drain(pool.scratch, out);
+                }
+                finish(out);
+            } else {
+                while (!deflater.needsInput()) {
+                    drain(pool.scratch, out);
+                }
+            }
+        } finally {
+            if (last) {
+                finished = true;
+                pool.release(deflater, nowrap);
+                deflater = null;
+            }
+        }
+
+        return out;
+    }
+
+    private void drain(byte[] scratch, Buffer out) {
+        final int n = deflater.deflate(scratch, 0, scratch.length);
+        if (n > 0) {
+            out.appendBytes(scratch, 0, n);
+        }
+    }
+
+    @Override
+    public Buffer write(Buffer buffer) {
+        return deflate(buffer.getBytes(), false);
+    }
+
+    @Override
+    public Buffer write(String chunk) {
+        return deflate(chunk.getBytes(UTF8), false);
+    }
+
+    @Override
+    public Buffer write(String chunk, String enc) {
+        return deflate(chunk.getBytes(Charset.forName(enc)), false);
+    }
+
+    @Override
+    public Buffer end(Buffer buffer) {
+        return deflate(buffer.getBytes(), true);
+    }
+
+    @Override
+    public Buffer end(String chunk) {
+        return deflate(chunk.getBytes(UTF8), true);
+    }
+
+    @Override
+    public Buffer end(String chunk, String enc) {
+        return deflate(chunk.getBytes(Charset.forName(enc)), true);
+    }
+
+    @Override
+    public void close() {
+        finished = true;
+        if (deflater != null) {
+            DeflaterPool.current().release(deflater, nowrap);
+            deflater = null;
+        }
+    }
+
+    @Override
+    public boolean canFilter(String contentType, long contentLength) {
+        return contentType != null && filter.matcher(contentType).find();
+    }
+}
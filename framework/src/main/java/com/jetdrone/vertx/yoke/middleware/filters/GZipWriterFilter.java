@@ -3,28 +3,57 @@
  */
 package com.jetdrone.vertx.yoke.middleware.filters;
 
-import java.io.IOException;
-import java.io.OutputStream;
+import org.vertx.java.core.buffer.Buffer;
+
 import java.util.regex.Pattern;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 /**
  * # GZipWriterFilter
+ *
+ * Encodes the body in the gzip format (RFC 1952): a header, raw deflate data and a trailer with the CRC-32 and size
+ * of the input.
  */
-public class GZipWriterFilter extends AbstractWriterFilter {
+public class GZipWriterFilter extends DeflaterWriterFilter {
+
+    private static final byte[] HEADER = {
+            0x1f, (byte) 0x8b,  // magic
+            Deflater.DEFLATED,  // method
+            0,                  // flags
+            0, 0, 0, 0,         // mtime
+            0,                  // extra flags
+            (byte) 0xff         // OS unknown
+    };
+
+    private final CRC32 crc = new CRC32();
+    private long size;
 
-    public GZipWriterFilter(Pattern filter) throws IOException {
-        super(filter);
+    public GZipWriterFilter(Pattern filter, int level) {
+        super(filter, level, true);
+    }
+
+    public GZipWriterFilter(Pattern filter) {
+        this(filter, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    @Override
+    protected void start(Buffer out) {
+        out.appendBytes(HEADER);
+    }
+
+    @Override
+    protected void update(byte[] b) {
+        crc.update(b);
+        size += b.length;
     }
 
     @Override
-    public OutputStream createOutputStream() throws IOException {
-        return new GZIPOutputStream(new OutputStream() {
-            @Override
-            public void write(int i) throws IOException {
-                buffer.appendByte((byte) i);
-            }
-        });
+    protected void finish(Buffer out) {
+        final long value = crc.getValue();
+        // little endian CRC-32 and size modulo 2^32
+        out.appendByte((byte) value).appendByte((byte) (value >> 8)).appendByte((byte) (value >> 16)).appendByte((byte) (value >> 24));
+        out.appendByte((byte) size).appendByte((byte) (size >> 8)).appendByte((byte) (size >> 16)).appendByte((byte) (size >> 24));
     }
 
     @Override
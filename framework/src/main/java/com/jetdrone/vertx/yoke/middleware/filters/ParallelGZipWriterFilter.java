@@ -0,0 +1,490 @@
+/**
+ * Copyright 2011-2014 the original author or authors.
+ */
+package com.jetdrone.vertx.yoke.middleware.filters;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * # ParallelGZipWriterFilter
+ *
+ * Encodes large bodies in the gzip format using several threads, the same way as ```pigz```. The body is cut in
+ * fixed size blocks that are compressed in parallel on an executor, each block primed with the last 32KB of the
+ * previous one so the ratio stays close to a single stream. Blocks end on a byte boundary (a sync flush) so their
+ * deflate data can be concatenated, the CRC-32 of the blocks are combined, and the result is a single valid gzip
+ * member sent in order on the event loop.
+ *
+ * At most ```window``` blocks are being compressed or waiting to be sent, while the window is full
+ * [writeQueueFull](#writeQueueFull) returns true and further full blocks are queued until the writer is drained.
+ * Queued blocks are slices of the written buffers, the input is only copied into a block array when the block is
+ * dispatched, so no more than ```window``` block arrays are ever allocated even when the whole body is written at
+ * once. Written buffers must not be modified afterwards, as with any Vert.x write.
+ */
+public class ParallelGZipWriterFilter implements AsyncWriterFilter {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // deflate back references reach at most 32KB
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    // smaller writes are copied together instead of being kept as slices
+    private static final int MIN_SLICE = 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final byte[] HEADER = {
+            0x1f, (byte) 0x8b,  // magic
+            Deflater.DEFLATED,  // method
+            0,                  // flags
+            0, 0, 0, 0,         // mtime
+            0,                  // extra flags
+            (byte) 0xff         // OS unknown
+    };
+
+    private final Pattern filter;
+    private final int level;
+    private final Context context;
+    private final Executor executor;
+    private final int blockSize;
+    private final int window;
+
+    private Handler<Buffer> data;
+    private Handler<Throwable> done;
+    private Handler<Void> drainHandler;
+
+    // block being filled, slices of the written buffers
+    private final ArrayList<ByteBuf> segments = new ArrayList<>();
+    // last segment when it holds copied small writes
+    private ByteBuf tail;
+    private int fill;
+    // tail of the last dispatched block
+    private byte[] dictionary;
+    private int allocated;
+
+    // blocks created, dispatched and sent
+    private long created;
+    private long dispatched;
+    private long sent;
+
+    // full blocks waiting for room in the window
+    private final ArrayDeque<Block> waiting = new ArrayDeque<>();
+    // compressed blocks waiting for their turn, indexed by sequence modulo window
+    private final Block[] ready;
+    // input arrays of sent blocks, arrays are only allocated when there is no spare one
+    private final ArrayDeque<byte[]> spare = new ArrayDeque<>();
+
+    private long crc;
+    private long size;
+    private boolean ended;
+    private boolean failed;
+
+    /**
+     * @param filter    content types to compress
+     * @param level     compression level (0-9 or ```Deflater.DEFAULT_COMPRESSION```)
+     * @param context   the context of the response, output is delivered on it
+     * @param executor  runs the compression of the blocks
+     * @param blockSize length of the input blocks
+     * @param window    maximum number of blocks being compressed or waiting to be sent
+     */
+    public ParallelGZipWriterFilter(Pattern filter, int level, Context context, Executor executor, int blockSize, int window) {
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        if (blockSize < DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("Block size must be at least " + DICTIONARY_SIZE);
+        }
+        if (window < 1) {
+            throw new IllegalArgumentException("Window must be at least 1");
+        }
+        this.filter = filter;
+        this.level = level;
+        this.context = context;
+        this.executor = executor;
+        this.blockSize = blockSize;
+        this.window = window;
+        this.ready = new Block[window];
+    }
+
+    @Override
+    public void output(Handler<Buffer> data, Handler<Throwable> done) {
+        this.data = data;
+        this.done = done;
+    }
+
+    @Override
+    public boolean writeQueueFull() {
+        return !failed && (!waiting.isEmpty() || dispatched - sent >= window);
+    }
+
+    @Override
+    public void drainHandler(Handler<Void> handler) {
+        this.drainHandler = handler;
+    }
+
+    /**
+     * @return the number of block arrays allocated, at most ```window```
+     */
+    public int allocatedBlocks() {
+        return allocated;
+    }
+
+    private void input(ByteBuf buf) {
+        while (buf.isReadable()) {
+            final int n = Math.min(buf.readableBytes(), blockSize - fill);
+            final ByteBuf slice = buf.readSlice(n);
+
+            if (n < MIN_SLICE) {
+                if (tail == null) {
+                    tail = Unpooled.buffer(MIN_SLICE, blockSize);
+                    segments.add(tail);
+                }
+                tail.writeBytes(slice);
+            } else {
+                segments.add(slice);
+                tail = null;
+            }
+            fill += n;
+
+            if (fill == blockSize) {
+                submit(false);
+            }
+        }
+    }
+
+    private void submit(boolean last) {
+        final Block b = new Block(created++, segments.toArray(new ByteBuf[segments.size()]), fill, last);
+
+        size += fill;
+        segments.clear();
+        tail = null;
+        fill = 0;
+
+        if (waiting.isEmpty() && dispatched - sent < window) {
+            dispatch(b);
+        } else {
+            waiting.addLast(b);
+        }
+    }
+
+    private void dispatch(Block b) {
+        // blocks are dispatched in order, only dispatched blocks own an input array
+        final byte[] input;
+        if (b.length == 0) {
+            input = EMPTY;
+        } else if (spare.isEmpty()) {
+            input = new byte[blockSize];
+            allocated++;
+        } else {
+            input = spare.pollLast();
+        }
+
+        int offset = 0;
+        for (ByteBuf segment : b.segments) {
+            final int n = segment.readableBytes();
+            segment.getBytes(segment.readerIndex(), input, offset, n);
+            offset += n;
+        }
+        b.segments = null;
+        b.input = input;
+        b.dictionary = dictionary;
+
+        if (!b.last) {
+            // the next block refers to the end of this one, copied since the input array is reused
+            dictionary = Arrays.copyOfRange(input, b.length - Math.min(b.length, DICTIONARY_SIZE), b.length);
+        }
+
+        dispatched++;
+        try {
+            executor.execute(b);
+        } catch (RejectedExecutionException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Called on the event loop when a block is compressed, sends the blocks that are next in order.
+     */
+    private void completed(Block b) {
+        if (failed) {
+            return;
+        }
+
+        ready[(int) (b.sequence % window)] = b;
+
+        Block next;
+        while ((next = ready[(int) (sent % window)]) != null && next.sequence == sent) {
+            ready[(int) (sent % window)] = null;
+            sent++;
+
+            if (next.failure != null) {
+                fail(next.failure);
+                return;
+            }
+
+            if (next.sequence == 0) {
+                data.handle(new Buffer(HEADER));
+                crc = next.crc;
+            } else {
+                crc = crc32Combine(crc, next.crc, next.length);
+            }
+
+            data.handle(next.output);
+
+            if (next.input.length == blockSize && spare.size() < window) {
+                spare.addLast(next.input);
+            }
+
+            if (next.last) {
+                final Buffer trailer = new Buffer(8);
+                // little endian CRC-32 and size modulo 2^32
+                trailer.appendByte((byte) crc).appendByte((byte) (crc >> 8)).appendByte((byte) (crc >> 16)).appendByte((byte) (crc >> 24));
+                trailer.appendByte((byte) size).appendByte((byte) (size >> 8)).appendByte((byte) (size >> 16)).appendByte((byte) (size >> 24));
+                data.handle(trailer);
+                done.handle(null);
+                return;
+            }
+        }
+
+        while (!waiting.isEmpty() && dispatched - sent < window) {
+            dispatch(waiting.pollFirst());
+        }
+
+        if (drainHandler != null && !writeQueueFull()) {
+            final Handler<Void> handler = drainHandler;
+            drainHandler = null;
+            handler.handle(null);
+        }
+    }
+
+    private void fail(Throwable failure) {
+        if (!failed) {
+            failed = true;
+            waiting.clear();
+            done.handle(failure);
+        }
+    }
+
+    @Override
+    public Buffer write(Buffer buffer) {
+        if (!failed) {
+            input(buffer.getByteBuf());
+        }
+        return new Buffer(0);
+    }
+
+    @Override
+    public Buffer write(String chunk) {
+        if (!failed) {
+            input(Unpooled.wrappedBuffer(chunk.getBytes(UTF8)));
+        }
+        return new Buffer(0);
+    }
+
+    @Override
+    public Buffer write(String chunk, String enc) {
+        if (!failed) {
+            input(Unpooled.wrappedBuffer(chunk.getBytes(Charset.forName(enc))));
+        }
+        return new Buffer(0);
+    }
+
+    private Buffer finish() {
+        if (ended) {
+            throw new IllegalStateException("Body already ended");
+        }
+        ended = true;
+        if (!failed) {
+            submit(true);
+        }
+        return new Buffer(0);
+    }
+
+    @Override
+    public Buffer end(Buffer buffer) {
+        write(buffer);
+        return finish();
+    }
+
+    @Override
+    public Buffer end(String chunk) {
+        write(chunk);
+        return finish();
+    }
+
+    @Override
+    public Buffer end(String chunk, String enc) {
+        write(chunk, enc);
+        return finish();
+    }
+
+    @Override
+    public String encoding() {
+        return "gzip";
+    }
+
+    @Override
+    public void close() {
+        if (!failed) {
+            // blocks in flight are discarded when they complete
+            failed = true;
+            ended = true;
+            waiting.clear();
+            segments.clear();
+            tail = null;
+        }
+    }
+
+    @Override
+    public boolean canFilter(String contentType, long contentLength) {
+        return contentType != null && filter.matcher(contentType).find();
+    }
+
+    /**
+     * A block of input, compressed on the executor and handed back to the event loop.
+     */
+    private final class Block implements Runnable, Handler<Void> {
+        final long sequence;
+        final int length;
+        final boolean last;
+
+        // slices until dispatched, then the copied input
+        ByteBuf[] segments;
+        byte[] input;
+        byte[] dictionary;
+
+        Buffer output;
+        long crc;
+        Throwable failure;
+
+        Block(long sequence, ByteBuf[] segments, int length, boolean last) {
+            this.sequence = sequence;
+            this.segments = segments;
+            this.length = length;
+            this.last = last;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final CRC32 checksum = new CRC32();
+                checksum.update(input, 0, length);
+                crc = checksum.getValue();
+
+                final DeflaterPool pool = DeflaterPool.current();
+                final Deflater deflater = pool.acquire(level, true);
+                try {
+                    if (dictionary != null) {
+                        deflater.setDictionary(dictionary);
+                    }
+                    deflater.setInput(input, 0, length);
+
+                    final byte[] scratch = pool.scratch;
+                    final Buffer out = new Buffer(length / 2 + 64);
+                    int n;
+                    if (last) {
+                        deflater.finish();
+                        while (!deflater.finished()) {
+                            n = deflater.deflate(scratch, 0, scratch.length);
+                            out.appendBytes(scratch, 0, n);
+                        }
+                    } else {
+                        // end the block on a byte boundary without marking the stream final
+                        do {
+                            n = deflater.deflate(scratch, 0, scratch.length, Deflater.SYNC_FLUSH);
+                            out.appendBytes(scratch, 0, n);
+                        } while (n == scratch.length);
+                    }
+                    output = out;
+                } finally {
+                    pool.release(deflater, true);
+                }
+            } catch (Throwable t) {
+                failure = t;
+            }
+
+            context.runOnContext(this);
+        }
+
+        @Override
+        public void handle(Void event) {
+            completed(this);
+        }
+    }
+
+    // CRC-32 of two concatenated blocks from their CRC-32, as crc32_combine of zlib
+
+    private static long crc32Combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+
+        final long[] even = new long[32];
+        final long[] odd = new long[32];
+
+        // operator for one zero bit
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        // operators for two and four zero bits
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        // apply length2 zero bytes to crc1
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            length2 >>= 1;
+
+            if (length2 == 0) {
+                break;
+            }
+
+            gf2MatrixSquare(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        int i = 0;
+        while (vector != 0) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+            vector >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+}
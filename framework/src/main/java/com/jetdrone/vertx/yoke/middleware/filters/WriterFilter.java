@@ -7,6 +7,9 @@ import org.vertx.java.core.buffer.Buffer;
 
 /**
  * # WriterFilter
+ *
+ * Encodes the body of a response as it is written. Each write returns the encoded bytes produced so far, so large
+ * bodies are sent as they are encoded instead of being buffered until the end.
  */
 public interface WriterFilter {
     /**
@@ -15,17 +18,36 @@ public interface WriterFilter {
      */
     String encoding();
 
-    void write(Buffer buffer);
+    /**
+     * Encodes a chunk of the body.
+     * @return the encoded bytes ready to be sent, may be empty
+     */
+    Buffer write(Buffer buffer);
 
-    void write(String chunk);
+    Buffer write(String chunk);
 
-    void write(String chunk, String enc);
+    Buffer write(String chunk, String enc);
 
+    /**
+     * Encodes the last chunk of the body.
+     * @return the remaining encoded bytes
+     */
     Buffer end(Buffer buffer);
 
     Buffer end(String chunk);
 
     Buffer end(String chunk, String enc);
 
-    boolean canFilter(String contentType);
+    /**
+     * Decides if the response is encoded, called once before the headers are sent.
+     * @param contentType the response content type, may be null
+     * @param contentLength the length of the body when known upfront, -1 otherwise
+     */
+    boolean canFilter(String contentType, long contentLength);
+
+    /**
+     * Releases the resources of the filter when the response is closed before its body ended, e.g.: the client went
+     * away. Does nothing once the body ended.
+     */
+    void close();
 }
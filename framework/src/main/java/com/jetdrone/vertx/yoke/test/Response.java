@@ -180,6 +180,7 @@ public class Response implements HttpServerResponse {
     @Override
     public HttpServerResponse sendFile(String filename) {
         body.appendBuffer(vertx.fileSystem().readFileSync(filename));
+        done();
         return this;
     }
 
@@ -212,6 +213,7 @@ public class Response implements HttpServerResponse {
                 return false;
             }
         });
+        done();
         return this;
     }
 
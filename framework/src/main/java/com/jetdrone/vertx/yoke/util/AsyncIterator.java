@@ -7,12 +7,21 @@ import org.vertx.java.core.Handler;
 
 import java.util.Iterator;
 
-/** # AsyncIterator */
+/** # AsyncIterator
+ *
+ * Iterates a collection where each step may complete asynchronously. When ```next()``` is called synchronously from
+ * ```handle``` the iteration continues in a loop instead of recursing, so long collections do not grow the stack. As a
+ * consequence ```next()``` returns before the next element is handled and code after it runs first.
+ */
 public abstract class AsyncIterator<T> implements Handler<T> {
 
     private final Iterator<T> iterator;
     private boolean end = false;
 
+    // trampoline state
+    private boolean running = false;
+    private int pending = 0;
+
     public AsyncIterator(Iterable<T> iterable) {
         iterator = iterable.iterator();
         next();
@@ -28,11 +37,27 @@ public abstract class AsyncIterator<T> implements Handler<T> {
     }
 
     public final void next() {
-        if (iterator.hasNext()) {
-            handle(iterator.next());
-        } else {
-            end = true;
-            handle(null);
+        pending++;
+
+        if (running) {
+            // called from handle, the loop below will take the next element once it returns
+            return;
+        }
+
+        running = true;
+        try {
+            while (pending > 0) {
+                pending--;
+                if (iterator.hasNext()) {
+                    handle(iterator.next());
+                } else {
+                    end = true;
+                    handle(null);
+                }
+            }
+        } finally {
+            running = false;
+            pending = 0;
         }
     }
 
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2011-2014 the original author or authors.
+ */
+package com.jetdrone.vertx.yoke.util;
+
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/** # EventLoopDelay
+ *
+ * Measures how busy an event loop is by how late it runs a timer. A probe timer is scheduled every 50ms and the time
+ * between its deadline and the moment it actually runs is the time the loop was busy with other events. The delay is
+ * smoothed over the last samples, an idle loop reports 0 while a saturated loop reports a growing delay.
+ *
+ * There is one probe per event loop context. It only runs while someone reads the delay, after a second without reads
+ * the probe stops and is discarded, so always look it up with [current](#current) instead of keeping a reference to it.
+ *
+ * <pre>
+ * if (EventLoopDelay.current(vertx).delay() &gt; 50) {
+ *   // the event loop is overloaded, shed optional work
+ * }
+ * </pre>
+ */
+public final class EventLoopDelay {
+
+    private static final long INTERVAL = 50;
+    private static final long INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(INTERVAL);
+    // probes without reads before stopping
+    private static final int IDLE_PROBES = 20;
+
+    private static final ConcurrentMap<Context, EventLoopDelay> PROBES = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the probe of the current event loop context.
+     *
+     * @param vertx the Vert.x instance
+     * @return the probe owned by the current context
+     * @throws IllegalStateException when not called from a Vert.x context
+     */
+    public static EventLoopDelay current(Vertx vertx) {
+        final Context context = vertx.currentContext();
+        if (context == null) {
+            throw new IllegalStateException("EventLoopDelay must be used from a Vert.x context");
+        }
+
+        EventLoopDelay probe = PROBES.get(context);
+        if (probe == null) {
+            probe = new EventLoopDelay(vertx, context);
+            PROBES.put(context, probe);
+        }
+        return probe;
+    }
+
+    private final Vertx vertx;
+    private final Context context;
+
+    private final Handler<Long> probe = new Handler<Long>() {
+        @Override
+        public void handle(Long timerId) {
+            sample();
+        }
+    };
+
+    private boolean running;
+    // when the probe should have run
+    private long deadline;
+    // smoothed delay in nanoseconds
+    private long delay;
+    private int idle;
+
+    private EventLoopDelay(Vertx vertx, Context context) {
+        this.vertx = vertx;
+        this.context = context;
+    }
+
+    /**
+     * @return the recent delay of the event loop in milliseconds, 0 until the first samples are taken
+     */
+    public long delay() {
+        idle = 0;
+        if (!running) {
+            running = true;
+            schedule(System.nanoTime());
+        }
+        return TimeUnit.NANOSECONDS.toMillis(delay);
+    }
+
+    private void schedule(long now) {
+        deadline = now + INTERVAL_NANOS;
+        vertx.setTimer(INTERVAL, probe);
+    }
+
+    private void sample() {
+        final long now = System.nanoTime();
+        final long late = Math.max(0, now - deadline);
+        // exponential moving average, recent samples weigh 1/4
+        delay += (late - delay) / 4;
+
+        if (++idle > IDLE_PROBES) {
+            running = false;
+            PROBES.remove(context, this);
+            return;
+        }
+
+        schedule(now);
+    }
+}
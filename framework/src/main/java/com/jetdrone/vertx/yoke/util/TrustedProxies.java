@@ -0,0 +1,285 @@
+/**
+ * Copyright 2011-2014 the original author or authors.
+ */
+package com.jetdrone.vertx.yoke.util;
+
+import java.util.Arrays;
+
+/**
+ * # TrustedProxies
+ *
+ * A set of IPv4 and IPv6 address ranges in CIDR notation, stored as a binary prefix trie so checking an address costs
+ * at most one step per bit of its longest matching prefix. Addresses are parsed as literals only, host names are never
+ * resolved.
+ *
+ * Used as the ```trust-proxy``` setting of Yoke, [YokeRequest.ip](../middleware/YokeRequest.html#ip) then only
+ * follows the ```X-Forwarded-For``` hops added by trusted proxies:
+ *
+ * <pre>
+ * yoke.set("trust-proxy", new TrustedProxies("127.0.0.1", "10.0.0.0/8", "fd00::/8"));
+ * </pre>
+ */
+public final class TrustedProxies {
+
+    // flat trie, node 0 of each family is the root, -1 means no child
+    private int[] zero = new int[16];
+    private int[] one = new int[16];
+    private boolean[] terminal = new boolean[16];
+    private int nodes;
+
+    private final int root4;
+    private final int root6;
+
+    /**
+     * @param ranges addresses (```10.0.0.1```) or ranges (```10.0.0.0/8```, ```fd00::/8```)
+     * @throws IllegalArgumentException if a range is not valid
+     */
+    public TrustedProxies(String... ranges) {
+        root4 = node();
+        root6 = node();
+
+        for (String range : ranges) {
+            add(range.trim());
+        }
+    }
+
+    private int node() {
+        if (nodes == zero.length) {
+            zero = Arrays.copyOf(zero, nodes * 2);
+            one = Arrays.copyOf(one, nodes * 2);
+            terminal = Arrays.copyOf(terminal, nodes * 2);
+        }
+        zero[nodes] = -1;
+        one[nodes] = -1;
+        return nodes++;
+    }
+
+    private void add(String range) {
+        final int slash = range.indexOf('/');
+        final byte[] address = parse(range, 0, slash == -1 ? range.length() : slash);
+
+        if (address == null) {
+            throw new IllegalArgumentException("Invalid address: " + range);
+        }
+
+        int bits = address.length * 8;
+        if (slash != -1) {
+            try {
+                bits = Integer.parseInt(range.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid prefix: " + range);
+            }
+            // IPv4 mapped addresses are stored as IPv4
+            if (address.length == 4 && range.indexOf(':') != -1) {
+                bits -= 96;
+            }
+            if (bits < 0 || bits > address.length * 8) {
+                throw new IllegalArgumentException("Invalid prefix: " + range);
+            }
+        }
+
+        int node = address.length == 4 ? root4 : root6;
+        for (int i = 0; i < bits && !terminal[node]; i++) {
+            if (bit(address, i)) {
+                if (one[node] == -1) {
+                    int child = node();
+                    one[node] = child;
+                }
+                node = one[node];
+            } else {
+                if (zero[node] == -1) {
+                    int child = node();
+                    zero[node] = child;
+                }
+                node = zero[node];
+            }
+        }
+        terminal[node] = true;
+    }
+
+    /**
+     * @param address an IP address literal
+     * @return true if the address is in one of the ranges, false if not or if it is not an IP address literal
+     */
+    public boolean contains(String address) {
+        return contains(address, 0, address.length());
+    }
+
+    /**
+     * Same as [contains](#contains) for the address between ```start``` (inclusive) and ```end``` (exclusive).
+     */
+    public boolean contains(String address, int start, int end) {
+        final byte[] bytes = parse(address, start, end);
+        if (bytes == null) {
+            return false;
+        }
+
+        int node = bytes.length == 4 ? root4 : root6;
+        final int bits = bytes.length * 8;
+        for (int i = 0; i < bits; i++) {
+            if (terminal[node]) {
+                return true;
+            }
+            node = bit(bytes, i) ? one[node] : zero[node];
+            if (node == -1) {
+                return false;
+            }
+        }
+        return terminal[node];
+    }
+
+    private static boolean bit(byte[] address, int index) {
+        return (address[index >> 3] & (0x80 >> (index & 7))) != 0;
+    }
+
+    /**
+     * Parses an IPv4 or IPv6 address literal, IPv4 mapped IPv6 addresses are returned as IPv4. IPv6 literals may be
+     * enclosed in brackets and may have a zone id.
+     *
+     * @return 4 or 16 bytes or null if the text is not an address literal
+     */
+    public static byte[] parse(String s, int start, int end) {
+        // trim
+        while (start < end && s.charAt(start) == ' ') {
+            start++;
+        }
+        while (end > start && s.charAt(end - 1) == ' ') {
+            end--;
+        }
+
+        if (end - start >= 2 && s.charAt(start) == '[' && s.charAt(end - 1) == ']') {
+            start++;
+            end--;
+        }
+
+        if (start == end) {
+            return null;
+        }
+
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c == ':') {
+                return parse6(s, start, end);
+            }
+        }
+
+        final byte[] address = new byte[4];
+        return parse4(s, start, end, address, 0) ? address : null;
+    }
+
+    private static boolean parse4(String s, int start, int end, byte[] address, int offset) {
+        int octet = 0;
+        int value = 0;
+        int digits = 0;
+
+        for (int i = start; i <= end; i++) {
+            if (i == end || s.charAt(i) == '.') {
+                if (digits == 0 || octet == 4) {
+                    return false;
+                }
+                address[offset + octet++] = (byte) value;
+                value = 0;
+                digits = 0;
+            } else {
+                final char c = s.charAt(i);
+                if (c < '0' || c > '9' || digits == 3) {
+                    return false;
+                }
+                value = value * 10 + (c - '0');
+                digits++;
+                if (value > 255) {
+                    return false;
+                }
+            }
+        }
+
+        return octet == 4;
+    }
+
+    private static byte[] parse6(String s, int start, int end) {
+        // drop the zone id
+        final int zone = s.indexOf('%', start);
+        if (zone != -1 && zone < end) {
+            end = zone;
+        }
+
+        final byte[] address = new byte[16];
+        int index = 0;
+        // position of the :: compression
+        int gap = -1;
+        int i = start;
+
+        if (end - start >= 2 && s.charAt(start) == ':' && s.charAt(start + 1) == ':') {
+            gap = 0;
+            i += 2;
+        } else if (s.charAt(start) == ':') {
+            return null;
+        }
+
+        while (i < end) {
+            if (index == 16) {
+                return null;
+            }
+
+            int groupEnd = i;
+            int value = 0;
+            while (groupEnd < end && s.charAt(groupEnd) != ':' && s.charAt(groupEnd) != '.') {
+                final int digit = Character.digit(s.charAt(groupEnd), 16);
+                if (digit == -1 || groupEnd - i == 4) {
+                    return null;
+                }
+                value = (value << 4) | digit;
+                groupEnd++;
+            }
+
+            if (groupEnd < end && s.charAt(groupEnd) == '.') {
+                // embedded IPv4 in the last 32 bits
+                if (index > 12 || !parse4(s, i, end, address, index)) {
+                    return null;
+                }
+                index += 4;
+                break;
+            }
+
+            if (groupEnd == i) {
+                return null;
+            }
+
+            address[index++] = (byte) (value >> 8);
+            address[index++] = (byte) value;
+
+            if (groupEnd == end) {
+                break;
+            }
+
+            // skip the colon
+            i = groupEnd + 1;
+            if (i < end && s.charAt(i) == ':') {
+                if (gap != -1) {
+                    return null;
+                }
+                gap = index;
+                i++;
+            } else if (i == end) {
+                // trailing single colon
+                return null;
+            }
+        }
+
+        if (gap != -1) {
+            final int shift = 16 - index;
+            System.arraycopy(address, gap, address, gap + shift, index - gap);
+            Arrays.fill(address, gap, gap + shift, (byte) 0);
+        } else if (index != 16) {
+            return null;
+        }
+
+        // ::ffff:a.b.c.d
+        boolean mapped = address[10] == (byte) 0xff && address[11] == (byte) 0xff;
+        for (int j = 0; j < 10 && mapped; j++) {
+            mapped = address[j] == 0;
+        }
+
+        return mapped ? Arrays.copyOfRange(address, 12, 16) : address;
+    }
+}
@@ -0,0 +1,281 @@
+/**
+ * Copyright 2011-2014 the original author or authors.
+ */
+package com.jetdrone.vertx.yoke.util;
+
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/** # WheelTimer
+ *
+ * Hashed wheel timer for short lived deadlines such as request timeouts. Most of these deadlines are cancelled before
+ * they expire, so instead of creating a Vert.x timer per deadline, all deadlines of an event loop share one wheel which
+ * is driven by a single periodic Vert.x timer. Scheduling and cancelling are O(1), expiration happens with a precision
+ * of one tick (10ms).
+ *
+ * There is one wheel per event loop context. The wheel is not thread safe, it must only be used from the context that
+ * owns it. Once the wheel has been empty for a second its periodic timer stops and the wheel is released, so wheels of
+ * undeployed verticles are not kept around; short gaps between requests keep the same wheel and its counters. Look up
+ * the wheel with [current](#current) instead of keeping a reference to it for longer than that.
+ *
+ * <pre>
+ * WheelTimer.Task task = WheelTimer.current(vertx).schedule(5000, new Handler&lt;Void&gt;() {
+ *   public void handle(Void event) {
+ *     // deadline expired
+ *   }
+ * });
+ * ...
+ * task.cancel();
+ * </pre>
+ */
+public final class WheelTimer {
+
+    private static final long TICK = 10;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK);
+    private static final int WHEEL_SIZE = 512;
+    private static final int MASK = WHEEL_SIZE - 1;
+    // empty ticks before the periodic timer stops
+    private static final int IDLE_TICKS = 100;
+
+    private static final ConcurrentMap<Context, WheelTimer> WHEELS = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the wheel of the current event loop context.
+     *
+     * @param vertx the Vert.x instance
+     * @return the wheel owned by the current context
+     * @throws IllegalStateException when not called from a Vert.x context
+     */
+    public static WheelTimer current(Vertx vertx) {
+        final Context context = vertx.currentContext();
+        if (context == null) {
+            throw new IllegalStateException("WheelTimer must be used from a Vert.x context");
+        }
+
+        WheelTimer wheel = WHEELS.get(context);
+        if (wheel == null) {
+            wheel = new WheelTimer(vertx, context);
+            WHEELS.put(context, wheel);
+        }
+        return wheel;
+    }
+
+    /**
+     * A scheduled deadline.
+     */
+    public static final class Task {
+        private final WheelTimer wheel;
+        private final Handler<Void> handler;
+        private long rounds;
+        private int bucket;
+        private Task prev;
+        private Task next;
+        private boolean done;
+
+        private Task(WheelTimer wheel, Handler<Void> handler) {
+            this.wheel = wheel;
+            this.handler = handler;
+        }
+
+        /**
+         * Cancels the deadline.
+         *
+         * @return false if the deadline already expired or was cancelled before
+         */
+        public boolean cancel() {
+            if (done) {
+                return false;
+            }
+            done = true;
+            wheel.unlink(this);
+            wheel.cancelled++;
+            return true;
+        }
+
+        /**
+         * @return true if the deadline expired or was cancelled
+         */
+        public boolean isDone() {
+            return done;
+        }
+    }
+
+    private final Vertx vertx;
+    private final Context context;
+    private final Task[] buckets = new Task[WHEEL_SIZE];
+    private final List<Task> expiredTasks = new ArrayList<>();
+
+    private final Handler<Long> ticker = new Handler<Long>() {
+        @Override
+        public void handle(Long timerId) {
+            advance();
+        }
+    };
+
+    private long timerId = -1;
+    private long start;
+    // next tick to process
+    private long tick;
+    private int size;
+    private int idleTicks;
+
+    // counters
+    private long scheduled;
+    private long cancelled;
+    private long expired;
+
+    private WheelTimer(Vertx vertx, Context context) {
+        this.vertx = vertx;
+        this.context = context;
+    }
+
+    /**
+     * Schedules a handler to be called after the given delay, unless the returned task is cancelled before.
+     *
+     * @param delay   the delay in milliseconds
+     * @param handler the handler to call once the delay expires
+     * @return the scheduled task
+     */
+    public Task schedule(long delay, Handler<Void> handler) {
+        if (timerId == -1) {
+            // the wheel was idle, restart the clock
+            if (!WHEELS.containsKey(context)) {
+                // released while a reference to it was kept
+                WHEELS.putIfAbsent(context, this);
+            }
+            start = System.nanoTime();
+            tick = 0;
+            timerId = vertx.setPeriodic(TICK, ticker);
+        }
+
+        final Task task = new Task(this, handler);
+        final long elapsed = System.nanoTime() - start + TimeUnit.MILLISECONDS.toNanos(delay);
+        // round up so a deadline never expires before its delay
+        final long target = Math.max(tick, (elapsed + TICK_NANOS - 1) / TICK_NANOS);
+
+        task.rounds = (target - tick) / WHEEL_SIZE;
+        task.bucket = (int) (target & MASK);
+
+        // link at the head of the bucket
+        final Task head = buckets[task.bucket];
+        task.next = head;
+        if (head != null) {
+            head.prev = task;
+        }
+        buckets[task.bucket] = task;
+
+        size++;
+        scheduled++;
+        return task;
+    }
+
+    /**
+     * @return the number of pending deadlines
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of deadlines scheduled on this wheel
+     */
+    public long scheduled() {
+        return scheduled;
+    }
+
+    /**
+     * @return the number of deadlines cancelled before they expired
+     */
+    public long cancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return the number of deadlines that expired
+     */
+    public long expired() {
+        return expired;
+    }
+
+    private void unlink(Task task) {
+        if (task.prev != null) {
+            task.prev.next = task.next;
+        } else {
+            buckets[task.bucket] = task.next;
+        }
+        if (task.next != null) {
+            task.next.prev = task.prev;
+        }
+        task.prev = null;
+        task.next = null;
+        size--;
+    }
+
+    private void stopIfIdle(long ticks) {
+        if (size > 0) {
+            idleTicks = 0;
+            return;
+        }
+        idleTicks += ticks;
+        if (idleTicks >= IDLE_TICKS && timerId != -1) {
+            vertx.cancelTimer(timerId);
+            timerId = -1;
+            idleTicks = 0;
+            // nothing pending, do not keep the wheel (and the context) alive
+            WHEELS.remove(context, this);
+        }
+    }
+
+    private void advance() {
+        // the periodic timer may fire late, process all ticks that are due
+        final long due = (System.nanoTime() - start) / TICK_NANOS;
+        final long ticks = due + 1 - tick;
+
+        while (tick <= due && size > 0) {
+            Task task = buckets[(int) (tick & MASK)];
+            while (task != null) {
+                final Task next = task.next;
+                if (task.rounds == 0) {
+                    task.done = true;
+                    unlink(task);
+                    expiredTasks.add(task);
+                } else {
+                    task.rounds--;
+                }
+                task = next;
+            }
+            tick++;
+        }
+
+        if (size == 0) {
+            tick = due + 1;
+        }
+
+        RuntimeException failure = null;
+        // handlers run after the buckets are updated so they can safely schedule or cancel other tasks
+        for (Task task : expiredTasks) {
+            expired++;
+            try {
+                task.handler.handle(null);
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        expiredTasks.clear();
+
+        stopIfIdle(ticks);
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.jetdrone.vertx.yoke.core.impl;
+
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class LRUCacheTest {
+
+    private static LRUCache.CacheEntry<String, String> entry(String raw) {
+        return new LRUCache.CacheEntry<>(new Date(), raw);
+    }
+
+    @Test
+    public void testReloadKeepsClockBounded() {
+        final LRUCache<String, String> cache = new LRUCache<>(3);
+
+        cache.put("a", entry("a"));
+        cache.put("b", entry("b"));
+        // replaced without a remove
+        cache.put("b", entry("b2"));
+
+        // a template reloaded many times, as the engines do when its file changes
+        for (int i = 0; i < 1000; i++) {
+            cache.remove("a");
+            cache.put("a", entry("a" + i));
+        }
+
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.clockSize());
+
+        cache.put("c", entry("c"));
+        // full, b is the eldest entry since every reload queued a again
+        cache.put("d", entry("d"));
+
+        assertEquals(3, cache.size());
+        assertEquals(3, cache.clockSize());
+        assertNull(cache.get("b"));
+        assertEquals("a999", cache.get("a").raw);
+        assertNotNull(cache.get("c"));
+        assertNotNull(cache.get("d"));
+    }
+
+    @Test
+    public void testSecondChance() {
+        final LRUCache<String, String> cache = new LRUCache<>(3);
+
+        cache.put("a", entry("a"));
+        cache.put("b", entry("b"));
+        cache.put("c", entry("c"));
+
+        // a is read, b is the eldest entry not read since
+        cache.get("a");
+        cache.put("d", entry("d"));
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(3, cache.size());
+        assertEquals(3, cache.clockSize());
+    }
+}
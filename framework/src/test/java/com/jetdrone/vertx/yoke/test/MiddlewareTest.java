@@ -3,14 +3,18 @@ package com.jetdrone.vertx.yoke.test;
 import com.jetdrone.vertx.yoke.Middleware;
 import com.jetdrone.vertx.yoke.Yoke;
 import com.jetdrone.vertx.yoke.middleware.YokeRequest;
+import com.jetdrone.vertx.yoke.util.AsyncIterator;
 import com.jetdrone.vertx.yoke.util.Utils;
 import org.junit.Test;
 import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 import org.vertx.testtools.TestVerticle;
 
 import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerException;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.vertx.testtools.VertxAssert.*;
 
@@ -31,6 +35,352 @@ public class MiddlewareTest extends TestVerticle {
         new YokeTester(vertx, yoke).request("GET", "/", null);
     }
 
+    @Test
+    public void testMountedMiddlewareOrder() {
+        final Yoke yoke = new Yoke(this);
+        final StringBuilder trace = new StringBuilder();
+
+        yoke.use("/api/v1", new Tracer(trace, "a"));
+        yoke.use("/other", new Tracer(trace, "b"));
+        yoke.use("/", new Tracer(trace, "c"));
+        yoke.use("/api", new Tracer(trace, "d"));
+        yoke.use("/api/v2", new Tracer(trace, "e"));
+
+        yoke.use(new Middleware() {
+            @Override
+            public void handle(YokeRequest request, Handler<Object> next) {
+                request.response().end(trace.toString());
+            }
+        });
+
+        final YokeTester yokeTester = new YokeTester(vertx, yoke);
+        yokeTester.request("GET", "/api/v1/users", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals("acd", resp.body.toString());
+                trace.setLength(0);
+
+                yokeTester.request("GET", "/apiv1", new Handler<Response>() {
+                    @Override
+                    public void handle(Response resp) {
+                        // mounts are prefixes, not path segments
+                        assertEquals("cd", resp.body.toString());
+                        testComplete();
+                    }
+                });
+            }
+        });
+    }
+
+    @Test
+    public void testRecycledRequests() {
+        final Yoke yoke = new Yoke(this).recycle();
+        final List<YokeRequest> seen = new ArrayList<>();
+
+        yoke.use(new Middleware() {
+            @Override
+            public void handle(YokeRequest request, Handler<Object> next) {
+                assertNull(request.get("visited"));
+                request.put("visited", true);
+                seen.add(request);
+                request.response().end(request.path());
+            }
+        });
+
+        final YokeTester yokeTester = new YokeTester(vertx, yoke);
+        yokeTester.request("GET", "/a", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals("/a", resp.body.toString());
+                // requests are released on the next tick after end
+                vertx.setTimer(10, new Handler<Long>() {
+                    @Override
+                    public void handle(Long event) {
+                        yokeTester.request("GET", "/b", new Handler<Response>() {
+                            @Override
+                            public void handle(Response resp) {
+                                assertEquals("/b", resp.body.toString());
+                                assertSame(seen.get(0), seen.get(1));
+                                testComplete();
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    @Test
+    public void testRecycledStaleNext() {
+        final Yoke yoke = new Yoke(this).recycle();
+        final List<Handler<Object>> nexts = new ArrayList<>();
+
+        yoke.use(new Middleware() {
+            @Override
+            public void handle(YokeRequest request, Handler<Object> next) {
+                if ("/a".equals(request.path())) {
+                    nexts.add(next);
+                } else {
+                    // a late next() from the previous request reusing the same objects is ignored
+                    nexts.get(0).handle(null);
+                }
+                request.response().end(request.path());
+            }
+        });
+        yoke.use(new Middleware() {
+            @Override
+            public void handle(YokeRequest request, Handler<Object> next) {
+                fail("Stale next() advanced the chain of another request");
+            }
+        });
+
+        final YokeTester yokeTester = new YokeTester(vertx, yoke);
+        yokeTester.request("GET", "/a", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                vertx.setTimer(10, new Handler<Long>() {
+                    @Override
+                    public void handle(Long event) {
+                        yokeTester.request("GET", "/b", new Handler<Response>() {
+                            @Override
+                            public void handle(Response resp) {
+                                assertEquals("/b", resp.body.toString());
+                                testComplete();
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    @Test
+    public void testRecycledRequestGuard() {
+        final Yoke yoke = new Yoke(this).recycle(true);
+        final List<YokeRequest> seen = new ArrayList<>();
+
+        yoke.use(new Middleware() {
+            @Override
+            public void handle(YokeRequest request, Handler<Object> next) {
+                seen.add(request);
+                request.response().end();
+            }
+        });
+
+        new YokeTester(vertx, yoke).request("GET", "/", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                vertx.setTimer(10, new Handler<Long>() {
+                    @Override
+                    public void handle(Long event) {
+                        try {
+                            seen.get(0).put("late", true);
+                            fail("Context should not be usable after end");
+                        } catch (IllegalStateException e) {
+                            // expected
+                        }
+                        try {
+                            seen.get(0).response().end("late");
+                            fail("Request should not be usable after end");
+                        } catch (IllegalStateException e) {
+                            testComplete();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @Test
+    public void testDeepSynchronousChain() {
+        final Yoke yoke = new Yoke(this);
+        final StringBuilder trace = new StringBuilder();
+
+        // synchronous next() calls must not grow the stack
+        for (int i = 0; i < 100000; i++) {
+            yoke.use(new Middleware() {
+                @Override
+                public void handle(YokeRequest request, Handler<Object> next) {
+                    next.handle(null);
+                }
+            });
+        }
+
+        yoke.use(new Middleware() {
+            @Override
+            public void handle(YokeRequest request, Handler<Object> next) {
+                request.response().end("OK");
+            }
+        });
+
+        new YokeTester(vertx, yoke).request("GET", "/", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals("OK", resp.body.toString());
+                testComplete();
+            }
+        });
+    }
+
+    @Test
+    public void testSynchronousNextOrder() {
+        final Yoke yoke = new Yoke(this);
+        final StringBuilder trace = new StringBuilder();
+
+        yoke.use(new Middleware() {
+            @Override
+            public void handle(YokeRequest request, Handler<Object> next) {
+                trace.append("before ");
+                next.handle(null);
+                // the chain is trampolined, the next middleware has not run yet
+                trace.append("after ");
+            }
+        });
+
+        yoke.use(new Middleware() {
+            @Override
+            public void handle(YokeRequest request, Handler<Object> next) {
+                trace.append("downstream");
+                request.response().end(trace.toString());
+            }
+        });
+
+        new YokeTester(vertx, yoke).request("GET", "/", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals("before after downstream", resp.body.toString());
+                testComplete();
+            }
+        });
+    }
+
+    @Test
+    public void testDeepSynchronousAsyncIterator() {
+        final List<Integer> items = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            items.add(i);
+        }
+
+        new AsyncIterator<Integer>(items) {
+            int count = 0;
+
+            @Override
+            public void handle(Integer item) {
+                if (hasNext()) {
+                    count++;
+                    next();
+                } else {
+                    assertEquals(items.size(), count);
+                    testComplete();
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testFrozen() {
+        final com.jetdrone.vertx.yoke.middleware.Router router = new com.jetdrone.vertx.yoke.middleware.Router();
+        router.get("/hello", new Handler<YokeRequest>() {
+            @Override
+            public void handle(YokeRequest request) {
+                request.response().end((String) request.get("title"));
+            }
+        });
+
+        final Yoke yoke = new Yoke(this).use(router).freeze();
+        assertTrue(yoke.isFrozen());
+
+        try {
+            yoke.set("title", "Changed");
+            fail("Frozen application should not accept changes");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        try {
+            router.get("/world", new Handler<YokeRequest>() {
+                @Override
+                public void handle(YokeRequest request) {
+                }
+            });
+            fail("Frozen router should not accept changes");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        try {
+            yoke.recycle();
+            fail("Frozen application should not change its dispatch mode");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // frozen applications can be shared with other verticle instances, mutable ones cannot
+        try {
+            new Yoke(this).share();
+            fail("Mutable application should not be shareable");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        vertx.sharedData().getMap("yoke.test").put("app", yoke.share());
+
+        new YokeTester(vertx, yoke).request("GET", "/hello", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals(200, resp.getStatusCode());
+                assertEquals("Yoke", resp.body.toString());
+                testComplete();
+            }
+        });
+    }
+
+    @Test
+    public void testWarmup() {
+        final List<String> seen = new ArrayList<>();
+
+        final Yoke yoke = new Yoke(this);
+        yoke.use(new Middleware() {
+            @Override
+            public void handle(YokeRequest request, Handler<Object> next) {
+                assertEquals("true", request.getHeader("x-yoke-warmup"));
+                seen.add(request.method() + " " + request.path());
+                request.response().end();
+            }
+        });
+
+        yoke.warmup(new JsonArray()
+                .addObject(new JsonObject().putString("url", "/a"))
+                .addObject(new JsonObject().putString("method", "POST").putString("url", "/b").putString("body", "{}")), 5, 10000);
+
+        yoke.listen(8765, new Handler<Boolean>() {
+            @Override
+            public void handle(Boolean listening) {
+                assertTrue(listening);
+                // all requests were replayed before the server was bound
+                assertEquals(10, seen.size());
+                assertEquals("GET /a", seen.get(0));
+                assertEquals("POST /b", seen.get(1));
+                testComplete();
+            }
+        });
+    }
+
+    private static class Tracer extends Middleware {
+        private final StringBuilder trace;
+        private final String name;
+
+        Tracer(StringBuilder trace, String name) {
+            this.trace = trace;
+            this.name = name;
+        }
+
+        @Override
+        public void handle(YokeRequest request, Handler<Object> next) {
+            trace.append(name);
+            next.handle(null);
+        }
+    }
+
     @Test
     public void testXml() throws TransformerException, XMLStreamException {
         String message = "\n" +
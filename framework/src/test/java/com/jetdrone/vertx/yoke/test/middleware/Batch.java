@@ -0,0 +1,218 @@
+package com.jetdrone.vertx.yoke.test.middleware;
+
+import com.jetdrone.vertx.yoke.Yoke;
+import com.jetdrone.vertx.yoke.middleware.BodyParser;
+import com.jetdrone.vertx.yoke.middleware.Compress;
+import com.jetdrone.vertx.yoke.middleware.Router;
+import com.jetdrone.vertx.yoke.middleware.YokeRequest;
+import com.jetdrone.vertx.yoke.test.Response;
+import com.jetdrone.vertx.yoke.test.YokeTester;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.MultiMap;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.http.CaseInsensitiveMultiMap;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.testtools.TestVerticle;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+import static org.vertx.testtools.VertxAssert.*;
+
+public class Batch extends TestVerticle {
+
+    @Test
+    public void testBatch() {
+        final Yoke yoke = new Yoke(this);
+        yoke.use(new BodyParser());
+        yoke.use("/batch", new com.jetdrone.vertx.yoke.middleware.Batch(yoke, 2, 10));
+        yoke.use(new Router()
+                .get("/hello/:name", new Handler<YokeRequest>() {
+                    @Override
+                    public void handle(YokeRequest request) {
+                        // headers are inherited from the batch request
+                        request.response().end("Hello " + request.params().get("name") + " " + request.getHeader("x-token"));
+                    }
+                })
+                .post("/echo", new Handler<YokeRequest>() {
+                    @Override
+                    public void handle(YokeRequest request) {
+                        request.response().setStatusCode(201);
+                        request.response().end((JsonObject) request.body());
+                    }
+                }));
+
+        JsonArray batch = new JsonArray()
+                .addObject(new JsonObject().putString("url", "/hello/paulo"))
+                .addObject(new JsonObject().putString("method", "POST").putString("url", "/echo").putObject("body", new JsonObject().putString("a", "b")))
+                .addObject(new JsonObject().putString("url", "/missing"))
+                .addObject(new JsonObject().putString("method", "POST").putString("url", "/batch"));
+
+        Buffer body = new Buffer(batch.encode());
+
+        MultiMap headers = new CaseInsensitiveMultiMap();
+        headers.add("content-type", "application/json");
+        headers.add("content-length", Integer.toString(body.length()));
+        headers.add("x-token", "secret");
+
+        new YokeTester(vertx, yoke).request("POST", "/batch", headers, body, new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals(200, resp.getStatusCode());
+
+                JsonArray results = new JsonArray(resp.body.toString());
+                assertEquals(4, results.size());
+
+                JsonObject first = results.get(0);
+                assertEquals(200, first.getNumber("status").intValue());
+                assertEquals("Hello paulo secret", first.getString("body"));
+
+                JsonObject second = results.get(1);
+                assertEquals(201, second.getNumber("status").intValue());
+                assertEquals("b", new JsonObject(second.getString("body")).getString("a"));
+
+                JsonObject third = results.get(2);
+                assertEquals(404, third.getNumber("status").intValue());
+
+                // recursive batches are not allowed
+                JsonObject fourth = results.get(3);
+                assertEquals(400, fourth.getNumber("status").intValue());
+                testComplete();
+            }
+        });
+    }
+
+    @Test
+    public void testBatchLimit() {
+        final Yoke yoke = new Yoke(this);
+        yoke.use(new BodyParser());
+        yoke.use("/batch", new com.jetdrone.vertx.yoke.middleware.Batch(yoke, 2, 1));
+
+        Buffer body = new Buffer(new JsonArray()
+                .addObject(new JsonObject().putString("url", "/a"))
+                .addObject(new JsonObject().putString("url", "/b")).encode());
+
+        MultiMap headers = new CaseInsensitiveMultiMap();
+        headers.add("content-type", "application/json");
+        headers.add("content-length", Integer.toString(body.length()));
+
+        new YokeTester(vertx, yoke).request("POST", "/batch", headers, body, new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals(413, resp.getStatusCode());
+                testComplete();
+            }
+        });
+    }
+
+    @Test
+    public void testBatchEncodingHeaders() throws IOException {
+        final Yoke yoke = new Yoke(this);
+        yoke.use(new BodyParser());
+        yoke.use("/batch", new com.jetdrone.vertx.yoke.middleware.Batch(yoke, 2, 10));
+        // only the sub-responses would be compressed
+        yoke.use("/api", new Compress().threshold(0));
+        yoke.use(new Router()
+                .post("/api/echo", new Handler<YokeRequest>() {
+                    @Override
+                    public void handle(YokeRequest request) {
+                        request.response().end((JsonObject) request.body());
+                    }
+                }));
+
+        JsonArray batch = new JsonArray()
+                .addObject(new JsonObject().putString("method", "POST").putString("url", "/api/echo").putObject("body", new JsonObject().putString("a", "b")));
+
+        // the batch body is compressed, the sub-request bodies are not
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(batch.encode().getBytes("UTF-8"));
+        }
+        Buffer body = new Buffer(bytes.toByteArray());
+
+        MultiMap headers = new CaseInsensitiveMultiMap();
+        headers.add("content-type", "application/json");
+        headers.add("content-encoding", "gzip");
+        headers.add("content-length", Integer.toString(body.length()));
+        headers.add("accept-encoding", "gzip");
+        headers.add("connection", "keep-alive");
+
+        new YokeTester(vertx, yoke).request("POST", "/batch", headers, body, new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals(200, resp.getStatusCode());
+
+                JsonArray results = new JsonArray(resp.body.toString());
+                assertEquals(1, results.size());
+
+                JsonObject first = results.get(0);
+                assertEquals(200, first.getNumber("status").intValue());
+                assertNull(first.getObject("headers").getString("content-encoding"));
+                assertEquals("b", new JsonObject(first.getString("body")).getString("a"));
+                testComplete();
+            }
+        });
+    }
+
+    @Test
+    public void testNestedBatch() {
+        final Yoke yoke = new Yoke(this);
+        yoke.use(new BodyParser());
+        yoke.use("/batch", new com.jetdrone.vertx.yoke.middleware.Batch(yoke, 2, 10));
+
+        final JsonArray nested = new JsonArray().addObject(new JsonObject().putString("url", "/hello"));
+
+        // paths that only resolve to the batch endpoint once decoded
+        JsonArray batch = new JsonArray()
+                .addObject(new JsonObject().putString("method", "POST").putString("url", "/%62atch").putArray("body", nested))
+                .addObject(new JsonObject().putString("method", "POST").putString("url", "http://x/batch").putArray("body", nested))
+                .addObject(new JsonObject().putString("method", "POST").putString("url", "/batch/?a=1").putArray("body", nested));
+
+        Buffer body = new Buffer(batch.encode());
+
+        MultiMap headers = new CaseInsensitiveMultiMap();
+        headers.add("content-type", "application/json");
+        headers.add("content-length", Integer.toString(body.length()));
+
+        new YokeTester(vertx, yoke).request("POST", "/batch", headers, body, new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals(200, resp.getStatusCode());
+
+                JsonArray results = new JsonArray(resp.body.toString());
+                assertEquals(3, results.size());
+                for (int i = 0; i < results.size(); i++) {
+                    JsonObject result = results.get(i);
+                    assertEquals(400, result.getNumber("status").intValue());
+                }
+                testComplete();
+            }
+        });
+    }
+
+    @Test
+    public void testSubRequestMark() {
+        final Yoke yoke = new Yoke(this);
+        yoke.use(new BodyParser());
+        yoke.use("/batch", new com.jetdrone.vertx.yoke.middleware.Batch(yoke, 2, 10));
+
+        Buffer body = new Buffer(new JsonArray().encode());
+
+        // the mark only rejects the batch that carries it
+        MultiMap headers = new CaseInsensitiveMultiMap();
+        headers.add("content-type", "application/json");
+        headers.add("content-length", Integer.toString(body.length()));
+        headers.add("x-yoke-batch", "1");
+
+        new YokeTester(vertx, yoke).request("POST", "/batch", headers, body, new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals(400, resp.getStatusCode());
+                testComplete();
+            }
+        });
+    }
+}
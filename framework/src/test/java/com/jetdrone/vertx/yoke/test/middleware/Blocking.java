@@ -0,0 +1,177 @@
+package com.jetdrone.vertx.yoke.test.middleware;
+
+import com.jetdrone.vertx.yoke.Middleware;
+import com.jetdrone.vertx.yoke.Yoke;
+import com.jetdrone.vertx.yoke.middleware.YokeRequest;
+import com.jetdrone.vertx.yoke.test.Response;
+import com.jetdrone.vertx.yoke.test.YokeTester;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.testtools.TestVerticle;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.vertx.testtools.VertxAssert.*;
+
+public class Blocking extends TestVerticle {
+
+    @Test
+    public void testBlocking() {
+        final Thread eventLoop = Thread.currentThread();
+
+        Yoke yoke = new Yoke(this);
+        yoke.use(new com.jetdrone.vertx.yoke.middleware.Blocking(new Middleware() {
+            @Override
+            public void handle(YokeRequest request, Handler<Object> next) {
+                assertNotSame(eventLoop, Thread.currentThread());
+                request.put("worker", Thread.currentThread().getName());
+                next.handle(null);
+            }
+        }));
+        yoke.use(new Handler<YokeRequest>() {
+            @Override
+            public void handle(YokeRequest request) {
+                // next is called back on the event loop
+                assertSame(eventLoop, Thread.currentThread());
+                request.response().end((String) request.get("worker"));
+            }
+        });
+
+        new YokeTester(vertx, yoke).request("GET", "/", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals(200, resp.getStatusCode());
+                assertTrue(resp.body.toString().startsWith("yoke-blocking-"));
+                testComplete();
+            }
+        });
+    }
+
+    @Test
+    public void testBlockingError() {
+        Yoke yoke = new Yoke(this);
+        yoke.use(new com.jetdrone.vertx.yoke.middleware.Blocking(new Middleware() {
+            @Override
+            public void handle(YokeRequest request, Handler<Object> next) {
+                throw new StackOverflowError("blocking code failed");
+            }
+        }));
+
+        new YokeTester(vertx, yoke).request("GET", "/", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                // the request is resumed instead of hanging
+                assertEquals(500, resp.getStatusCode());
+                testComplete();
+            }
+        });
+    }
+
+    @Test
+    public void testBlockingWrite() {
+        final Thread eventLoop = Thread.currentThread();
+
+        Yoke yoke = new Yoke(this);
+        yoke.use(new com.jetdrone.vertx.yoke.middleware.Blocking(new Middleware() {
+            @Override
+            public void handle(YokeRequest request, Handler<Object> next) {
+                request.response().setContentType("text/plain");
+                request.response().endHandler(new Handler<Void>() {
+                    @Override
+                    public void handle(Void event) {
+                        // the write happened on the event loop
+                        assertSame(eventLoop, Thread.currentThread());
+                    }
+                });
+                request.response().end("OK");
+            }
+        }));
+
+        new YokeTester(vertx, yoke).request("GET", "/", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals(200, resp.getStatusCode());
+                assertEquals("OK", resp.body.toString());
+                testComplete();
+            }
+        });
+    }
+
+    @Test
+    public void testBulkhead() {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        Yoke yoke = new Yoke(this);
+        yoke.use(new com.jetdrone.vertx.yoke.middleware.Blocking(new Middleware() {
+            @Override
+            public void handle(YokeRequest request, Handler<Object> next) {
+                try {
+                    latch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                request.response().end();
+            }
+        }, 1, 1));
+
+        final YokeTester yokeAssert = new YokeTester(vertx, yoke);
+        final Handler<Response> ignore = new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+            }
+        };
+
+        // one request runs, one waits in the queue
+        yokeAssert.request("GET", "/", ignore);
+        yokeAssert.request("GET", "/", ignore);
+
+        yokeAssert.request("GET", "/", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals(503, resp.getStatusCode());
+                latch.countDown();
+                testComplete();
+            }
+        });
+    }
+
+    @Test
+    public void testNextThenThrow() {
+        final int[] calls = {0};
+
+        Yoke yoke = new Yoke(this);
+        yoke.use(new com.jetdrone.vertx.yoke.middleware.Blocking(new Middleware() {
+            @Override
+            public void handle(YokeRequest request, Handler<Object> next) {
+                request.response().putHeader("x-worker", "true");
+                next.handle(null);
+                throw new RuntimeException("after next");
+            }
+        }));
+        yoke.use(new Handler<YokeRequest>() {
+            @Override
+            public void handle(final YokeRequest request) {
+                calls[0]++;
+                // give a second resume the chance to run
+                vertx.setTimer(100, new Handler<Long>() {
+                    @Override
+                    public void handle(Long event) {
+                        request.response().end(Integer.toString(calls[0]));
+                    }
+                });
+            }
+        });
+
+        new YokeTester(vertx, yoke).request("GET", "/", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                // the chain continued once
+                assertEquals(200, resp.getStatusCode());
+                assertEquals("1", resp.body.toString());
+                assertEquals("true", resp.headers.get("x-worker"));
+                testComplete();
+            }
+        });
+    }
+}
@@ -14,6 +14,12 @@ import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.json.JsonObject;
 import org.vertx.testtools.TestVerticle;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
 import static org.vertx.testtools.VertxAssert.*;
 
 public class BodyParser extends TestVerticle {
@@ -212,4 +218,203 @@ public class BodyParser extends TestVerticle {
         });
     }
 
+    private static Buffer compress(byte[] data, boolean gzip) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (OutputStream out = gzip ? new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes)) {
+                out.write(data);
+            }
+            return new Buffer(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testGzipJsonBody() {
+
+        final JsonObject json = new JsonObject().putString("key", "value");
+
+        Yoke yoke = new Yoke(this);
+        yoke.use(new com.jetdrone.vertx.yoke.middleware.BodyParser());
+        yoke.use(new Handler<YokeRequest>() {
+            @Override
+            public void handle(YokeRequest request) {
+                assertEquals(json.encode(), ((JsonObject) request.body()).encode());
+                // the headers describe the decoded body
+                assertNull(request.getHeader("content-encoding"));
+                assertEquals(Integer.toString(json.encode().length()), request.getHeader("content-length"));
+                request.response().end();
+            }
+        });
+
+        Buffer body = compress(json.encode().getBytes(), true);
+
+        MultiMap headers = new CaseInsensitiveMultiMap();
+        headers.add("content-type", "application/json");
+        headers.add("content-encoding", "gzip");
+        headers.add("content-length", Integer.toString(body.length()));
+
+        new YokeTester(vertx, yoke).request("POST", "/upload", headers, body, new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals(200, resp.getStatusCode());
+                testComplete();
+            }
+        });
+    }
+
+    @Test
+    public void testDeflateFormBody() {
+
+        Yoke yoke = new Yoke(this);
+        yoke.use(new com.jetdrone.vertx.yoke.middleware.BodyParser());
+        yoke.use(new Handler<YokeRequest>() {
+            @Override
+            public void handle(YokeRequest request) {
+                assertEquals("value", request.formAttributes().get("param"));
+                assertEquals("a b", request.getFormParameter("other"));
+                request.response().end();
+            }
+        });
+
+        Buffer body = compress("param=value&other=a+b".getBytes(), false);
+
+        MultiMap headers = new CaseInsensitiveMultiMap();
+        headers.add("content-type", HttpHeaders.Values.APPLICATION_X_WWW_FORM_URLENCODED);
+        headers.add("content-encoding", "deflate");
+        headers.add("content-length", Integer.toString(body.length()));
+
+        new YokeTester(vertx, yoke).request("POST", "/upload", headers, body, new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals(200, resp.getStatusCode());
+                testComplete();
+            }
+        });
+    }
+
+    @Test
+    public void testCompressedBodyLimit() {
+
+        Yoke yoke = new Yoke(this);
+        yoke.use(new Limit(64 * 1024));
+        yoke.use(new com.jetdrone.vertx.yoke.middleware.BodyParser());
+        yoke.use(new Handler<YokeRequest>() {
+            @Override
+            public void handle(YokeRequest request) {
+                fail("Body should have been too long");
+            }
+        });
+
+        // a few KB that expand to 16MB
+        final Buffer bomb = compress(new byte[16 * 1024 * 1024], true);
+        assertTrue(bomb.length() < 64 * 1024);
+
+        final MultiMap headers = new CaseInsensitiveMultiMap();
+        headers.add("content-type", "application/json");
+        headers.add("content-encoding", "gzip");
+        headers.add("content-length", Integer.toString(bomb.length()));
+
+        final YokeTester yokeAssert = new YokeTester(vertx, yoke);
+        yokeAssert.request("POST", "/upload", headers, bomb, new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals(413, resp.getStatusCode());
+
+                // not compressed data
+                final Buffer corrupt = new Buffer("{\"key\":\"value\"}");
+                headers.set("content-length", Integer.toString(corrupt.length()));
+
+                yokeAssert.request("POST", "/upload", headers, corrupt, new Handler<Response>() {
+                    @Override
+                    public void handle(Response resp) {
+                        assertEquals(400, resp.getStatusCode());
+                        testComplete();
+                    }
+                });
+            }
+        });
+    }
+
+    @Test
+    public void testBodyLengthLimitBoundary() {
+
+        Yoke yoke = new Yoke(this);
+        yoke.use(new Limit(5L));
+        yoke.use(new com.jetdrone.vertx.yoke.middleware.BodyParser());
+        yoke.use(new Handler<YokeRequest>() {
+            @Override
+            public void handle(YokeRequest request) {
+                request.response().end(request.<Buffer>body());
+            }
+        });
+
+        final MultiMap headers = new CaseInsensitiveMultiMap();
+        headers.add("content-type", "plain/text");
+        headers.add("transfer-encoding", "chunked");
+
+        final YokeTester yokeAssert = new YokeTester(vertx, yoke);
+        // exactly the limit
+        yokeAssert.request("POST", "/upload", headers, new Buffer("hello"), new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals(200, resp.getStatusCode());
+                assertEquals("hello", resp.body.toString());
+
+                // one byte past the limit
+                yokeAssert.request("POST", "/upload", headers, new Buffer("hello!"), new Handler<Response>() {
+                    @Override
+                    public void handle(Response resp) {
+                        assertEquals(413, resp.getStatusCode());
+                        testComplete();
+                    }
+                });
+            }
+        });
+    }
+
+    @Test
+    public void testCompressedBodyLimitBoundary() {
+
+        Yoke yoke = new Yoke(this);
+        yoke.use(new Limit(1024));
+        yoke.use(new com.jetdrone.vertx.yoke.middleware.BodyParser());
+        yoke.use(new Handler<YokeRequest>() {
+            @Override
+            public void handle(YokeRequest request) {
+                request.response().end(Integer.toString(request.<Buffer>body().length()));
+            }
+        });
+
+        // the limit applies to the decoded length, the compressed bodies are much smaller
+        final Buffer atLimit = compress(new byte[1024], true);
+        final Buffer pastLimit = compress(new byte[1025], true);
+
+        final YokeTester yokeAssert = new YokeTester(vertx, yoke);
+        yokeAssert.request("POST", "/upload", gzipHeaders(atLimit), atLimit, new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals(200, resp.getStatusCode());
+                assertEquals("1024", resp.body.toString());
+
+                yokeAssert.request("POST", "/upload", gzipHeaders(pastLimit), pastLimit, new Handler<Response>() {
+                    @Override
+                    public void handle(Response resp) {
+                        assertEquals(413, resp.getStatusCode());
+                        testComplete();
+                    }
+                });
+            }
+        });
+    }
+
+    // the body parser rewrites the encoding headers of a decoded request, so each request gets its own
+    private static MultiMap gzipHeaders(Buffer body) {
+        final MultiMap headers = new CaseInsensitiveMultiMap();
+        headers.add("content-type", "plain/text");
+        headers.add("content-encoding", "gzip");
+        headers.add("content-length", Integer.toString(body.length()));
+        return headers;
+    }
 }
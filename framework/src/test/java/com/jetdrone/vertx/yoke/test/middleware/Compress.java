@@ -2,24 +2,43 @@ package com.jetdrone.vertx.yoke.test.middleware;
 
 import com.jetdrone.vertx.yoke.Middleware;
 import com.jetdrone.vertx.yoke.Yoke;
+import com.jetdrone.vertx.yoke.middleware.filters.AbstractWriterFilter;
+import com.jetdrone.vertx.yoke.middleware.filters.GZipWriterFilter;
+import com.jetdrone.vertx.yoke.middleware.filters.ParallelGZipWriterFilter;
 import com.jetdrone.vertx.yoke.middleware.YokeRequest;
 import com.jetdrone.vertx.yoke.test.Response;
 import com.jetdrone.vertx.yoke.test.YokeTester;
 import org.junit.Test;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.MultiMap;
+import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.http.CaseInsensitiveMultiMap;
 import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.streams.ReadStream;
 import org.vertx.testtools.TestVerticle;
 
-import static org.vertx.testtools.VertxAssert.assertEquals;
-import static org.vertx.testtools.VertxAssert.testComplete;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.vertx.testtools.VertxAssert.*;
 
 public class Compress extends TestVerticle {
   @Test
   public void testGzipCompress() {
     Yoke yoke = new Yoke(this);
-    yoke.use(new com.jetdrone.vertx.yoke.middleware.Compress());
+    // the body is below the default threshold
+    yoke.use(new com.jetdrone.vertx.yoke.middleware.Compress().threshold(0));
     yoke.use(new Middleware() {
       @Override
       public void handle(YokeRequest request, Handler<Object> next) {
@@ -35,14 +54,504 @@ public class Compress extends TestVerticle {
           @Override
           public void handle(Response resp) {
               assertEquals(200, resp.getStatusCode());
-              for (int i = 0; i < resp.body.length(); i++) {
-//                  System.out.println((int) resp.body.getByte(i));
-              }
+              assertEquals("gzip", resp.headers.get("content-encoding"));
+              assertEquals("{\"hello\":\"world\"}", gunzip(resp.body));
               testComplete();
           }
       });
   }
 
+  private static String gunzip(Buffer body) {
+    try {
+      return read(new GZIPInputStream(new ByteArrayInputStream(body.getBytes())));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String inflate(Buffer body) {
+    // zlib format, the default of InflaterInputStream
+    return read(new InflaterInputStream(new ByteArrayInputStream(body.getBytes())));
+  }
+
+  private static String read(InputStream stream) {
+    try (InputStream in = stream) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[4096];
+      int n;
+      while ((n = in.read(buf)) != -1) {
+        out.write(buf, 0, n);
+      }
+      return out.toString("UTF-8");
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Test
+  public void testChunkedCompress() {
+    final StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      expected.append("line ").append(i).append('\n');
+    }
+
+    Yoke yoke = new Yoke(this);
+    yoke.use(new com.jetdrone.vertx.yoke.middleware.Compress());
+    yoke.use(new Middleware() {
+      @Override
+      public void handle(YokeRequest request, Handler<Object> next) {
+        request.response().setContentType("text/plain");
+        for (int i = 0; i < 1000; i++) {
+          request.response().write("line " + i + "\n");
+        }
+        request.response().end();
+      }
+    });
+
+    MultiMap headers = new CaseInsensitiveMultiMap();
+    headers.add("Accept-Encoding", "gzip");
+
+    new YokeTester(vertx, yoke).request("GET", "/", headers, new Handler<Response>() {
+      @Override
+      public void handle(Response resp) {
+        assertEquals(200, resp.getStatusCode());
+        assertEquals("gzip", resp.headers.get("content-encoding"));
+        // encoded blocks are sent as they are produced
+        assertTrue(resp.isChunked());
+        assertEquals(expected.toString(), gunzip(resp.body));
+        testComplete();
+      }
+    });
+  }
+
+  @Test
+  public void testDeflateCompress() {
+    final StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      expected.append(i).append(',');
+    }
+
+    Yoke yoke = new Yoke(this);
+    yoke.use(new com.jetdrone.vertx.yoke.middleware.Compress(Pattern.compile("text"), 1));
+    yoke.use(new Middleware() {
+      @Override
+      public void handle(YokeRequest request, Handler<Object> next) {
+        request.response().setContentType("text/plain");
+        // larger than the deflater output scratch
+        request.response().write(expected.substring(0, 50000));
+        request.response().end(expected.substring(50000));
+      }
+    });
+
+    final MultiMap headers = new CaseInsensitiveMultiMap();
+    headers.add("Accept-Encoding", "deflate");
+
+    final YokeTester yokeAssert = new YokeTester(vertx, yoke);
+    yokeAssert.request("GET", "/", headers, new Handler<Response>() {
+      @Override
+      public void handle(Response resp) {
+        assertEquals("deflate", resp.headers.get("content-encoding"));
+        assertEquals(expected.toString(), inflate(resp.body));
+
+        // the pooled deflater is reused by the next response
+        yokeAssert.request("GET", "/", headers, new Handler<Response>() {
+          @Override
+          public void handle(Response resp) {
+            assertEquals(expected.toString(), inflate(resp.body));
+            testComplete();
+          }
+        });
+      }
+    });
+  }
+
+  @Test
+  public void testStreamCompress() {
+    Yoke yoke = new Yoke(this);
+    // the declared length is below the default threshold
+    yoke.use(new com.jetdrone.vertx.yoke.middleware.Compress().threshold(0));
+    yoke.use(new Middleware() {
+      @Override
+      public void handle(YokeRequest request, Handler<Object> next) {
+        request.response().setContentType("application/json");
+        request.response().putHeader("content-length", "17");
+        request.response().end(new ReadStream<ReadStream<?>>() {
+          Handler<Buffer> dataHandler;
+          Handler<Void> endHandler;
+          int sent;
+
+          void emit() {
+            vertx.runOnContext(new Handler<Void>() {
+              @Override
+              public void handle(Void event) {
+                if (sent < 3) {
+                  dataHandler.handle(new Buffer(sent++ == 0 ? "{\"hello\":" : sent == 2 ? "\"wor" : "ld\"}"));
+                  emit();
+                } else {
+                  endHandler.handle(null);
+                }
+              }
+            });
+          }
+
+          @Override
+          public ReadStream<?> dataHandler(Handler<Buffer> handler) {
+            dataHandler = handler;
+            emit();
+            return this;
+          }
+
+          @Override
+          public ReadStream<?> pause() {
+            return this;
+          }
+
+          @Override
+          public ReadStream<?> resume() {
+            return this;
+          }
+
+          @Override
+          public ReadStream<?> exceptionHandler(Handler<Throwable> handler) {
+            return this;
+          }
+
+          @Override
+          public ReadStream<?> endHandler(Handler<Void> handler) {
+            endHandler = handler;
+            return this;
+          }
+        });
+      }
+    });
+
+    MultiMap headers = new CaseInsensitiveMultiMap();
+    headers.add("Accept-Encoding", "gzip");
+
+    new YokeTester(vertx, yoke).request("GET", "/", headers, new Handler<Response>() {
+      @Override
+      public void handle(Response resp) {
+        assertEquals("gzip", resp.headers.get("content-encoding"));
+        // the length of the plain body does not apply
+        assertNull(resp.headers.get("content-length"));
+        assertEquals("{\"hello\":\"world\"}", gunzip(resp.body));
+        testComplete();
+      }
+    });
+  }
+
+  @Test
+  public void testCompressPolicy() {
+    final StringBuilder large = new StringBuilder();
+    for (int i = 0; i < 500; i++) {
+      large.append("line ").append(i).append('\n');
+    }
+
+    // 600 chars but 1200 bytes, above the threshold
+    final StringBuilder accentedBuilder = new StringBuilder();
+    for (int i = 0; i < 600; i++) {
+      accentedBuilder.append('\u00e9');
+    }
+    final String accented = accentedBuilder.toString();
+
+    final com.jetdrone.vertx.yoke.middleware.Compress compress = new com.jetdrone.vertx.yoke.middleware.Compress();
+
+    Yoke yoke = new Yoke(this);
+    yoke.use(compress);
+    yoke.use(new Middleware() {
+      @Override
+      public void handle(YokeRequest request, Handler<Object> next) {
+        switch (request.path()) {
+          case "/small":
+            request.response().end(new JsonObject().putString("hello", "world"));
+            break;
+          case "/image":
+            request.response().setContentType("image/png");
+            request.response().end(new Buffer(new byte[4096]));
+            break;
+          case "/accented":
+            request.response().setContentType("text/plain");
+            request.response().end(accented);
+            break;
+          default:
+            request.response().setContentType("text/plain");
+            request.response().end(large.toString());
+        }
+      }
+    });
+
+    final MultiMap headers = new CaseInsensitiveMultiMap();
+    headers.add("Accept-Encoding", "gzip");
+
+    final YokeTester yokeAssert = new YokeTester(vertx, yoke);
+    yokeAssert.request("GET", "/small", headers, new Handler<Response>() {
+      @Override
+      public void handle(Response resp) {
+        // not worth compressing
+        assertNull(resp.headers.get("content-encoding"));
+        assertEquals("{\"hello\":\"world\"}", resp.body.toString());
+
+        yokeAssert.request("GET", "/image", headers, new Handler<Response>() {
+          @Override
+          public void handle(Response resp) {
+            assertNull(resp.headers.get("content-encoding"));
+            assertEquals(4096, resp.body.length());
+
+            yokeAssert.request("GET", "/large", headers, new Handler<Response>() {
+              @Override
+              public void handle(Response resp) {
+                assertEquals("gzip", resp.headers.get("content-encoding"));
+                assertEquals(large.toString(), gunzip(resp.body));
+
+                yokeAssert.request("GET", "/accented", headers, new Handler<Response>() {
+                  @Override
+                  public void handle(Response resp) {
+                    // the threshold applies to the encoded length
+                    assertEquals("gzip", resp.headers.get("content-encoding"));
+                    assertEquals(accented, gunzip(resp.body));
+
+                    assertEquals(1, compress.skippedSize());
+                    assertEquals(1, compress.skippedType());
+                    assertEquals(2, compress.compressed());
+                    assertEquals(0, compress.skippedLoad());
+                    assertEquals(0, compress.reduced());
+                    testComplete();
+                  }
+                });
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+
+  @Test
+  public void testCompressBackoff() {
+    final StringBuilder large = new StringBuilder();
+    for (int i = 0; i < 500; i++) {
+      large.append("line ").append(i).append('\n');
+    }
+
+    final com.jetdrone.vertx.yoke.middleware.Compress compress = new com.jetdrone.vertx.yoke.middleware.Compress().backoff(1, 30);
+    final org.vertx.java.core.Vertx timers = vertx;
+
+    Yoke yoke = new Yoke(this);
+    yoke.use(compress);
+    yoke.use(new Middleware() {
+      @Override
+      public void handle(final YokeRequest request, Handler<Object> next) {
+        request.response().setContentType("text/plain");
+        if ("/busy".equals(request.path())) {
+          // hog the event loop, then give the probe a chance to notice
+          try {
+            Thread.sleep(600);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          timers.setTimer(60, new Handler<Long>() {
+            @Override
+            public void handle(Long event) {
+              request.response().end(large.toString());
+            }
+          });
+        } else {
+          request.response().end(large.toString());
+        }
+      }
+    });
+
+    final MultiMap headers = new CaseInsensitiveMultiMap();
+    headers.add("Accept-Encoding", "gzip");
+
+    final YokeTester yokeAssert = new YokeTester(vertx, yoke);
+    yokeAssert.request("GET", "/", headers, new Handler<Response>() {
+      @Override
+      public void handle(Response resp) {
+        // idle event loop
+        assertEquals("gzip", resp.headers.get("content-encoding"));
+
+        yokeAssert.request("GET", "/busy", headers, new Handler<Response>() {
+          @Override
+          public void handle(Response resp) {
+            assertNull(resp.headers.get("content-encoding"));
+            assertEquals(large.toString(), resp.body.toString());
+            assertEquals(1, compress.compressed());
+            assertEquals(1, compress.skippedLoad());
+            testComplete();
+          }
+        });
+      }
+    });
+  }
+
+  @Test
+  public void testParallelCompress() {
+    final Random random = new Random(42);
+    final StringBuilder sb = new StringBuilder();
+    while (sb.length() < 1024 * 1024) {
+      sb.append("row ").append(random.nextInt(100000)).append(' ').append(Long.toHexString(random.nextLong())).append('\n');
+    }
+    final String report = sb.toString();
+
+    // small blocks and window to go through many blocks and queued writes
+    final com.jetdrone.vertx.yoke.middleware.Compress compress = new com.jetdrone.vertx.yoke.middleware.Compress()
+        .parallel(64 * 1024, 2, 32 * 1024, 2);
+
+    Yoke yoke = new Yoke(this);
+    yoke.use(compress);
+    yoke.use(new Middleware() {
+      @Override
+      public void handle(YokeRequest request, Handler<Object> next) {
+        request.response().setContentType("text/csv");
+        if ("/chunked".equals(request.path())) {
+          request.response().putHeader("content-length", Integer.toString(report.length()));
+          for (int i = 0; i < report.length(); i += 10000) {
+            request.response().write(report.substring(i, Math.min(report.length(), i + 10000)));
+          }
+          request.response().end();
+        } else {
+          request.response().end(new Buffer(report));
+        }
+      }
+    });
+
+    final MultiMap headers = new CaseInsensitiveMultiMap();
+    headers.add("Accept-Encoding", "gzip");
+
+    final YokeTester yokeAssert = new YokeTester(vertx, yoke);
+    yokeAssert.request("GET", "/", headers, new Handler<Response>() {
+      @Override
+      public void handle(Response resp) {
+        assertEquals("gzip", resp.headers.get("content-encoding"));
+        // a single gzip member with a valid CRC and size
+        assertEquals(report, gunzip(resp.body));
+
+        yokeAssert.request("GET", "/chunked", headers, new Handler<Response>() {
+          @Override
+          public void handle(Response resp) {
+            assertNull(resp.headers.get("content-length"));
+            assertEquals(report, gunzip(resp.body));
+            assertEquals(2, compress.parallelized());
+            testComplete();
+          }
+        });
+      }
+    });
+  }
+
+  @Test
+  public void testParallelBlocksBounded() {
+    final Random random = new Random(7);
+    final byte[] body = new byte[40 * 32 * 1024 + 123];
+    for (int i = 0; i < body.length; i++) {
+      body[i] = (byte) ('a' + random.nextInt(4));
+    }
+
+    final ForkJoinPool pool = new ForkJoinPool(2);
+    final ParallelGZipWriterFilter filter = new ParallelGZipWriterFilter(Pattern.compile("text"), 6, vertx.currentContext(), pool, 32 * 1024, 3);
+    final Buffer out = new Buffer();
+
+    filter.output(new Handler<Buffer>() {
+      @Override
+      public void handle(Buffer data) {
+        out.appendBuffer(data);
+      }
+    }, new Handler<Throwable>() {
+      @Override
+      public void handle(Throwable failure) {
+        pool.shutdown();
+        assertNull(failure);
+        // the whole body was written at once yet only the window was allocated
+        assertTrue(filter.allocatedBlocks() <= 3);
+        assertEquals(new String(body), gunzip(out));
+        testComplete();
+      }
+    });
+
+    filter.end(new Buffer(body));
+    assertTrue(filter.allocatedBlocks() <= 3);
+  }
+
+  @Test
+  public void testStaticFileNotCompressed() throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      sb.append("line ").append(i).append('\n');
+    }
+    final String text = sb.toString();
+
+    final Path root = Files.createTempDirectory("yoke-static");
+    final Path file = root.resolve("large.txt");
+    Files.write(file, text.getBytes("UTF-8"));
+    file.toFile().deleteOnExit();
+    root.toFile().deleteOnExit();
+
+    Yoke yoke = new Yoke(this);
+    yoke.use(new com.jetdrone.vertx.yoke.middleware.Compress());
+    yoke.use(new com.jetdrone.vertx.yoke.middleware.Static(root.toString()));
+
+    MultiMap headers = new CaseInsensitiveMultiMap();
+    headers.add("Accept-Encoding", "gzip");
+
+    new YokeTester(vertx, yoke).request("GET", "/large.txt", headers, new Handler<Response>() {
+      @Override
+      public void handle(Response resp) {
+        assertEquals(200, resp.getStatusCode());
+        // files are sent as they are
+        assertNull(resp.headers.get("content-encoding"));
+        assertEquals(Integer.toString(text.length()), resp.headers.get("content-length"));
+        assertEquals(text, resp.body.toString());
+        testComplete();
+      }
+    });
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testAbstractWriterFilter() throws IOException {
+    // a filter written against the former stream based base class
+    final AbstractWriterFilter filter = new AbstractWriterFilter(Pattern.compile("text")) {
+      @Override
+      public OutputStream createOutputStream() throws IOException {
+        return new GZIPOutputStream(sink);
+      }
+
+      @Override
+      public String encoding() {
+        return "gzip";
+      }
+    };
+
+    assertTrue(filter.canFilter("text/plain", -1));
+    assertFalse(filter.canFilter("image/png", -1));
+
+    final Buffer out = new Buffer();
+    out.appendBuffer(filter.write("hello "));
+    out.appendBuffer(filter.end("world"));
+    assertEquals("hello world", gunzip(out));
+    // nothing to release once ended
+    filter.close();
+    testComplete();
+  }
+
+  @Test
+  public void testFilterClose() {
+    final GZipWriterFilter filter = new GZipWriterFilter(Pattern.compile("text"));
+    assertTrue(filter.write(new Buffer("partial body")).length() > 0);
+
+    // the response was closed before the end, the deflater goes back to the pool
+    filter.close();
+    filter.close();
+
+    try {
+      filter.end(new Buffer("rest"));
+      fail("Closed filter should not encode");
+    } catch (IllegalStateException e) {
+      testComplete();
+    }
+  }
+
 //  @Test
 //  public void testGZip() {
 //    Yoke yoke = new Yoke(vertx);
@@ -4,6 +4,7 @@ import com.jetdrone.vertx.yoke.Yoke;
 import com.jetdrone.vertx.yoke.middleware.YokeRequest;
 import com.jetdrone.vertx.yoke.test.Response;
 import com.jetdrone.vertx.yoke.test.YokeTester;
+import com.jetdrone.vertx.yoke.util.TrustedProxies;
 import org.junit.Test;
 import org.vertx.java.core.http.CaseInsensitiveMultiMap;
 import org.vertx.java.core.Handler;
@@ -63,6 +64,54 @@ public class RequestFunctions extends TestVerticle {
         new YokeTester(vertx, yoke).request("GET", "/", headers, null);
     }
 
+    @Test
+    public void testTrustedProxies() {
+        TrustedProxies proxies = new TrustedProxies("127.0.0.1", "10.0.0.0/8", "fd00::/8", "::1");
+        assertTrue(proxies.contains("10.1.2.3"));
+        assertTrue(proxies.contains("::ffff:10.1.2.3"));
+        assertTrue(proxies.contains("[fd12:3456::1]"));
+        assertTrue(proxies.contains("0:0:0:0:0:0:0:1"));
+        assertFalse(proxies.contains("11.1.2.3"));
+        assertFalse(proxies.contains("fe80::1"));
+        assertFalse(proxies.contains("localhost"));
+        assertFalse(proxies.contains("10.1.2"));
+
+        Yoke yoke = new Yoke(this);
+        yoke.set("trust-proxy", proxies);
+        yoke.use(new Handler<YokeRequest>() {
+            @Override
+            public void handle(YokeRequest request) {
+                // the first untrusted hop from the right, spoofed hops on the left are ignored
+                assertEquals("8.8.8.8", request.ip());
+                testComplete();
+            }
+        });
+
+        MultiMap headers = new CaseInsensitiveMultiMap();
+        headers.add("x-forwarded-for", "1.2.3.4,8.8.8.8 , 10.1.2.3");
+
+        new YokeTester(vertx, yoke).request("GET", "/", headers, null);
+    }
+
+    @Test
+    public void testUntrustedRemote() {
+        Yoke yoke = new Yoke(this);
+        yoke.set("trust-proxy", new TrustedProxies("10.0.0.0/8"));
+        yoke.use(new Handler<YokeRequest>() {
+            @Override
+            public void handle(YokeRequest request) {
+                // the remote address is not a proxy, the header is ignored
+                assertEquals("127.0.0.1", request.ip());
+                testComplete();
+            }
+        });
+
+        MultiMap headers = new CaseInsensitiveMultiMap();
+        headers.add("x-forwarded-for", "1.2.3.4");
+
+        new YokeTester(vertx, yoke).request("GET", "/", headers, null);
+    }
+
     @Test
     public void testLocale() {
         Yoke yoke = new Yoke(this);
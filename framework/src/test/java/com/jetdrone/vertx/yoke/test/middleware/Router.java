@@ -2,7 +2,9 @@ package com.jetdrone.vertx.yoke.test.middleware;
 
 import com.jetdrone.vertx.yoke.Middleware;
 import com.jetdrone.vertx.yoke.Yoke;
+import com.jetdrone.vertx.yoke.core.YokeException;
 import com.jetdrone.vertx.yoke.annotations.GET;
+import com.jetdrone.vertx.yoke.annotations.Param;
 import com.jetdrone.vertx.yoke.annotations.Produces;
 import com.jetdrone.vertx.yoke.middleware.YokeRequest;
 import com.jetdrone.vertx.yoke.test.Response;
@@ -12,6 +14,7 @@ import org.vertx.java.core.Handler;
 import org.vertx.java.core.json.JsonObject;
 import org.vertx.testtools.TestVerticle;
 
+import java.util.UUID;
 import java.util.regex.Pattern;
 
 import static org.vertx.testtools.VertxAssert.*;
@@ -63,6 +66,176 @@ public class Router extends TestVerticle {
         });
     }
 
+    static class TestRouter3 {
+        @GET("/forbidden")
+        public void forbidden(YokeRequest request) throws YokeException {
+            throw new YokeException(403, "Forbidden");
+        }
+
+        @GET("/next")
+        public void next(YokeRequest request, Handler<Object> next) {
+            next.handle(null);
+        }
+    }
+
+    @Test
+    public void testAnnotatedRouterErrors() {
+        final Yoke yoke = new Yoke(this);
+        yoke.use(com.jetdrone.vertx.yoke.middleware.Router.from(new TestRouter3()));
+
+        final YokeTester yokeAssert = new YokeTester(vertx, yoke);
+
+        yokeAssert.request("GET", "/forbidden", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                // the exception is not wrapped by reflection
+                assertEquals(403, resp.getStatusCode());
+
+                yokeAssert.request("GET", "/next", new Handler<Response>() {
+                    @Override
+                    public void handle(Response resp) {
+                        assertEquals(404, resp.getStatusCode());
+                        testComplete();
+                    }
+                });
+            }
+        });
+    }
+
+    private static class PrivateRouter {
+        @GET("/private")
+        public void get(YokeRequest request) {
+            request.response().end("private");
+        }
+    }
+
+    @Test
+    public void testGeneratedRoutes() {
+        // generated at compile time for accessible classes
+        try {
+            assertTrue(com.jetdrone.vertx.yoke.middleware.Router.Table.class.isAssignableFrom(Class.forName(TestRouter.class.getName() + "$$YokeRoutes")));
+        } catch (ClassNotFoundException e) {
+            fail(e.getMessage());
+        }
+
+        // private classes are scanned at runtime
+        final Yoke yoke = new Yoke(this);
+        yoke.use(com.jetdrone.vertx.yoke.middleware.Router.from(new PrivateRouter(), new TestRouter()));
+
+        final YokeTester yokeAssert = new YokeTester(vertx, yoke);
+
+        yokeAssert.request("GET", "/private", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals("private", resp.body.toString());
+
+                yokeAssert.request("GET", "/ws", new Handler<Response>() {
+                    @Override
+                    public void handle(Response resp) {
+                        assertEquals("Hello ws!", resp.body.toString());
+                        testComplete();
+                    }
+                });
+            }
+        });
+    }
+
+    static class TypedRouter {
+        @GET("/typed/:id/:active")
+        public void get(YokeRequest request, @Param("id") long id, @Param("active") boolean active, @Param("ref") UUID ref) {
+            request.response().end(id + " " + active + " " + ref);
+        }
+    }
+
+    private static class PrivateTypedRouter {
+        @GET("/private/:id/:active")
+        public void get(YokeRequest request, Handler<Object> next, @Param("id") long id, @Param("active") boolean active, @Param("ref") UUID ref) {
+            request.response().end(id + " " + active + " " + ref);
+        }
+    }
+
+    @Test
+    public void testTypedParams() {
+        final Yoke yoke = new Yoke(this);
+        // generated and scanned at runtime
+        yoke.use(com.jetdrone.vertx.yoke.middleware.Router.from(new TypedRouter(), new PrivateTypedRouter()));
+
+        final YokeTester yokeAssert = new YokeTester(vertx, yoke);
+        final String ref = "123e4567-e89b-12d3-a456-426655440000";
+
+        yokeAssert.request("GET", "/typed/42/true?ref=" + ref, new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals("42 true " + ref, resp.body.toString());
+
+                yokeAssert.request("GET", "/private/7/FALSE", new Handler<Response>() {
+                    @Override
+                    public void handle(Response resp) {
+                        assertEquals("7 false null", resp.body.toString());
+
+                        yokeAssert.request("GET", "/typed/abc/true", new Handler<Response>() {
+                            @Override
+                            public void handle(Response resp) {
+                                assertEquals(400, resp.getStatusCode());
+
+                                yokeAssert.request("GET", "/private/1/true?ref=1-1-1-1-1", new Handler<Response>() {
+                                    @Override
+                                    public void handle(Response resp) {
+                                        assertEquals(400, resp.getStatusCode());
+                                        testComplete();
+                                    }
+                                });
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    @Test
+    public void testConcurrentParamProcessors() {
+        final StringBuilder log = new StringBuilder();
+        final org.vertx.java.core.Vertx timers = vertx;
+
+        final com.jetdrone.vertx.yoke.middleware.Router router = new com.jetdrone.vertx.yoke.middleware.Router();
+        router.get("/:a/:b", new Handler<YokeRequest>() {
+            @Override
+            public void handle(YokeRequest request) {
+                request.response().end(log.toString());
+            }
+        });
+
+        // processors registered after the route also apply
+        for (final String param : new String[] {"a", "b"}) {
+            router.param(param, new Middleware() {
+                @Override
+                public void handle(final YokeRequest request, final Handler<Object> next) {
+                    log.append(param).append(request.params().get(param));
+                    timers.setTimer(10, new Handler<Long>() {
+                        @Override
+                        public void handle(Long event) {
+                            log.append("-").append(param);
+                            next.handle(null);
+                        }
+                    });
+                }
+            });
+        }
+
+        final Yoke yoke = new Yoke(this);
+        yoke.use(router);
+
+        new YokeTester(vertx, yoke).request("GET", "/1/2", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                // both processors started before any completed
+                assertEquals("a1b2-a-b", resp.body.toString());
+                testComplete();
+            }
+        });
+    }
+
     @Test
     public void testRouterWithParams() {
         Yoke yoke = new Yoke(this);
@@ -195,4 +368,239 @@ public class Router extends TestVerticle {
             }
         });
     }
+
+    @Test
+    public void testRegistrationOrder() {
+        final StringBuilder trace = new StringBuilder();
+
+        final Yoke yoke = new Yoke(this);
+        yoke.use(new com.jetdrone.vertx.yoke.middleware.Router() {{
+            get("/users/:id", new Middleware() {
+                @Override
+                public void handle(YokeRequest request, Handler<Object> next) {
+                    trace.append("param:").append(request.params().get("id")).append(' ');
+                    next.handle(null);
+                }
+            });
+            get(Pattern.compile("^/users/(\\d+)$"), new Middleware() {
+                @Override
+                public void handle(YokeRequest request, Handler<Object> next) {
+                    trace.append("regex:").append(request.params().get("param0")).append(' ');
+                    next.handle(null);
+                }
+            });
+            get("/users/.*", new Middleware() {
+                @Override
+                public void handle(YokeRequest request, Handler<Object> next) {
+                    trace.append("wildcard ");
+                    next.handle(null);
+                }
+            });
+            get("/users/me", new Middleware() {
+                @Override
+                public void handle(YokeRequest request, Handler<Object> next) {
+                    trace.append("static");
+                    request.response().end(trace.toString());
+                }
+            });
+            get("/users/:id/", new Middleware() {
+                @Override
+                public void handle(YokeRequest request, Handler<Object> next) {
+                    request.response().end(trace + "slash:" + request.params().get("id"));
+                }
+            });
+        }});
+
+        final YokeTester yokeAssert = new YokeTester(vertx, yoke);
+
+        yokeAssert.request("GET", "/users/me", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals("param:me wildcard static", resp.body.toString());
+                trace.setLength(0);
+
+                yokeAssert.request("GET", "/users/1/", new Handler<Response>() {
+                    @Override
+                    public void handle(Response resp) {
+                        // the trailing slash is optional on the first route only
+                        assertEquals("param:1 wildcard slash:1", resp.body.toString());
+                        testComplete();
+                    }
+                });
+            }
+        });
+    }
+
+    @Test
+    public void testRouteChain() {
+        final int[] processed = {0};
+
+        final Yoke yoke = new Yoke(this);
+        yoke.use(new com.jetdrone.vertx.yoke.middleware.Router() {{
+            param("id", new Middleware() {
+                @Override
+                public void handle(YokeRequest request, Handler<Object> next) {
+                    processed[0]++;
+                    next.handle(null);
+                }
+            });
+            get("/items/:id", new Middleware() {
+                @Override
+                public void handle(YokeRequest request, Handler<Object> next) {
+                    request.put("auth", "a");
+                    next.handle(null);
+                }
+            }, new Middleware() {
+                @Override
+                public void handle(YokeRequest request, Handler<Object> next) {
+                    request.put("auth", request.get("auth") + "b");
+                    next.handle(null);
+                }
+            }, new Middleware() {
+                @Override
+                public void handle(YokeRequest request, Handler<Object> next) {
+                    // the pattern is matched once for the whole chain
+                    assertEquals(1, request.params().getAll("id").size());
+                    assertEquals(1, processed[0]);
+                    request.response().end(request.get("auth") + request.params().get("id"));
+                }
+            });
+        }});
+
+        new YokeTester(vertx, yoke).request("GET", "/items/42", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals(200, resp.getStatusCode());
+                assertEquals("ab42", resp.body.toString());
+                testComplete();
+            }
+        });
+    }
+
+    @Test
+    public void testMatchCache() {
+        final com.jetdrone.vertx.yoke.middleware.Router router = new com.jetdrone.vertx.yoke.middleware.Router();
+        router.cache(100);
+        router.get("/api/:name", new Handler<YokeRequest>() {
+            @Override
+            public void handle(YokeRequest request) {
+                request.response().end(request.params().get("name"));
+            }
+        });
+
+        final Yoke yoke = new Yoke(this);
+        yoke.use(router);
+
+        final YokeTester yokeAssert = new YokeTester(vertx, yoke);
+
+        yokeAssert.request("GET", "/api/config", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals("config", resp.body.toString());
+
+                yokeAssert.request("GET", "/api/config", new Handler<Response>() {
+                    @Override
+                    public void handle(Response resp) {
+                        assertEquals("config", resp.body.toString());
+                        assertEquals(1, router.cacheMisses());
+                        assertEquals(1, router.cacheHits());
+
+                        // adding a route invalidates the cache
+                        router.get("/api/config", new Handler<YokeRequest>() {
+                            @Override
+                            public void handle(YokeRequest request) {
+                                request.response().end("static");
+                            }
+                        });
+                        router.get("/other", new Handler<YokeRequest>() {
+                            @Override
+                            public void handle(YokeRequest request) {
+                                request.response().end("other");
+                            }
+                        });
+
+                        yokeAssert.request("GET", "/other", new Handler<Response>() {
+                            @Override
+                            public void handle(Response resp) {
+                                assertEquals("other", resp.body.toString());
+                                assertEquals(2, router.cacheMisses());
+                                testComplete();
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    @Test
+    public void testMatchCacheEviction() {
+        final com.jetdrone.vertx.yoke.middleware.Router router = new com.jetdrone.vertx.yoke.middleware.Router();
+        router.cache(2);
+        router.get("/api/:name", new Handler<YokeRequest>() {
+            @Override
+            public void handle(YokeRequest request) {
+                request.response().end(request.params().get("name"));
+            }
+        });
+
+        final Yoke yoke = new Yoke(this);
+        yoke.use(router);
+
+        final YokeTester yokeAssert = new YokeTester(vertx, yoke);
+        // a hot path, one-off paths that overflow the cache and paths without a route
+        final String[] paths = {"/api/hot", "/api/hot", "/api/a", "/api/b", "/api/c", "/missing", "/missing", "/api/hot"};
+
+        new Handler<Integer>() {
+            @Override
+            public void handle(final Integer index) {
+                if (index == paths.length) {
+                    // the hot path survived the one-off paths and 404s are never cached
+                    assertEquals(2, router.cacheHits());
+                    assertEquals(6, router.cacheMisses());
+                    testComplete();
+                    return;
+                }
+
+                final Handler<Integer> self = this;
+                yokeAssert.request("GET", paths[index], new Handler<Response>() {
+                    @Override
+                    public void handle(Response resp) {
+                        assertEquals(paths[index].startsWith("/api/") ? 200 : 404, resp.getStatusCode());
+                        self.handle(index + 1);
+                    }
+                });
+            }
+        }.handle(0);
+    }
+
+    @Test
+    public void testLazyPathParams() {
+        final com.jetdrone.vertx.yoke.middleware.Router router = new com.jetdrone.vertx.yoke.middleware.Router();
+        router.get("/lazy/:id", new Middleware() {
+            @Override
+            public void handle(YokeRequest request, Handler<Object> next) {
+                // does not read the params
+                next.handle(null);
+            }
+        });
+        router.get(Pattern.compile("^/lazy/(\\d+)$"), new Handler<YokeRequest>() {
+            @Override
+            public void handle(YokeRequest request) {
+                // params of every matched route are visible once read
+                request.response().end(request.params().get("id") + " " + request.getParameter("param0"));
+            }
+        });
+
+        final Yoke yoke = new Yoke(this);
+        yoke.use(router);
+
+        new YokeTester(vertx, yoke).request("GET", "/lazy/7?q=1", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals("7 7", resp.body.toString());
+                testComplete();
+            }
+        });
+    }
 }
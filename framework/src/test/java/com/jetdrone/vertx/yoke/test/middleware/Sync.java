@@ -0,0 +1,94 @@
+package com.jetdrone.vertx.yoke.test.middleware;
+
+import com.jetdrone.vertx.yoke.Yoke;
+import com.jetdrone.vertx.yoke.middleware.Router;
+import com.jetdrone.vertx.yoke.middleware.YokeRequest;
+import com.jetdrone.vertx.yoke.test.Response;
+import com.jetdrone.vertx.yoke.test.YokeTester;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.testtools.TestVerticle;
+
+import static org.vertx.testtools.VertxAssert.*;
+
+public class Sync extends TestVerticle {
+
+    @Test
+    public void testAwait() {
+        vertx.eventBus().registerHandler("sync.echo", new Handler<Message<String>>() {
+            @Override
+            public void handle(Message<String> message) {
+                message.reply("Hello " + message.body());
+            }
+        });
+
+        Yoke yoke = new Yoke(this);
+        yoke.use(new Router().get("/:name", new com.jetdrone.vertx.yoke.middleware.Sync() {
+            @Override
+            public void handle(final YokeRequest request) throws Throwable {
+                Message<String> reply = await(new Call<Message<String>>() {
+                    @Override
+                    public void call(Handler<Message<String>> handler) {
+                        vertx.eventBus().send("sync.echo", request.params().get("name"), handler);
+                    }
+                });
+
+                request.response().end(reply.body());
+            }
+        }));
+
+        new YokeTester(vertx, yoke).request("GET", "/paulo", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals(200, resp.getStatusCode());
+                assertEquals("Hello paulo", resp.body.toString());
+                testComplete();
+            }
+        });
+    }
+
+    @Test
+    public void testError() {
+        Yoke yoke = new Yoke(this);
+        yoke.use(new com.jetdrone.vertx.yoke.middleware.Sync() {
+            @Override
+            public void handle(YokeRequest request) throws Throwable {
+                throw new RuntimeException("Oops");
+            }
+        });
+
+        new YokeTester(vertx, yoke).request("GET", "/", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals(500, resp.getStatusCode());
+                testComplete();
+            }
+        });
+    }
+
+    @Test
+    public void testCallError() {
+        Yoke yoke = new Yoke(this);
+        // a timeout longer than the test, the failure must not wait for it
+        yoke.use(new com.jetdrone.vertx.yoke.middleware.Sync(1, 1, 60000) {
+            @Override
+            public void handle(YokeRequest request) throws Throwable {
+                await(new Call<Void>() {
+                    @Override
+                    public void call(Handler<Void> handler) {
+                        throw new Error("Oops");
+                    }
+                });
+            }
+        });
+
+        new YokeTester(vertx, yoke).request("GET", "/", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals(500, resp.getStatusCode());
+                testComplete();
+            }
+        });
+    }
+}
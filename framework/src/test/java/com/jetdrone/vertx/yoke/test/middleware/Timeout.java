@@ -4,10 +4,15 @@ import com.jetdrone.vertx.yoke.Yoke;
 import com.jetdrone.vertx.yoke.middleware.YokeRequest;
 import com.jetdrone.vertx.yoke.test.Response;
 import com.jetdrone.vertx.yoke.test.YokeTester;
+import com.jetdrone.vertx.yoke.util.WheelTimer;
 import org.junit.Test;
 import org.vertx.java.core.Handler;
 import org.vertx.testtools.TestVerticle;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import static org.vertx.testtools.VertxAssert.*;
 
 public class Timeout extends TestVerticle {
@@ -31,4 +36,111 @@ public class Timeout extends TestVerticle {
             }
         });
     }
+
+    @Test
+    public void testTimeoutCancelled() {
+        final com.jetdrone.vertx.yoke.middleware.Timeout timeout = new com.jetdrone.vertx.yoke.middleware.Timeout(10);
+        Yoke yoke = new Yoke(this);
+        yoke.use(timeout);
+        yoke.use(new Handler<YokeRequest>() {
+            @Override
+            public void handle(YokeRequest request) {
+                request.response().end("OK");
+            }
+        });
+
+        new YokeTester(vertx, yoke).request("GET", "/", new Handler<Response>() {
+            @Override
+            public void handle(Response resp) {
+                assertEquals(200, resp.getStatusCode());
+                // the deadline was cancelled so it should never expire
+                vertx.setTimer(50, new Handler<Long>() {
+                    @Override
+                    public void handle(Long event) {
+                        assertEquals(0, timeout.expired());
+                        testComplete();
+                    }
+                });
+            }
+        });
+    }
+
+    @Test
+    public void testWheelTimer() {
+        final Yoke yoke = new Yoke(this);
+        final long start = System.currentTimeMillis();
+        final List<Integer> fired = new ArrayList<>();
+
+        yoke.timer().schedule(30, new Handler<Void>() {
+            @Override
+            public void handle(Void event) {
+                fired.add(30);
+                assertTrue(System.currentTimeMillis() - start >= 30);
+                assertEquals(Arrays.asList(10, 30), fired);
+                testComplete();
+            }
+        });
+        WheelTimer.Task cancelled = yoke.timer().schedule(20, new Handler<Void>() {
+            @Override
+            public void handle(Void event) {
+                fail("cancelled task should not run");
+            }
+        });
+        yoke.timer().schedule(10, new Handler<Void>() {
+            @Override
+            public void handle(Void event) {
+                fired.add(10);
+            }
+        });
+
+        assertEquals(3, yoke.timer().size());
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        assertEquals(2, yoke.timer().size());
+    }
+
+    @Test
+    public void testWheelTimerKept() {
+        final Yoke yoke = new Yoke(this);
+        final WheelTimer wheel = yoke.timer();
+        final long cancelled = wheel.cancelled();
+
+        for (int i = 0; i < 3; i++) {
+            // cancelling the last deadline keeps the wheel and its counters
+            assertTrue(yoke.timer().schedule(1000, new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                    fail("cancelled task should not run");
+                }
+            }).cancel());
+            assertSame(wheel, yoke.timer());
+        }
+
+        assertEquals(0, wheel.size());
+        assertEquals(cancelled + 3, wheel.cancelled());
+        testComplete();
+    }
+
+    @Test
+    public void testWheelTimerReleased() {
+        final Yoke yoke = new Yoke(this);
+        final WheelTimer wheel = yoke.timer();
+
+        wheel.schedule(10, new Handler<Void>() {
+            @Override
+            public void handle(Void event) {
+                assertSame(wheel, yoke.timer());
+            }
+        });
+
+        // the tick stops after a second without deadlines
+        vertx.setTimer(1500, new Handler<Long>() {
+            @Override
+            public void handle(Long event) {
+                // the idle wheel was released
+                assertNotSame(wheel, yoke.timer());
+                testComplete();
+            }
+        });
+    }
 }
@@ -2,6 +2,7 @@ package com.jetdrone.vertx.yoke.test.middleware;
 
 import com.jetdrone.vertx.yoke.Middleware;
 import com.jetdrone.vertx.yoke.Yoke;
+import com.jetdrone.vertx.yoke.core.Context;
 import com.jetdrone.vertx.yoke.middleware.YokeRequest;
 import com.jetdrone.vertx.yoke.test.YokeTester;
 import org.junit.Test;
@@ -10,6 +11,11 @@ import org.vertx.java.core.Handler;
 import org.vertx.java.core.MultiMap;
 import org.vertx.testtools.TestVerticle;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
 import static org.vertx.testtools.VertxAssert.*;
 
 public class YokeRequestTest extends TestVerticle {
@@ -32,6 +38,37 @@ public class YokeRequestTest extends TestVerticle {
         new YokeTester(vertx, yoke).request("GET", "/", headers, null);
     }
 
+    @Test
+    public void testNegotiation() {
+        final Yoke yoke = new Yoke(this);
+        yoke.use(new Middleware() {
+            @Override
+            public void handle(YokeRequest request, Handler<Object> next) {
+                // best quality first, same quality keeps the header order
+                assertEquals("application/json;q=1", request.accepts("text/html", "application/json"));
+                assertEquals("text/html; q=0.9", request.accepts("text/html"));
+                assertNull(request.accepts("image/png"));
+                assertEquals(Arrays.asList("application/json", "text/html", "text/plain"), request.sortedHeader("Accept"));
+
+                assertTrue(request.is("json"));
+                assertTrue(request.is("application/json"));
+                assertTrue(request.is("application/*"));
+                assertFalse(request.is("html"));
+                assertFalse(request.is("text/json"));
+
+                assertEquals(new Locale("pt", "PT"), request.locale());
+                testComplete();
+            }
+        });
+
+        MultiMap headers = new CaseInsensitiveMultiMap();
+        headers.add("Accept", "text/plain;q=0.5, text/html; q=0.9,application/json;q=1");
+        headers.add("Content-Type", "application/json; charset=utf-8");
+        headers.add("Accept-Language", "en;q=0.8, pt-PT");
+
+        new YokeTester(vertx, yoke).request("GET", "/", headers, null);
+    }
+
     @Test
     public void testNormalizedPath() {
         final Yoke yoke = new Yoke(this);
@@ -101,4 +138,90 @@ public class YokeRequestTest extends TestVerticle {
 
         new YokeTester(vertx, yoke).request("GET", "/..%2f", null);
     }
+
+    @Test
+    public void testNormalizedPathFastPath() {
+        final Yoke yoke = new Yoke(this);
+        yoke.use(new Middleware() {
+            @Override
+            public void handle(YokeRequest request, Handler<Object> next) {
+                if ("/api/users/1.json".equals(request.path())) {
+                    // already normal, the path is returned as is
+                    assertSame(request.path(), request.normalizedPath());
+                    assertArrayEquals(new String[]{"api", "users", "1.json"}, request.pathSegments());
+                } else {
+                    assertEquals("/api/x/.hidden", request.normalizedPath());
+                    assertArrayEquals(new String[]{"api", "", "v1", "..", "x", ".", ".hidden", ""}, request.pathSegments());
+                }
+                request.response().end();
+            }
+        });
+
+        final YokeTester yokeAssert = new YokeTester(vertx, yoke);
+
+        yokeAssert.request("GET", "/api/users/1.json", new Handler<com.jetdrone.vertx.yoke.test.Response>() {
+            @Override
+            public void handle(com.jetdrone.vertx.yoke.test.Response resp) {
+                yokeAssert.request("GET", "/api//v1/../x/./.hidden/", new Handler<com.jetdrone.vertx.yoke.test.Response>() {
+                    @Override
+                    public void handle(com.jetdrone.vertx.yoke.test.Response resp) {
+                        testComplete();
+                    }
+                });
+            }
+        });
+    }
+
+    @Test
+    public void testContext() {
+        Map<String, Object> app = new HashMap<>();
+        app.put("title", "Yoke");
+        Context context = new Context(app);
+
+        // well known and ad-hoc keys
+        context.put("user", "paulo");
+        context.put("custom", 1);
+        assertEquals("paulo", context.get("user"));
+        assertEquals(1, context.get("custom"));
+        assertEquals("Yoke", context.get("title"));
+        assertEquals(3, context.size());
+
+        // local entries shadow the application context
+        context.put("title", "Request");
+        assertEquals("Request", context.get("title"));
+        assertEquals(3, context.size());
+
+        // reading the views does not change the context
+        assertEquals(3, context.keySet().size());
+        assertEquals(3, context.values().size());
+        assertEquals(3, context.entrySet().size());
+        assertEquals(3, context.size());
+
+        // removing a local entry makes the application entry visible again
+        context.remove("title");
+        assertEquals("Yoke", context.get("title"));
+        context.remove("user");
+        assertNull(context.get("user"));
+        assertFalse(context.containsKey("user"));
+
+        // slot access sees the same entries as key access
+        final int slot = Context.register("token");
+        assertEquals(slot, Context.register("token"));
+        context.put(slot, "abc");
+        assertEquals("abc", context.get("token"));
+        context.put(Context.USER, "paulo");
+        assertEquals("paulo", context.get(Context.USER));
+        assertEquals("paulo", context.get("user"));
+
+        // an ad-hoc key set to null shadows the application context
+        context.put("title", null);
+        assertTrue(context.containsKey("title"));
+        assertNull(context.get("title"));
+        assertTrue(context.keySet().contains("title"));
+
+        context.clear();
+        assertNull(context.get("custom"));
+        assertEquals(1, context.size());
+        testComplete();
+    }
 }